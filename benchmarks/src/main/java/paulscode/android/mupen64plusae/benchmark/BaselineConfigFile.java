@@ -0,0 +1,215 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Set;
+
+import android.text.TextUtils;
+
+/**
+ * A copy of how ConfigFile loaded a file before it parsed in a single pass, kept so that
+ * {@link ConfigFileBenchmark} and {@link ConfigFileFootprint} can compare the two. It reads line by
+ * line, trims and splits each line through substring copies, and keeps every section as a linked
+ * list of line objects plus a hash map of parameter objects. Saving is left out, since only loading
+ * changed in a way worth measuring.
+ */
+public final class BaselineConfigFile
+{
+    public static final String SECTIONLESS_NAME = "[<sectionless!>]";
+    
+    private final LinkedHashMap<String, ConfigSection> mConfigMap =
+            new LinkedHashMap<String, ConfigSection>();
+    
+    public BaselineConfigFile( String filename )
+    {
+        if( TextUtils.isEmpty( filename ) )
+            return;
+        
+        FileInputStream fstream;
+        try
+        {
+            fstream = new FileInputStream( filename );
+        }
+        catch( FileNotFoundException fnfe )
+        {
+            return;
+        }
+        
+        DataInputStream in = new DataInputStream( fstream );
+        BufferedReader br = new BufferedReader( new InputStreamReader( in ) );
+        
+        String sectionName = SECTIONLESS_NAME;
+        ConfigSection section = new ConfigSection( sectionName, br );
+        mConfigMap.put( sectionName, section );
+        while( !TextUtils.isEmpty( section.nextName ) )
+        {
+            sectionName = section.nextName;
+            section = new ConfigSection( sectionName, br );
+            mConfigMap.put( sectionName, section );
+        }
+        
+        try
+        {
+            in.close();
+            br.close();
+        }
+        catch( IOException ioe )
+        {
+        }
+    }
+    
+    public String get( String sectionTitle, String parameter )
+    {
+        ConfigSection section = mConfigMap.get( sectionTitle );
+        if( section == null )
+            return null;
+        ConfigParameter confParam = section.parameters.get( parameter );
+        return confParam == null ? null : confParam.value;
+    }
+    
+    public Set<String> keySet()
+    {
+        return mConfigMap.keySet();
+    }
+    
+    private static class ConfigSection
+    {
+        private final HashMap<String, ConfigParameter> parameters =
+                new HashMap<String, ConfigParameter>();
+        private final LinkedList<ConfigLine> lines = new LinkedList<ConfigLine>();
+        private String nextName = null;
+        
+        public ConfigSection( String sectionName, BufferedReader br )
+        {
+            String fullLine, strLine, p, v;
+            ConfigParameter confParam;
+            int x, y;
+            
+            if( !TextUtils.isEmpty( sectionName ) && !sectionName.equals( SECTIONLESS_NAME ) )
+                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, "[" + sectionName + "]\n", null ) );
+            
+            try
+            {
+                while( ( fullLine = br.readLine() ) != null )
+                {
+                    strLine = fullLine.trim();
+                    if( ( strLine.length() < 1 )
+                            || ( strLine.substring( 0, 1 ).equals( "#" ) )
+                            || ( strLine.substring( 0, 1 ).equals( ";" ) )
+                            || ( ( strLine.length() > 1 ) && ( strLine.substring( 0, 2 )
+                                    .equals( "//" ) ) ) )
+                    {
+                        lines.add( new ConfigLine( ConfigLine.LINE_GARBAGE, fullLine + "\n", null ) );
+                    }
+                    else if( strLine.contains( "=" ) )
+                    {
+                        x = strLine.indexOf( '=' );
+                        if( x < 1 )
+                            return;
+                        
+                        if( x < ( strLine.length() - 1 ) )
+                        {
+                            p = strLine.substring( 0, x ).trim();
+                            if( p.length() < 1 )
+                                return;
+                            
+                            v = strLine.substring( x + 1, strLine.length() ).trim();
+                            if( v.length() > 0 )
+                            {
+                                confParam = parameters.get( p );
+                                if( confParam != null )
+                                {
+                                    confParam.value = v;
+                                }
+                                else
+                                {
+                                    confParam = new ConfigParameter( p, v );
+                                    lines.add( new ConfigLine( ConfigLine.LINE_PARAM, fullLine
+                                            + "\n", confParam ) );
+                                    parameters.put( p, confParam );
+                                }
+                            }
+                        }
+                    }
+                    else if( strLine.contains( "[" ) )
+                    {
+                        if( ( strLine.length() < 3 ) || ( !strLine.contains( "]" ) ) )
+                            return;
+                        
+                        x = strLine.indexOf( '[' );
+                        y = strLine.indexOf( ']' );
+                        if( ( y <= x + 1 ) || ( x == -1 ) || ( y == -1 ) )
+                            return;
+                        
+                        nextName = strLine.substring( x + 1, y ).trim();
+                        return;
+                    }
+                    else
+                    {
+                        return;
+                    }
+                }
+            }
+            catch( IOException ioe )
+            {
+            }
+        }
+    }
+    
+    private static class ConfigLine
+    {
+        public static final int LINE_GARBAGE = 0;
+        public static final int LINE_SECTION = 1;
+        public static final int LINE_PARAM = 2;
+        
+        public int lineType;
+        public String strLine;
+        public ConfigParameter confParam;
+        
+        public ConfigLine( int type, String line, ConfigParameter param )
+        {
+            lineType = type;
+            strLine = line;
+            confParam = param;
+        }
+    }
+    
+    private static class ConfigParameter
+    {
+        public String parameter;
+        public String value;
+        
+        public ConfigParameter( String parameter, String value )
+        {
+            this.parameter = parameter;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.cheat.CheatFile;
+import paulscode.android.mupen64plusae.cheat.CheatFile.CheatSection;
+
+/**
+ * Times loading the cheat database, finding a game's cheats in it, and saving it.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CheatFileBenchmark
+{
+    private File mWorkDir;
+    private String mPath;
+    private CheatFile mCheats;
+    private CheatFile mSaved;
+    private String mLastPattern;
+    
+    @Setup
+    public void setUp() throws IOException
+    {
+        mWorkDir = Fixtures.createWorkDir();
+        mPath = Fixtures.extract( "mupencheat.txt", mWorkDir ).getAbsolutePath();
+        mCheats = new CheatFile( mPath );
+        mSaved = new CheatFile( Fixtures.extract( "mupencheat.txt", new File( mWorkDir, "saved" ) )
+                .getAbsolutePath() );
+        
+        // The last game is the worst case, since sections are matched in order; cheat keys start
+        // with both CRCs, e.g. "0A3BD4C5-D3C0C3A4-C:45"
+        String crc = null;
+        for( String key : mCheats.keySet() )
+        {
+            if( !CheatFile.NO_KEY.equals( key ) && key.length() >= 17 )
+                crc = key.substring( 0, 17 );
+        }
+        if( crc == null )
+            throw new IOException( "No games in the cheat fixture" );
+        mLastPattern = "^" + crc + ".*";
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        Fixtures.deleteWorkDir( mWorkDir );
+    }
+    
+    @Benchmark
+    public CheatFile load()
+    {
+        return new CheatFile( mPath );
+    }
+    
+    @Benchmark
+    public CheatSection match()
+    {
+        return mCheats.match( mLastPattern );
+    }
+    
+    @Benchmark
+    public boolean save()
+    {
+        return mSaved.save();
+    }
+}
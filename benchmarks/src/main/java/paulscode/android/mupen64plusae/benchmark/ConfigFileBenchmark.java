@@ -0,0 +1,104 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+
+/**
+ * Times loading and saving the ROM database, the largest config file read at startup, both the
+ * sample fixture and the full database as shipped. Loading is also timed with the parser that
+ * earlier versions used ({@link BaselineConfigFile}).
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ConfigFileBenchmark
+{
+    /** The first 500 entries of the ROM database, or all of them. */
+    @Param( { "fixture", "shipped" } )
+    public String database;
+    
+    private File mWorkDir;
+    private String mPath;
+    private ConfigFile mSaved;
+    private int mIteration = 0;
+    
+    @Setup
+    public void setUp() throws IOException
+    {
+        mWorkDir = Fixtures.createWorkDir();
+        mPath = extractDatabase( mWorkDir ).getAbsolutePath();
+        mSaved = new ConfigFile( extractDatabase( new File( mWorkDir, "saved" ) ).getAbsolutePath() );
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        Fixtures.deleteWorkDir( mWorkDir );
+    }
+    
+    @Benchmark
+    public ConfigFile load()
+    {
+        return new ConfigFile( mPath );
+    }
+    
+    @Benchmark
+    public BaselineConfigFile loadBaseline()
+    {
+        return new BaselineConfigFile( mPath );
+    }
+    
+    @Benchmark
+    public boolean save()
+    {
+        // Change a value each time, since unchanged files aren't written
+        mSaved.put( ConfigFile.SECTIONLESS_NAME, "benchmark", String.valueOf( mIteration++ ) );
+        return mSaved.save();
+    }
+    
+    private File extractDatabase( File workDir ) throws IOException
+    {
+        if( "shipped".equals( database ) )
+            return Fixtures.extractAsset( "mupen64plus_data/mupen64plus.ini", workDir );
+        return Fixtures.extract( "mupen64plus.ini", workDir );
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+
+/**
+ * Prints the heap that the full ROM database retains once loaded, with the current parser and with
+ * {@link BaselineConfigFile}. Several copies are held at once and the used heap is compared after
+ * collecting garbage, so the figure is per copy and excludes what the parse threw away.
+ */
+public final class ConfigFileFootprint
+{
+    private static final int COPIES = 20;
+    
+    private interface Loader
+    {
+        Object load( String path );
+    }
+    
+    public static void main( String[] args ) throws IOException
+    {
+        File workDir = Fixtures.createWorkDir();
+        try
+        {
+            final String path = Fixtures.extractAsset( "mupen64plus_data/mupen64plus.ini", workDir )
+                    .getAbsolutePath();
+            
+            // Load each once first, so that class loading isn't counted
+            long baseline = measure( path, new Loader()
+            {
+                @Override
+                public Object load( String path )
+                {
+                    return new BaselineConfigFile( path );
+                }
+            } );
+            long current = measure( path, new Loader()
+            {
+                @Override
+                public Object load( String path )
+                {
+                    return new ConfigFile( path );
+                }
+            } );
+            
+            System.out.println( "Retained heap per loaded mupen64plus.ini:" );
+            System.out.println( String.format( "  baseline: %.2f MB", baseline / 1048576.0 ) );
+            System.out.println( String.format( "  current:  %.2f MB", current / 1048576.0 ) );
+        }
+        finally
+        {
+            Fixtures.deleteWorkDir( workDir );
+        }
+    }
+    
+    private static long measure( String path, Loader loader )
+    {
+        loader.load( path );
+        long before = usedHeap();
+        Object[] copies = new Object[COPIES];
+        for( int i = 0; i < COPIES; i++ )
+            copies[i] = loader.load( path );
+        long after = usedHeap();
+        
+        // Keep the copies reachable until the heap has been measured
+        if( copies[COPIES - 1] == null )
+            throw new IllegalStateException();
+        return ( after - before ) / COPIES;
+    }
+    
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 4; i++ )
+        {
+            System.gc();
+            try
+            {
+                Thread.sleep( 50 );
+            }
+            catch( InterruptedException ignored )
+            {
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Gives the benchmarks their inputs. The fixtures are checked in under {@code fixtures/} and were
+ * derived from the shipped assets:
+ * <ul>
+ * <li>{@code mupen64plus.ini}: the first 500 entries of the ROM database.</li>
+ * <li>{@code mupencheat.txt}: the first 50 games of the cheat database.</li>
+ * <li>{@code controller.cfg}: the controller profiles, as shipped.</li>
+ * <li>{@code header.z64}, {@code .v64}, {@code .n64}: the header of a ROM listed in the database,
+ * in each byte order.</li>
+ * <li>{@code texture-names.txt}: hi-res texture file names for the games in the database sample.</li>
+ * </ul>
+ * Some benchmarks also read the app's own assets, which the build copies in under {@code assets/}.
+ * <p>
+ * The classes being measured read files, so fixtures are copied to a temporary folder first. Whole
+ * ROM images are generated there from a header and a fixed seed, so every run hashes the same bytes.
+ */
+public final class Fixtures
+{
+    private static final long SEED = 64;
+    
+    public static File createWorkDir() throws IOException
+    {
+        File dir = File.createTempFile( "mupen64plusae-benchmark", "" );
+        if( !dir.delete() || !dir.mkdir() )
+            throw new IOException( "Could not create " + dir.getAbsolutePath() );
+        return dir;
+    }
+    
+    /** Deletes a work folder and everything in it. */
+    public static void deleteWorkDir( File dir )
+    {
+        File[] files = dir.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+                deleteWorkDir( file );
+        }
+        dir.delete();
+    }
+    
+    /**
+     * Copies a fixture into a work folder, creating the folder if needed.
+     * 
+     * @return The copy.
+     */
+    public static File extract( String name, File workDir ) throws IOException
+    {
+        workDir.mkdirs();
+        File file = new File( workDir, name );
+        write( file, read( name ) );
+        return file;
+    }
+    
+    /**
+     * Copies one of the app's assets into a work folder, creating the folder if needed.
+     * 
+     * @param name The path of the asset, relative to the assets folder.
+     * 
+     * @return The copy.
+     */
+    public static File extractAsset( String name, File workDir ) throws IOException
+    {
+        workDir.mkdirs();
+        File file = new File( workDir, new File( name ).getName() );
+        write( file, readAll( openResource( "/assets/" + name ) ) );
+        return file;
+    }
+    
+    public static byte[] read( String name ) throws IOException
+    {
+        return readAll( open( name ) );
+    }
+    
+    public static List<String> readLines( String name ) throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( open( name ), "ISO-8859-1" ) );
+        try
+        {
+            String line;
+            while( ( line = reader.readLine() ) != null )
+            {
+                if( line.length() > 0 )
+                    lines.add( line );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return lines;
+    }
+    
+    /**
+     * Generates a ROM image in the work folder, from the header fixture in the same byte order.
+     * 
+     * @param format "z64", "v64", or "n64".
+     * @param size The size of the image in bytes; a multiple of four, like a real ROM.
+     * 
+     * @return The ROM file.
+     */
+    public static File createRom( String format, int size, File workDir ) throws IOException
+    {
+        byte[] header = read( "header.z64" );
+        byte[] image = new byte[size];
+        new Random( SEED ).nextBytes( image );
+        System.arraycopy( header, 0, image, 0, header.length );
+        
+        if( "v64".equals( format ) )
+        {
+            for( int i = 0; i < image.length; i += 2 )
+                swap( image, i, i + 1 );
+        }
+        else if( "n64".equals( format ) )
+        {
+            for( int i = 0; i < image.length; i += 4 )
+            {
+                swap( image, i, i + 3 );
+                swap( image, i + 1, i + 2 );
+            }
+        }
+        else if( !"z64".equals( format ) )
+        {
+            throw new IllegalArgumentException( "Unknown ROM format: " + format );
+        }
+        
+        File file = new File( workDir, "rom." + format );
+        write( file, image );
+        return file;
+    }
+    
+    private static InputStream open( String name ) throws IOException
+    {
+        return openResource( "/fixtures/" + name );
+    }
+    
+    private static InputStream openResource( String path ) throws IOException
+    {
+        InputStream in = Fixtures.class.getResourceAsStream( path );
+        if( in == null )
+            throw new IOException( "Missing resource " + path );
+        return in;
+    }
+    
+    private static byte[] readAll( InputStream in ) throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while( ( n = in.read( buffer ) ) > 0 )
+                bytes.write( buffer, 0, n );
+            return bytes.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    private static void write( File file, byte[] data ) throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( data );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private static void swap( byte[] bytes, int i, int j )
+    {
+        byte temp = bytes[i];
+        bytes[i] = bytes[j];
+        bytes[j] = temp;
+    }
+}
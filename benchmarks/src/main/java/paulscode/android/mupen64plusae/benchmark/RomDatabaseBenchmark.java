@@ -0,0 +1,120 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.util.RomDatabase;
+import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
+
+/**
+ * Times the ROM database the way the scan uses it: compiling its index from the ini file, opening it
+ * once compiled, and looking ROMs up by MD5 and by header CRC.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class RomDatabaseBenchmark
+{
+    private File mWorkDir;
+    private File mIniFile;
+    private File mIndexFile;
+    private RomDatabase mDatabase;
+    private List<String> mMd5s;
+    private List<String> mCrcs;
+    private int mIteration = 0;
+    
+    @Setup
+    public void setUp() throws IOException
+    {
+        mWorkDir = Fixtures.createWorkDir();
+        mIniFile = Fixtures.extract( "mupen64plus.ini", mWorkDir );
+        mIndexFile = new File( mIniFile.getAbsolutePath() + ".idx" );
+        mDatabase = new RomDatabase( mIniFile.getAbsolutePath() );
+        
+        // Look up every ROM in the database in turn
+        mMd5s = new ArrayList<String>();
+        mCrcs = new ArrayList<String>();
+        ConfigFile database = new ConfigFile( mIniFile.getAbsolutePath() );
+        for( String md5 : database.keySet() )
+        {
+            ConfigSection section = database.get( md5 );
+            if( ConfigFile.SECTIONLESS_NAME.equals( md5 ) || section.get( "CRC" ) == null )
+                continue;
+            mMd5s.add( md5 );
+            mCrcs.add( section.get( "CRC" ) );
+        }
+        if( mMd5s.isEmpty() )
+            throw new IOException( "No ROMs in the database fixture" );
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        Fixtures.deleteWorkDir( mWorkDir );
+    }
+    
+    @Benchmark
+    public RomDatabase compile()
+    {
+        mIndexFile.delete();
+        return new RomDatabase( mIniFile.getAbsolutePath() );
+    }
+    
+    @Benchmark
+    public RomDatabase open()
+    {
+        return new RomDatabase( mIniFile.getAbsolutePath() );
+    }
+    
+    @Benchmark
+    public RomDetail lookupByMd5()
+    {
+        return mDatabase.lookupByMd5( mMd5s.get( mIteration++ % mMd5s.size() ) );
+    }
+    
+    @Benchmark
+    public RomDetail[] lookupByCrc()
+    {
+        return mDatabase.lookupByCrc( mCrcs.get( mIteration++ % mCrcs.size() ) );
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.task.ComputeMd5Task;
+import paulscode.android.mupen64plusae.util.RomHeaderReader;
+import paulscode.android.mupen64plusae.util.SampledRomHash;
+
+/**
+ * Times hashing a whole ROM in each byte order and at the common cartridge sizes: the full MD5 that
+ * identifies it, the same MD5 computed the way earlier versions did ({@link BaselineRomHash}), and
+ * the sampled hash the scan records to find duplicates cheaply. Divide the size by the time per
+ * operation for the throughput.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class RomHashBenchmark
+{
+    @Param( { "z64", "v64", "n64" } )
+    public String format;
+    
+    /** The ROM size in megabytes. */
+    @Param( { "8", "16", "32", "64" } )
+    public int sizeMb;
+    
+    private File mWorkDir;
+    private File mRom;
+    private int mFormat;
+    
+    @Setup
+    public void setUp() throws IOException
+    {
+        mWorkDir = Fixtures.createWorkDir();
+        mRom = Fixtures.createRom( format, sizeMb * 1024 * 1024, mWorkDir );
+        mFormat = new RomHeaderReader().read( mRom );
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        Fixtures.deleteWorkDir( mWorkDir );
+    }
+    
+    @Benchmark
+    public String computeMd5()
+    {
+        return ComputeMd5Task.computeMd5( mRom );
+    }
+    
+    @Benchmark
+    public String computeMd5Baseline()
+    {
+        return BaselineRomHash.computeMd5( mRom );
+    }
+    
+    @Benchmark
+    public String sampledHash()
+    {
+        return SampledRomHash.compute( mRom, mFormat );
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.util.RomHeader;
+import paulscode.android.mupen64plusae.util.RomHeaderReader;
+
+/**
+ * Times reading ROM headers in each byte order: parsing one already in memory, and reading one
+ * from a file the way the scan does, with and without the reusable reader.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class RomHeaderBenchmark
+{
+    @Param( { "z64", "v64", "n64" } )
+    public String format;
+    
+    private File mWorkDir;
+    private File mFile;
+    private byte[] mHeader;
+    private byte[] mBuffer;
+    private RomHeaderReader mReader;
+    
+    @Setup
+    public void setUp() throws IOException
+    {
+        mWorkDir = Fixtures.createWorkDir();
+        mFile = Fixtures.extract( "header." + format, mWorkDir );
+        mHeader = Fixtures.read( "header." + format );
+        mBuffer = new byte[mHeader.length];
+        mReader = new RomHeaderReader();
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        Fixtures.deleteWorkDir( mWorkDir );
+    }
+    
+    @Benchmark
+    public RomHeader parse()
+    {
+        // Parsing swaps the bytes in place, so each run starts from a fresh copy
+        System.arraycopy( mHeader, 0, mBuffer, 0, mHeader.length );
+        return new RomHeader( mBuffer );
+    }
+    
+    @Benchmark
+    public RomHeader readFile()
+    {
+        return new RomHeader( mFile );
+    }
+    
+    @Benchmark
+    public String readFileReused()
+    {
+        mReader.read( mFile );
+        return mReader.getCrc();
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.task.ComputeMd5Task;
+import paulscode.android.mupen64plusae.util.RomFileWalker;
+import paulscode.android.mupen64plusae.util.RomHeaderReader;
+import paulscode.android.mupen64plusae.util.ScanStats;
+
+/**
+ * Times the file-bound stages of a ROM scan on a synthetic library (see {@link SyntheticRomLibrary}):
+ * walking the folders, reading every header, and hashing every ROM, including the ones inside zip
+ * files. These are the stages CacheRomInfoTask runs on each worker before the database lookup and
+ * the catalog write, which need the device. The library is generated once per trial from a fixed
+ * seed, so every build scans the same bytes.
+ * <p>
+ * Each trial also prints the per-stage summary of its last iteration, in the same form the scan
+ * logs on the device.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ScanBenchmark
+{
+    private static final long SEED = 64;
+    private static final int ROM_COUNT = 48;
+    private static final int ZIP_COUNT = 8;
+    private static final int ENTRIES_PER_ZIP = 4;
+    private static final int ROM_SIZE = 2 * 1024 * 1024;
+    
+    private File mWorkDir;
+    private File mLibraryDir;
+    private ScanStats mStats;
+    
+    @Setup( Level.Trial )
+    public void setUp() throws IOException
+    {
+        mWorkDir = Fixtures.createWorkDir();
+        mLibraryDir = new File( mWorkDir, "library" );
+        SyntheticRomLibrary.generate( mLibraryDir, SEED, ROM_COUNT, ZIP_COUNT, ENTRIES_PER_ZIP,
+                ROM_SIZE );
+    }
+    
+    @Setup( Level.Iteration )
+    public void startStats()
+    {
+        mStats = new ScanStats();
+        mStats.start();
+    }
+    
+    @TearDown( Level.Iteration )
+    public void finishStats()
+    {
+        mStats.finish();
+    }
+    
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        System.out.println();
+        System.out.println( mStats );
+        Fixtures.deleteWorkDir( mWorkDir );
+    }
+    
+    @Benchmark
+    public int walk()
+    {
+        RomFileWalker walker = new RomFileWalker( mLibraryDir, null, RomFileWalker.MEDIA_EXTENSIONS );
+        int count = 0;
+        while( walker.next() != null )
+            count++;
+        return count;
+    }
+    
+    @Benchmark
+    public int scan() throws IOException
+    {
+        RomFileWalker walker = new RomFileWalker( mLibraryDir, null, RomFileWalker.MEDIA_EXTENSIONS );
+        RomHeaderReader header = new RomHeaderReader();
+        int hashCount = 0;
+        File file;
+        long time = System.nanoTime();
+        while( ( file = walker.next() ) != null )
+        {
+            mStats.recordSince( ScanStats.WALK, time );
+            
+            time = System.nanoTime();
+            header.read( file );
+            mStats.recordSince( ScanStats.HEADER, time );
+            if( header.isValid() )
+            {
+                if( ComputeMd5Task.computeMd5( file, mStats ) != null )
+                    hashCount++;
+            }
+            else if( header.isZip() )
+            {
+                hashCount += scanZip( file, header );
+            }
+            time = System.nanoTime();
+        }
+        return hashCount;
+    }
+    
+    private int scanZip( File file, RomHeaderReader header ) throws IOException
+    {
+        long time = System.nanoTime();
+        ZipFile zipFile = new ZipFile( file );
+        mStats.recordSince( ScanStats.INFLATE, time );
+        int hashCount = 0;
+        try
+        {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while( entries.hasMoreElements() )
+            {
+                ZipEntry zipEntry = entries.nextElement();
+                if( zipEntry.isDirectory() )
+                    continue;
+                
+                // Peek at the header the way the scan does, then hash the whole entry
+                InputStream zipStream = new BufferedInputStream( zipFile.getInputStream( zipEntry ) );
+                try
+                {
+                    time = System.nanoTime();
+                    zipStream.mark( RomHeaderReader.HEADER_SIZE );
+                    header.read( zipStream );
+                    zipStream.reset();
+                    mStats.recordSince( ScanStats.HEADER, time );
+                    if( header.isValid() && ComputeMd5Task.computeMd5( zipStream, mStats ) != null )
+                        hashCount++;
+                }
+                finally
+                {
+                    zipStream.close();
+                }
+            }
+        }
+        finally
+        {
+            zipFile.close();
+        }
+        return hashCount;
+    }
+}
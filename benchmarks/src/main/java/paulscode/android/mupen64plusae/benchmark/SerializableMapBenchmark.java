@@ -0,0 +1,94 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.input.map.SerializableMap;
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+
+/**
+ * Times reading and writing the input maps of the shipped controller profiles.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SerializableMapBenchmark
+{
+    private List<String> mMaps;
+    private SerializableMap mMap;
+    private int mIteration = 0;
+    
+    @Setup
+    public void setUp() throws IOException
+    {
+        File workDir = Fixtures.createWorkDir();
+        try
+        {
+            mMaps = new ArrayList<String>();
+            ConfigFile profiles = new ConfigFile( Fixtures.extract( "controller.cfg", workDir )
+                    .getAbsolutePath() );
+            for( String name : profiles.keySet() )
+            {
+                String map = profiles.get( name, "map" );
+                if( map != null && map.length() > 0 )
+                    mMaps.add( map );
+            }
+        }
+        finally
+        {
+            Fixtures.deleteWorkDir( workDir );
+        }
+        if( mMaps.isEmpty() )
+            throw new IOException( "No input maps in the controller fixture" );
+        mMap = new SerializableMap( mMaps.get( 0 ) );
+    }
+    
+    @Benchmark
+    public SerializableMap deserialize()
+    {
+        return new SerializableMap( mMaps.get( mIteration++ % mMaps.size() ) );
+    }
+    
+    @Benchmark
+    public String serialize()
+    {
+        return mMap.serialize();
+    }
+}
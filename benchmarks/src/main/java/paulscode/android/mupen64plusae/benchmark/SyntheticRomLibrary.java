@@ -0,0 +1,265 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import paulscode.android.mupen64plusae.util.RomHeaderReader;
+
+/**
+ * The SyntheticRomLibrary class fills a folder with fake ROMs for benchmarking scans. Each ROM has
+ * a valid header with made-up CRCs and name, and a body of random and repeated blocks so that it
+ * deflates about as well as a real ROM. The ROMs are spread over nested folders in all three byte
+ * orders, some packed into zip files, alongside a few files that aren't ROMs at all.
+ * <p>
+ * The library only depends on its parameters, so every build scans exactly the same bytes. A stamp
+ * file records the parameters, and a library that matches is reused rather than written again.
+ */
+public final class SyntheticRomLibrary
+{
+    private static final String STAMP_NAME = "library.txt";
+    private static final int FOLDER_COUNT = 4;
+    private static final int BLOCK_SIZE = 4096;
+    
+    /** One block in this many is random; the rest repeat a single byte. */
+    private static final int RANDOM_BLOCK_RATIO = 3;
+    
+    private static final int MAGIC_Z64 = 0x80371240;
+    private static final String[] EXTENSIONS = { "z64", "v64", "n64" };
+    
+    private SyntheticRomLibrary()
+    {
+    }
+    
+    /**
+     * Generates a library, unless the folder already holds one with the same parameters.
+     * 
+     * @param dir The folder to fill; anything else in it is deleted.
+     * @param seed The seed of the random contents.
+     * @param romCount The number of loose ROM files.
+     * @param zipCount The number of zip files.
+     * @param entriesPerZip The number of ROMs in each zip file.
+     * @param romSize The size of each ROM, in bytes; rounded up to a multiple of four.
+     * 
+     * @throws IOException If the library could not be written.
+     */
+    public static void generate( File dir, long seed, int romCount, int zipCount, int entriesPerZip,
+            int romSize ) throws IOException
+    {
+        String stamp = String.format( Locale.US, "seed=%d roms=%d zips=%d entries=%d size=%d", seed,
+                romCount, zipCount, entriesPerZip, romSize );
+        File stampFile = new File( dir, STAMP_NAME );
+        if( stampFile.isFile() && stamp.equals( readStamp( stampFile ) ) )
+            return;
+        
+        Fixtures.deleteWorkDir( dir );
+        for( int i = 0; i < FOLDER_COUNT; i++ )
+        {
+            File folder = getFolder( dir, i );
+            if( !folder.mkdirs() && !folder.isDirectory() )
+                throw new IOException( "Could not create " + folder.getAbsolutePath() );
+        }
+        
+        Random random = new Random( seed );
+        byte[] rom = new byte[( romSize + 3 ) & ~3];
+        int romIndex = 0;
+        for( int i = 0; i < romCount; i++, romIndex++ )
+        {
+            int format = romIndex % EXTENSIONS.length;
+            String name = String.format( Locale.US, "Synthetic Game %04d.%s", romIndex,
+                    EXTENSIONS[format] );
+            fillRom( rom, random, romIndex );
+            swapBytes( rom, format );
+            OutputStream out = new BufferedOutputStream( new FileOutputStream( new File( getFolder(
+                    dir, i ), name ) ) );
+            try
+            {
+                out.write( rom );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        
+        for( int i = 0; i < zipCount; i++ )
+        {
+            String name = String.format( Locale.US, "Synthetic Pack %03d.zip", i );
+            ZipOutputStream out = new ZipOutputStream( new BufferedOutputStream(
+                    new FileOutputStream( new File( getFolder( dir, i ), name ) ) ) );
+            try
+            {
+                out.putNextEntry( new ZipEntry( "readme.txt" ) );
+                out.write( name.getBytes( "US-ASCII" ) );
+                out.closeEntry();
+                for( int j = 0; j < entriesPerZip; j++, romIndex++ )
+                {
+                    fillRom( rom, random, romIndex );
+                    out.putNextEntry( new ZipEntry( String.format( Locale.US,
+                            "Synthetic Game %04d.z64", romIndex ) ) );
+                    out.write( rom );
+                    out.closeEntry();
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        
+        // Files that the scan has to open before it can tell they aren't ROMs
+        for( int i = 0; i < FOLDER_COUNT; i++ )
+        {
+            byte[] save = new byte[512];
+            random.nextBytes( save );
+            OutputStream out = new FileOutputStream( new File( getFolder( dir, i ), "save.sra" ) );
+            try
+            {
+                out.write( save );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        
+        // The stamp goes last, so that an interrupted library is generated again
+        OutputStream out = new FileOutputStream( stampFile );
+        try
+        {
+            out.write( stamp.getBytes( "US-ASCII" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private static String readStamp( File stampFile ) throws IOException
+    {
+        byte[] bytes = new byte[(int) stampFile.length()];
+        InputStream in = new FileInputStream( stampFile );
+        try
+        {
+            int count = 0;
+            int n;
+            while( count < bytes.length && ( n = in.read( bytes, count, bytes.length - count ) ) > 0 )
+                count += n;
+            return new String( bytes, 0, count, "US-ASCII" );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    private static File getFolder( File dir, int index )
+    {
+        // Nested unevenly, so the walk isn't a single flat listing
+        int folder = index % FOLDER_COUNT;
+        if( folder == 0 )
+            return dir;
+        return new File( dir, "Set " + folder + ( folder % 2 == 0 ? "/Disc" : "" ) );
+    }
+    
+    /**
+     * Fills a buffer with a big-endian (.z64) ROM image.
+     */
+    private static void fillRom( byte[] rom, Random random, int index )
+    {
+        // Body: mostly runs of one byte, which deflate well, between blocks of noise
+        byte[] block = new byte[BLOCK_SIZE];
+        for( int offset = RomHeaderReader.HEADER_SIZE; offset < rom.length; offset += BLOCK_SIZE )
+        {
+            int length = Math.min( BLOCK_SIZE, rom.length - offset );
+            if( random.nextInt( RANDOM_BLOCK_RATIO ) == 0 )
+            {
+                random.nextBytes( block );
+                System.arraycopy( block, 0, rom, offset, length );
+            }
+            else
+            {
+                byte value = (byte) random.nextInt( 256 );
+                for( int i = offset; i < offset + length; i++ )
+                    rom[i] = value;
+            }
+        }
+        
+        // Header: magic, made-up CRCs, an internal name, and a country code
+        for( int i = 0; i < RomHeaderReader.HEADER_SIZE; i++ )
+            rom[i] = 0;
+        putInt( rom, 0x00, MAGIC_Z64 );
+        putInt( rom, 0x10, random.nextInt() );
+        putInt( rom, 0x14, random.nextInt() );
+        String name = String.format( Locale.US, "%-20s", "SYNTHETIC " + index );
+        for( int i = 0; i < 20; i++ )
+            rom[0x20 + i] = (byte) name.charAt( i );
+        rom[0x3E] = 'E';
+    }
+    
+    /**
+     * Converts a big-endian ROM image to the byte order of a format, in place.
+     * 
+     * @param format 0 for big-endian (.z64), 1 for byte-swapped (.v64), 2 for word-swapped (.n64).
+     */
+    private static void swapBytes( byte[] rom, int format )
+    {
+        if( format == 1 )
+        {
+            for( int i = 0; i + 1 < rom.length; i += 2 )
+            {
+                byte temp = rom[i];
+                rom[i] = rom[i + 1];
+                rom[i + 1] = temp;
+            }
+        }
+        else if( format == 2 )
+        {
+            for( int i = 0; i + 3 < rom.length; i += 4 )
+            {
+                byte temp = rom[i];
+                rom[i] = rom[i + 3];
+                rom[i + 3] = temp;
+                temp = rom[i + 1];
+                rom[i + 1] = rom[i + 2];
+                rom[i + 2] = temp;
+            }
+        }
+    }
+    
+    private static void putInt( byte[] bytes, int offset, int value )
+    {
+        bytes[offset] = (byte) ( value >>> 24 );
+        bytes[offset + 1] = (byte) ( value >>> 16 );
+        bytes[offset + 2] = (byte) ( value >>> 8 );
+        bytes[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package android.os;
+
+/**
+ * Stands in for the Android task class on the desktop, so that tasks with static helpers (e.g.
+ * ComputeMd5Task) compile. Nothing here runs a task.
+ */
+public abstract class AsyncTask<Params, Progress, Result>
+{
+    protected abstract Result doInBackground( Params... params );
+    
+    protected void onPostExecute( Result result )
+    {
+    }
+    
+    protected void onProgressUpdate( Progress... values )
+    {
+    }
+    
+    protected void onCancelled( Result result )
+    {
+    }
+    
+    public final boolean isCancelled()
+    {
+        return false;
+    }
+    
+    protected final void publishProgress( Progress... values )
+    {
+    }
+}
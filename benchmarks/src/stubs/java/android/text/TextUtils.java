@@ -0,0 +1,41 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package android.text;
+
+/**
+ * Stands in for the Android text utilities on the desktop, with the same behavior.
+ */
+public final class TextUtils
+{
+    public static boolean isEmpty( CharSequence str )
+    {
+        return str == null || str.length() == 0;
+    }
+    
+    public static boolean equals( CharSequence a, CharSequence b )
+    {
+        if( a == b )
+            return true;
+        if( a == null || b == null )
+            return false;
+        return a.toString().equals( b.toString() );
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package android.util;
+
+/**
+ * Stands in for the Android logger on the desktop. Messages are dropped, so that logging costs
+ * about what it costs on a device with the log level raised, and the benchmark output stays clean.
+ */
+public final class Log
+{
+    public static int v( String tag, String msg )
+    {
+        return 0;
+    }
+    
+    public static int d( String tag, String msg )
+    {
+        return 0;
+    }
+    
+    public static int i( String tag, String msg )
+    {
+        return 0;
+    }
+    
+    public static int w( String tag, String msg )
+    {
+        return 0;
+    }
+    
+    public static int w( String tag, Throwable tr )
+    {
+        return 0;
+    }
+    
+    public static int w( String tag, String msg, Throwable tr )
+    {
+        return 0;
+    }
+    
+    public static int e( String tag, String msg )
+    {
+        return 0;
+    }
+    
+    public static int e( String tag, String msg, Throwable tr )
+    {
+        return 0;
+    }
+}
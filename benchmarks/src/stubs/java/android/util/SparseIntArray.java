@@ -0,0 +1,135 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package android.util;
+
+/**
+ * Stands in for the Android sparse array on the desktop. Like the original, it keeps its keys
+ * sorted in a plain array and finds them by binary search.
+ */
+public class SparseIntArray
+{
+    private int[] mKeys = new int[10];
+    private int[] mValues = new int[10];
+    private int mSize = 0;
+    
+    public int get( int key )
+    {
+        return get( key, 0 );
+    }
+    
+    public int get( int key, int valueIfKeyNotFound )
+    {
+        int i = binarySearch( key );
+        return i < 0 ? valueIfKeyNotFound : mValues[i];
+    }
+    
+    public void put( int key, int value )
+    {
+        int i = binarySearch( key );
+        if( i >= 0 )
+        {
+            mValues[i] = value;
+            return;
+        }
+        
+        i = ~i;
+        if( mSize == mKeys.length )
+        {
+            int[] keys = new int[mSize * 2];
+            int[] values = new int[mSize * 2];
+            System.arraycopy( mKeys, 0, keys, 0, mSize );
+            System.arraycopy( mValues, 0, values, 0, mSize );
+            mKeys = keys;
+            mValues = values;
+        }
+        System.arraycopy( mKeys, i, mKeys, i + 1, mSize - i );
+        System.arraycopy( mValues, i, mValues, i + 1, mSize - i );
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+    
+    public void delete( int key )
+    {
+        int i = binarySearch( key );
+        if( i >= 0 )
+            removeAt( i );
+    }
+    
+    public void removeAt( int index )
+    {
+        System.arraycopy( mKeys, index + 1, mKeys, index, mSize - index - 1 );
+        System.arraycopy( mValues, index + 1, mValues, index, mSize - index - 1 );
+        mSize--;
+    }
+    
+    public int size()
+    {
+        return mSize;
+    }
+    
+    public int keyAt( int index )
+    {
+        return mKeys[index];
+    }
+    
+    public int valueAt( int index )
+    {
+        return mValues[index];
+    }
+    
+    public int indexOfKey( int key )
+    {
+        return binarySearch( key );
+    }
+    
+    public int indexOfValue( int value )
+    {
+        for( int i = 0; i < mSize; i++ )
+        {
+            if( mValues[i] == value )
+                return i;
+        }
+        return -1;
+    }
+    
+    public void clear()
+    {
+        mSize = 0;
+    }
+    
+    private int binarySearch( int key )
+    {
+        int lo = 0;
+        int hi = mSize - 1;
+        while( lo <= hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+            if( mKeys[mid] < key )
+                lo = mid + 1;
+            else if( mKeys[mid] > key )
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return ~lo;
+    }
+}
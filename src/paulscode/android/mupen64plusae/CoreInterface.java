@@ -143,7 +143,6 @@ public class CoreInterface
         sAppData = new AppData( sActivity );
         sUserPrefs = new UserPrefs( sActivity );
         sGamePrefs = new GamePrefs( sActivity, romMd5, new RomHeader( romPath ) );
-        NativeConfigFiles.syncConfigFiles( sGamePrefs, sUserPrefs, sAppData );
         
         // Make sure various directories exist so that we can write to them
         new File( sGamePrefs.sramDataDir ).mkdirs();
@@ -205,6 +204,9 @@ public class CoreInterface
                 @Override
                 public void run()
                 {
+                    // Write the config files off the UI thread, before the core reads them
+                    NativeConfigFiles.syncConfigFiles( sGamePrefs, sUserPrefs, sAppData );
+                    
                     // Initialize input-android plugin (even if we aren't going to use it)
                     NativeInput.init();
                     NativeInput.setConfig( 0, sGamePrefs.isPlugged1, sUserPrefs.getPakType( 1 ) );
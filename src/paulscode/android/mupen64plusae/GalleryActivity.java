@@ -22,8 +22,12 @@ package paulscode.android.mupen64plusae;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.mupen64plusae.v3.alpha.R;
 
@@ -32,8 +36,8 @@ import paulscode.android.mupen64plusae.dialog.ScanRomsDialog;
 import paulscode.android.mupen64plusae.dialog.ScanRomsDialog.ScanRomsDialogListener;
 import paulscode.android.mupen64plusae.input.DiagnosticActivity;
 import paulscode.android.mupen64plusae.persistent.AppData;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog;
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex.Fingerprint;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import paulscode.android.mupen64plusae.profile.ManageControllerProfilesActivity;
 import paulscode.android.mupen64plusae.profile.ManageEmulationProfilesActivity;
@@ -42,8 +46,25 @@ import paulscode.android.mupen64plusae.task.CacheRomInfoTask;
 import paulscode.android.mupen64plusae.task.CacheRomInfoTask.CacheRomInfoListener;
 import paulscode.android.mupen64plusae.task.ComputeMd5Task;
 import paulscode.android.mupen64plusae.task.ComputeMd5Task.ComputeMd5Listener;
+import paulscode.android.mupen64plusae.task.DeferredMd5Task;
+import paulscode.android.mupen64plusae.task.DeferredMd5Task.DeferredMd5Listener;
+import paulscode.android.mupen64plusae.task.DeferredMd5Task.DeferredRom;
+import paulscode.android.mupen64plusae.task.DeleteDuplicatesTask;
+import paulscode.android.mupen64plusae.task.DeleteDuplicatesTask.DeleteDuplicatesListener;
+import paulscode.android.mupen64plusae.task.ExtractRomTask;
+import paulscode.android.mupen64plusae.task.ExtractRomTask.ExtractRomListener;
+import paulscode.android.mupen64plusae.task.FindDuplicatesTask;
+import paulscode.android.mupen64plusae.task.FindDuplicatesTask.DuplicateGroup;
+import paulscode.android.mupen64plusae.task.FindDuplicatesTask.FindDuplicatesListener;
+import paulscode.android.mupen64plusae.task.UpdateRomsTask;
+import paulscode.android.mupen64plusae.task.UpdateRomsTask.UpdateRomsListener;
 import paulscode.android.mupen64plusae.util.DeviceUtil;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
+import paulscode.android.mupen64plusae.util.FileObserverWatcher;
+import paulscode.android.mupen64plusae.util.LibraryWatcher;
 import paulscode.android.mupen64plusae.util.Notifier;
+import paulscode.android.mupen64plusae.util.RomFileWalker;
+import paulscode.android.mupen64plusae.util.ThumbnailCache;
 import paulscode.android.mupen64plusae.util.Utility;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -51,28 +72,72 @@ import android.app.Activity;
 import android.app.AlertDialog.Builder;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Process;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.EditText;
 import android.widget.GridView;
 
-public class GalleryActivity extends Activity implements OnItemClickListener, ComputeMd5Listener, CacheRomInfoListener
+public class GalleryActivity extends Activity implements OnItemClickListener, ComputeMd5Listener, CacheRomInfoListener,
+        DeferredMd5Listener, FindDuplicatesListener, DeleteDuplicatesListener, UpdateRomsListener
 {
+    /** Fraction of the heap that thumbnails may occupy, e.g. 8 means 1/8th. */
+    private static final int THUMBNAIL_MEMORY_FRACTION = 8;
+    
+    /** Number of threads decoding cover art for the grid. */
+    private static final int ART_DECODER_COUNT = 2;
+    
+    /** How long the ROM folder must be quiet before changes to it are examined. */
+    private static final long WATCHER_QUIET_MS = 2000;
+    
+    /** The longest changes to the ROM folder wait while files keep changing. */
+    private static final long WATCHER_MAX_DELAY_MS = 10000;
+    
     // App data and user preferences
     private AppData mAppData = null;
     private UserPrefs mUserPrefs = null;
     
     // Widgets
     private GridView mGridView;
+    private GalleryItem.Adapter mGridAdapter = null;
+    
+    // Cover art scaled to the grid cells, and the threads decoding it
+    private ThumbnailCache mThumbnails = null;
+    private ExecutorService mArtDecoder = null;
     
-    // Background tasks
+    // ROMs extracted from zip archives
+    private ExtractedRomCache mExtractedRoms = null;
+    
+    // Changes to the ROM folder, and those waiting for the other tasks to finish
+    private LibraryWatcher mLibraryWatcher = null;
+    private final List<File> mPendingChanged = new ArrayList<File>();
+    private final List<File> mPendingRemoved = new ArrayList<File>();
+    
+    // Background tasks, each cleared once it has finished or wound down after being canceled
     private CacheRomInfoTask mCacheRomInfoTask = null;
+    private DeferredMd5Task mDeferredMd5Task = null;
+    private UpdateRomsTask mUpdateRomsTask = null;
+    private FindDuplicatesTask mFindDuplicatesTask = null;
+    private DeleteDuplicatesTask mDeleteDuplicatesTask = null;
+    
+    // The folder to scan, the search to run, and the duplicates to delete once the task writing the
+    // catalog has finished
+    private File mPendingScanDir = null;
+    private boolean mPendingFindDuplicates = false;
+    private List<DuplicateGroup> mPendingDeletions = null;
+    
+    // Whether the gallery is visible; pending tasks wait until it is, so nothing runs during a game
+    private boolean mStarted = false;
     
     @Override
     protected void onNewIntent( Intent intent )
@@ -126,7 +191,56 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
         // Lay out the content
         setContentView( R.layout.gallery_activity );
         mGridView = (GridView) findViewById( R.id.gridview );
-        refreshGrid( new ConfigFile( mUserPrefs.romInfoCache_cfg ) );
+        EditText searchText = (EditText) findViewById( R.id.searchText );
+        searchText.addTextChangedListener( new TextWatcher()
+        {
+            @Override
+            public void afterTextChanged( Editable s )
+            {
+                // Filter the grid on every keystroke
+                if( mGridAdapter != null )
+                    mGridAdapter.setQuery( s.toString() );
+            }
+            
+            @Override
+            public void beforeTextChanged( CharSequence s, int start, int count, int after )
+            {
+            }
+            
+            @Override
+            public void onTextChanged( CharSequence s, int start, int before, int count )
+            {
+            }
+        } );
+        int thumbnailWidth = getResources().getDimensionPixelSize( R.dimen.galleryImageWidth );
+        int thumbnailHeight = getResources().getDimensionPixelSize( R.dimen.galleryImageHeight );
+        mThumbnails = new ThumbnailCache( new File( mUserPrefs.coverArtThumbnailDir ), thumbnailWidth,
+                thumbnailHeight, Runtime.getRuntime().maxMemory() / THUMBNAIL_MEMORY_FRACTION );
+        mArtDecoder = Executors.newFixedThreadPool( ART_DECODER_COUNT, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( final Runnable r )
+            {
+                return new Thread( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // Keep decoding from competing with scrolling
+                        Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+                        r.run();
+                    }
+                }, "ArtDecoder" );
+            }
+        } );
+        mGridAdapter = new GalleryItem.Adapter( this, mThumbnails, mArtDecoder );
+        mGridView.setAdapter( mGridAdapter );
+        mGridView.setOnItemClickListener( this );
+        
+        // The catalog is opened off the UI thread, since the first run migrates the legacy cache
+        mGridAdapter.load( mUserPrefs.romCatalog_dat, mUserPrefs.romInfoCache_cfg );
+        mExtractedRoms = new ExtractedRomCache( new File( mUserPrefs.unzippedRomsDir ),
+                mUserPrefs.unzippedRomsMaxBytes );
         
         // Popup a warning if the installation appears to be corrupt
         if( !mAppData.isValidInstallation )
@@ -137,16 +251,47 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
         }
     }
     
+    @Override
+    protected void onStart()
+    {
+        super.onStart();
+        mStarted = true;
+        
+        // Only follow the ROM folder while the gallery is visible
+        startLibraryWatcher();
+        
+        // Run whatever was left waiting when the gallery was stopped
+        startPendingTasks();
+    }
+    
+    @Override
     protected void onStop()
     {
         super.onStop();
+        mStarted = false;
+        
+        // Stop following the ROM folder, so nothing is hashed while a game is running
+        stopLibraryWatcher();
+        mPendingChanged.clear();
+        mPendingRemoved.clear();
         
         // Cancel long-running background tasks
         if( mCacheRomInfoTask != null )
-        {
             mCacheRomInfoTask.cancel( false );
-            mCacheRomInfoTask = null;
-        }
+        cancelDeferredMd5Task();
+        if( mUpdateRomsTask != null )
+            mUpdateRomsTask.cancel( false );
+        if( mFindDuplicatesTask != null )
+            mFindDuplicatesTask.cancel( false );
+        mPendingFindDuplicates = false;
+        Log.i( "GalleryActivity", mThumbnails.toString() );
+    }
+    
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        mArtDecoder.shutdownNow();
     }
     
     @Override
@@ -164,6 +309,9 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
             case R.id.menuItem_refreshRoms:
                 promptSearchPath( null );
                 return true;
+            case R.id.menuItem_findDuplicates:
+                findDuplicates();
+                return true;
             case R.id.menuItem_globalSettings:
                 startActivity( new Intent( this, SettingsGlobalActivity.class ) );
                 return true;
@@ -214,13 +362,30 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
     @Override
     public void onItemClick( AdapterView<?> parent, View view, int position, long id )
     {
-        GalleryItem item = (GalleryItem) parent.getItemAtPosition( position );
+        final GalleryItem item = (GalleryItem) parent.getItemAtPosition( position );
         if( item == null )
             Log.e( "GalleryActivity", "No item selected" );
-        else if( item.romFile == null )
-            Log.e( "GalleryActivity", "No ROM file available" );
-        else
+        else if( item.romFile != null )
             launchPlayMenuActivity( item.romFile.getAbsolutePath(), item.md5 );
+        else if( item.zipFile != null && item.zipFile.exists() )
+        {
+            // Zipped ROMs are identified during the scan but only extracted when launched
+            Notifier.showToast( this, String.format( getString( R.string.toast_loadingGameInfo ) ) );
+            new ExtractRomTask( item.zipFile, item.zipEntryName, item.md5, mExtractedRoms,
+                    new ExtractRomListener()
+                    {
+                        @Override
+                        public void onExtractRomFinished( File romFile )
+                        {
+                            if( romFile == null )
+                                Notifier.showToast( GalleryActivity.this, R.string.toast_nativeMainFailure07 );
+                            else
+                                launchPlayMenuActivity( romFile.getAbsolutePath(), item.md5 );
+                        }
+                    } ).execute();
+        }
+        else
+            Log.e( "GalleryActivity", "No ROM file available" );
     }
     
     private void launchPlayMenuActivity( final String romPath )
@@ -257,15 +422,17 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
                 mUserPrefs.getSearchZips(),
                 mUserPrefs.getDownloadArt(),
                 mUserPrefs.getClearGallery(),
+                mUserPrefs.getQuickScan(),
                 new ScanRomsDialogListener()
                 {
                     @Override
                     public void onDialogClosed( File file, int which, boolean searchZips,
-                            boolean downloadArt, boolean clearGallery )
+                            boolean downloadArt, boolean clearGallery, boolean quickScan )
                     {
                         mUserPrefs.putSearchZips( searchZips );
                         mUserPrefs.putDownloadArt( downloadArt );
                         mUserPrefs.putClearGallery( clearGallery );
+                        mUserPrefs.putQuickScan( quickScan );
                         if( which == DialogInterface.BUTTON_POSITIVE )
                         {
                             refreshRoms( file );
@@ -284,41 +451,276 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
     
     private void refreshRoms( final File startDir )
     {
-        // Asynchronously search for ROMs
-        mCacheRomInfoTask = new CacheRomInfoTask( this, startDir,
-                mAppData.mupen64plus_ini, mUserPrefs.romInfoCache_cfg, mUserPrefs.coverArtDir, mUserPrefs.unzippedRomsDir,
-                mUserPrefs.getSearchZips(), mUserPrefs.getDownloadArt(), mUserPrefs.getClearGallery(),this );
-        mCacheRomInfoTask.execute();
+        // Watch the folder for ROMs added after the scan
+        File searchDir = startDir.isDirectory() ? startDir : startDir.getParentFile();
+        if( searchDir != null )
+        {
+            mUserPrefs.putSearchPath( searchDir.getAbsolutePath() );
+            startLibraryWatcher();
+        }
+        
+        // Asynchronously search for ROMs, once any verification still pending from the last scan
+        // has stopped
+        mPendingScanDir = startDir;
+        cancelDeferredMd5Task();
+        startPendingTasks();
     }
     
     @Override
-    public void onCacheRomInfoProgress( ConfigSection section )
+    public void onCacheRomInfoProgress( GalleryCatalog.Entry entry )
     {
+        // Show each ROM as soon as it is identified
+        if( mGridAdapter != null )
+            mGridAdapter.put( entry );
     }
     
     @Override
-    public void onCacheRomInfoFinished( ConfigFile config, boolean canceled )
+    public void onCacheRomInfoFinished( GalleryCatalog catalog, boolean canceled )
     {
+        List<DeferredRom> deferredRoms = mCacheRomInfoTask == null ? null : mCacheRomInfoTask
+                .getDeferredRoms();
         mCacheRomInfoTask = null;
-        refreshGrid( config );
+        refreshGrid( catalog );
+        
+        // Compute the MD5s skipped by a quick scan now that the gallery is populated
+        if( !canceled && deferredRoms != null && !deferredRoms.isEmpty() && mPendingScanDir == null
+                && !mPendingFindDuplicates )
+        {
+            mDeferredMd5Task = new DeferredMd5Task( deferredRoms, mAppData.mupen64plus_ini,
+                    mUserPrefs.romCatalog_dat, mUserPrefs.romFingerprints_txt,
+                    mUserPrefs.coverArtDir, this );
+            executeInParallel( mDeferredMd5Task );
+        }
+        startPendingTasks();
+    }
+    
+    @Override
+    public void onDeferredMd5Finished( GalleryCatalog catalog )
+    {
+        mDeferredMd5Task = null;
+        if( catalog != null )
+            refreshGrid( catalog );
+        startPendingTasks();
+    }
+    
+    private void startLibraryWatcher()
+    {
+        stopLibraryWatcher();
+        String searchPath = mUserPrefs.getSearchPath();
+        if( TextUtils.isEmpty( searchPath ) || !new File( searchPath ).isDirectory() )
+            return;
+        
+        // Zip files are only worth examining if scans search them
+        Set<String> excludedExtensions = new HashSet<String>( RomFileWalker.MEDIA_EXTENSIONS );
+        if( !mUserPrefs.getSearchZips() )
+            excludedExtensions.add( "zip" );
+        mLibraryWatcher = new LibraryWatcher( new FileObserverWatcher(), excludedExtensions,
+                WATCHER_QUIET_MS, WATCHER_MAX_DELAY_MS, new LibraryWatcher.Listener()
+                {
+                    @Override
+                    public void onLibraryChanged( final List<File> changed, final List<File> removed )
+                    {
+                        Log.i( "GalleryActivity", changed.size() + " files changed, " + removed.size()
+                                + " removed" );
+                        runOnUiThread( new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                // Drop batches that arrive after the gallery was stopped
+                                if( mLibraryWatcher == null )
+                                    return;
+                                mPendingChanged.addAll( changed );
+                                mPendingRemoved.addAll( removed );
+                                startPendingTasks();
+                            }
+                        } );
+                    }
+                } );
+        
+        // The tree is walked on the watcher's thread, since it may span the whole sdcard
+        mLibraryWatcher.start( new File( searchPath ) );
+    }
+    
+    private void stopLibraryWatcher()
+    {
+        if( mLibraryWatcher != null )
+            mLibraryWatcher.shutdown();
+        mLibraryWatcher = null;
+    }
+    
+    private void startPendingTasks()
+    {
+        // A canceled task winds down after the gallery has stopped; what it leaves waits for onStart
+        if( !mStarted )
+            return;
+        
+        // Tasks writing the catalog and the fingerprint index take turns, since each saves what it
+        // loaded over what the others saved; whatever is pending waits for the one running
+        if( mCacheRomInfoTask != null || mDeferredMd5Task != null || mUpdateRomsTask != null
+                || mFindDuplicatesTask != null || mDeleteDuplicatesTask != null )
+            return;
+        
+        if( mPendingScanDir != null )
+        {
+            mCacheRomInfoTask = new CacheRomInfoTask( this, mPendingScanDir,
+                    mAppData.mupen64plus_ini, mUserPrefs.romCatalog_dat, mUserPrefs.romFingerprints_txt,
+                    mUserPrefs.scanCheckpoint_txt, mUserPrefs.coverArtDir,
+                    mUserPrefs.coverArtFailures_txt,
+                    mUserPrefs.getSearchZips(), mUserPrefs.getDownloadArt(), mUserPrefs.getClearGallery(),
+                    mUserPrefs.getQuickScan(), this );
+            mPendingScanDir = null;
+            mCacheRomInfoTask.execute();
+            return;
+        }
+        
+        // Changes go first, so that the search sees the files as they are now
+        if( !mPendingChanged.isEmpty() || !mPendingRemoved.isEmpty() )
+        {
+            mUpdateRomsTask = new UpdateRomsTask( new ArrayList<File>( mPendingChanged ),
+                    new ArrayList<File>( mPendingRemoved ), mAppData.mupen64plus_ini,
+                    mUserPrefs.romCatalog_dat, mUserPrefs.romFingerprints_txt, mUserPrefs.coverArtDir,
+                    mUserPrefs.coverArtFailures_txt, mUserPrefs.getSearchZips(),
+                    mUserPrefs.getDownloadArt(), this );
+            mPendingChanged.clear();
+            mPendingRemoved.clear();
+            executeInParallel( mUpdateRomsTask );
+            return;
+        }
+        
+        if( mPendingDeletions != null )
+        {
+            mDeleteDuplicatesTask = new DeleteDuplicatesTask( mPendingDeletions,
+                    mUserPrefs.romFingerprints_txt, this );
+            mPendingDeletions = null;
+            executeInParallel( mDeleteDuplicatesTask );
+            return;
+        }
+        
+        if( mPendingFindDuplicates )
+        {
+            mFindDuplicatesTask = new FindDuplicatesTask( this, mUserPrefs.romFingerprints_txt,
+                    mUserPrefs.romCatalog_dat, this );
+            mPendingFindDuplicates = false;
+            mFindDuplicatesTask.execute();
+        }
+    }
+    
+    @Override
+    public void onUpdateRomsProgress( GalleryCatalog.Entry entry )
+    {
+        if( mGridAdapter != null )
+            mGridAdapter.put( entry );
+    }
+    
+    @Override
+    public void onUpdateRomsFinished( List<String> removedMd5s )
+    {
+        mUpdateRomsTask = null;
+        if( mGridAdapter != null )
+        {
+            for( String md5 : removedMd5s )
+                mGridAdapter.remove( md5 );
+        }
+        startPendingTasks();
+    }
+    
+    private void findDuplicates()
+    {
+        // The search saves the MD5s it computes to the fingerprint index, so it waits its turn;
+        // the deferred hashing is the one task the user would otherwise wait on for long
+        mPendingFindDuplicates = true;
+        cancelDeferredMd5Task();
+        startPendingTasks();
     }
     
-    private void refreshGrid( ConfigFile config )
+    @Override
+    public void onFindDuplicatesFinished( final List<DuplicateGroup> duplicates )
     {
-        List<GalleryItem> items = new ArrayList<GalleryItem>();
-        for( String md5 : config.keySet() )
+        mFindDuplicatesTask = null;
+        startPendingTasks();
+        
+        if( duplicates == null )
+            return;
+        if( duplicates.isEmpty() )
+        {
+            Notifier.showToast( this, R.string.toast_noDuplicates );
+            return;
+        }
+        
+        // List each ROM with the copy being kept first
+        StringBuilder message = new StringBuilder();
+        long bytes = 0;
+        for( DuplicateGroup group : duplicates )
+        {
+            message.append( getDuplicateName( group.keep ) ).append( '\n' );
+            for( Fingerprint extra : group.extras )
+                message.append( "    " ).append( getDuplicateName( extra ) ).append( '\n' );
+            message.append( '\n' );
+            bytes += group.getReclaimableBytes();
+        }
+        
+        String title = getString( R.string.duplicates_title, duplicates.size() );
+        Builder builder = new Builder( this ).setTitle( title ).setMessage( message.toString().trim() )
+                .setNegativeButton( android.R.string.cancel, null );
+        if( bytes > 0 )
         {
-            if( !ConfigFile.SECTIONLESS_NAME.equals( md5 ) )
+            String delete = getString( R.string.duplicates_delete, bytes / ( 1024 * 1024 ) );
+            builder.setPositiveButton( delete, new DialogInterface.OnClickListener()
             {
-                String goodName = config.get( md5, "goodName" );
-                String romPath = config.get( md5, "romPath" );
-                String artPath = config.get( md5, "artPath" );
-                items.add( new GalleryItem( this, md5, goodName, romPath, artPath ) );
-            }
+                @Override
+                public void onClick( DialogInterface dialog, int which )
+                {
+                    deleteDuplicates( duplicates );
+                }
+            } );
         }
-        Collections.sort( items );
-        mGridView.setAdapter( new GalleryItem.Adapter( this, R.id.text1, items ) );
-        mGridView.setOnItemClickListener( this );
+        builder.create().show();
+    }
+    
+    private void deleteDuplicates( List<DuplicateGroup> duplicates )
+    {
+        // The deletions drop the files from the fingerprint index, so they wait their turn too
+        mPendingDeletions = duplicates;
+        cancelDeferredMd5Task();
+        startPendingTasks();
+    }
+    
+    @Override
+    public void onDeleteDuplicatesFinished( int count )
+    {
+        mDeleteDuplicatesTask = null;
+        Notifier.showToast( this, R.string.toast_duplicatesDeleted, count );
+        startPendingTasks();
+    }
+    
+    private static String getDuplicateName( Fingerprint fingerprint )
+    {
+        return fingerprint.zipEntryName == null ? fingerprint.path : fingerprint.path + " ("
+                + fingerprint.zipEntryName + ")";
+    }
+    
+    private void cancelDeferredMd5Task()
+    {
+        // The task saves what it hashed so far, then calls back so the next task can start
+        if( mDeferredMd5Task != null )
+            mDeferredMd5Task.cancel( false );
+    }
+    
+    @TargetApi( 11 )
+    private static void executeInParallel( AsyncTask<Void, ?, ?> task )
+    {
+        // Don't hold up the serial executor, which runs the tasks the user is waiting on
+        if( AppData.IS_HONEYCOMB )
+            task.executeOnExecutor( AsyncTask.THREAD_POOL_EXECUTOR );
+        else
+            task.execute();
+    }
+    
+    private void refreshGrid( GalleryCatalog catalog )
+    {
+        // The adapter keeps showing the old entries until the new ones are sorted
+        mGridAdapter.load( catalog );
     }
     
     private void popupFaq()
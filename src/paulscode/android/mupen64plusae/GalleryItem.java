@@ -21,17 +21,30 @@
 package paulscode.android.mupen64plusae;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.mupen64plusae.v3.alpha.R;
 
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog;
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog.Entry;
+import paulscode.android.mupen64plusae.util.RomSearchIndex;
+import paulscode.android.mupen64plusae.util.ThumbnailCache;
 import android.content.Context;
-import android.graphics.drawable.BitmapDrawable;
+import android.graphics.Bitmap;
+import android.os.Handler;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
@@ -40,19 +53,26 @@ public class GalleryItem implements Comparable<GalleryItem>
     public final String md5;
     public final String goodName;
     public final File romFile;
-    public final BitmapDrawable artBitmap;
+    public final File zipFile;
+    public final String zipEntryName;
+    public final String artPath;
     
-    public GalleryItem( Context context, String md5, String goodName, String romPath, String artPath )
+    public GalleryItem( String md5, String goodName, String romPath, String zipPath,
+            String zipEntryName, String artPath )
     {
         this.md5 = md5;
         this.goodName = goodName;
+        this.zipEntryName = zipEntryName;
+        this.artPath = artPath;
         
         romFile = TextUtils.isEmpty( romPath ) ? null : new File( romPath );
-        
-        if( !TextUtils.isEmpty( artPath ) && new File( artPath ).exists() )
-            artBitmap = new BitmapDrawable( context.getResources(), artPath );
-        else
-            artBitmap = null;
+        zipFile = TextUtils.isEmpty( zipPath ) || TextUtils.isEmpty( zipEntryName ) ? null : new File( zipPath );
+    }
+    
+    public GalleryItem( Entry entry )
+    {
+        this( entry.md5, entry.getGoodName(), entry.getRomPath(), entry.getZipPath(),
+                entry.getZipEntryName(), entry.getArtPath() );
     }
     
     @Override
@@ -63,23 +83,284 @@ public class GalleryItem implements Comparable<GalleryItem>
     
     @Override
     public String toString()
+    {
+        return getDisplayName( goodName, romFile == null ? null : romFile.getName(), zipFile == null ? null
+                : zipEntryName );
+    }
+    
+    private static String getDisplayName( Entry entry )
+    {
+        String romPath = entry.getRomPath();
+        String zipEntryName = TextUtils.isEmpty( entry.getZipPath() ) ? null : entry.getZipEntryName();
+        return getDisplayName( entry.getGoodName(), TextUtils.isEmpty( romPath ) ? null : new File(
+                romPath ).getName(), zipEntryName );
+    }
+    
+    private static String getDisplayName( String goodName, String romName, String zipEntryName )
     {
         if( !TextUtils.isEmpty( goodName ) )
             return goodName;
-        else if( romFile != null && !TextUtils.isEmpty( romFile.getName() ) )
-            return romFile.getName();
+        else if( !TextUtils.isEmpty( romName ) )
+            return romName;
+        else if( !TextUtils.isEmpty( zipEntryName ) )
+            return new File( zipEntryName ).getName();
         else
             return "unknown file";
     }
     
-    public static class Adapter extends ArrayAdapter<GalleryItem>
+    /**
+     * Presents the entries of the ROM catalog as a grid. Items are only created for the cells
+     * that are actually shown, and their cover art is loaded on a background decoder pool. Requests
+     * for cells that are scrolled away before their art arrives are canceled.
+     * <p>
+     * The grid can be narrowed to the entries matching a search query; see {@link RomSearchIndex}.
+     * <p>
+     * Sorting the catalog decodes every entry, so it is sorted and indexed on a background thread,
+     * while the grid keeps showing what it showed before. Entries added or removed one at a time,
+     * as a scan finds them, are shown in batches rather than one by one.
+     */
+    public static class Adapter extends BaseAdapter
     {
+        private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>()
+        {
+            @Override
+            public int compare( Entry lhs, Entry rhs )
+            {
+                return getDisplayName( lhs ).compareToIgnoreCase( getDisplayName( rhs ) );
+            }
+        };
+        
         private final Context mContext;
+        private final ThumbnailCache mThumbnails;
+        private final ExecutorService mDecoder;
+        private final Handler mHandler = new Handler();
+        
+        /** How long added and removed entries are collected before the grid is redrawn. */
+        private static final long CHANGE_BATCH_MS = 250;
+        
+        /** Entries of the ROM catalog, sorted by display name. */
+        private List<Entry> mEntries = new ArrayList<Entry>();
+        
+        /** Entries matching the search query, in the same order; the same list if there is none. */
+        private List<Entry> mVisibleEntries = mEntries;
+        
+        private RomSearchIndex mSearchIndex = new RomSearchIndex();
+        private String mQuery = null;
+        
+        /** Items created so far, mapped by MD5. */
+        private final HashMap<String, GalleryItem> mItems = new HashMap<String, GalleryItem>();
+        
+        /** Changes not shown yet, mapped by MD5: the new entry, or null if the entry was removed. */
+        private final LinkedHashMap<String, Entry> mChanges = new LinkedHashMap<String, Entry>();
+        private boolean mChangesPosted = false;
+        
+        /** Number of loads started and finished, so that only the latest load is shown. */
+        private int mLoadsStarted = 0;
+        private int mLoadsFinished = 0;
+        
+        private final Runnable mApplyChanges = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mChangesPosted = false;
+                
+                // Changes made during a load are applied on top of it once it finishes
+                if( mLoadsFinished == mLoadsStarted )
+                    applyChanges();
+            }
+        };
         
-        public Adapter( Context context, int textViewResourceId, List<GalleryItem> objects )
+        public Adapter( Context context, ThumbnailCache thumbnails, ExecutorService decoder )
         {
-            super( context, textViewResourceId, objects );
             mContext = context;
+            mThumbnails = thumbnails;
+            mDecoder = decoder;
+        }
+        
+        /**
+         * Replaces the entries with those of a catalog. The current entries stay shown until the
+         * new ones have been sorted and indexed in the background.
+         * 
+         * @param catalog The ROM catalog.
+         */
+        public void load( GalleryCatalog catalog )
+        {
+            load( catalog, null, null );
+        }
+        
+        /**
+         * Replaces the entries with those of a catalog file. The file is opened in the background
+         * too, since opening it the first time migrates the legacy ROM info cache.
+         * 
+         * @param filename The path of the ROM catalog.
+         * @param legacyConfigPath The path of the legacy ROM info cache.
+         */
+        public void load( String filename, String legacyConfigPath )
+        {
+            load( null, filename, legacyConfigPath );
+        }
+        
+        private void load( final GalleryCatalog catalog, final String filename,
+                final String legacyConfigPath )
+        {
+            final int load = ++mLoadsStarted;
+            new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    GalleryCatalog source = catalog != null ? catalog : GalleryCatalog.open( filename,
+                            legacyConfigPath );
+                    final List<Entry> entries = source.getEntries();
+                    Collections.sort( entries, ENTRY_ORDER );
+                    final RomSearchIndex searchIndex = new RomSearchIndex();
+                    for( Entry entry : entries )
+                        searchIndex.put( entry.md5, entry.getGoodName(), entry.getBaseName(),
+                                entry.getPlayers() );
+                    
+                    mHandler.post( new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            // A later load will replace this one anyway
+                            if( load != mLoadsStarted )
+                                return;
+                            
+                            mLoadsFinished = load;
+                            mEntries = entries;
+                            mSearchIndex = searchIndex;
+                            mItems.clear();
+                            applyChanges();
+                        }
+                    } );
+                }
+            }, "GalleryLoader" ).start();
+        }
+        
+        /**
+         * Shows only the entries matching a search query.
+         * 
+         * @param query The query, or null or empty to show every entry.
+         */
+        public void setQuery( String query )
+        {
+            mQuery = TextUtils.isEmpty( query ) || TextUtils.isEmpty( query.trim() ) ? null : query;
+            applyQuery();
+            notifyDataSetChanged();
+        }
+        
+        private void applyChanges()
+        {
+            if( mChanges.isEmpty() )
+            {
+                applyQuery();
+                notifyDataSetChanged();
+                return;
+            }
+            
+            // Drop the old version of every changed entry in one pass, then insert the new ones
+            List<Entry> entries = new ArrayList<Entry>( mEntries.size() + mChanges.size() );
+            for( Entry entry : mEntries )
+            {
+                if( !mChanges.containsKey( entry.md5 ) )
+                    entries.add( entry );
+            }
+            for( Map.Entry<String, Entry> change : mChanges.entrySet() )
+            {
+                String md5 = change.getKey();
+                Entry entry = change.getValue();
+                mItems.remove( md5 );
+                if( entry == null )
+                {
+                    mSearchIndex.remove( md5 );
+                    continue;
+                }
+                
+                int index = Collections.binarySearch( entries, entry, ENTRY_ORDER );
+                entries.add( index < 0 ? -index - 1 : index, entry );
+                mSearchIndex.put( md5, entry.getGoodName(), entry.getBaseName(), entry.getPlayers() );
+            }
+            mChanges.clear();
+            mEntries = entries;
+            applyQuery();
+            notifyDataSetChanged();
+        }
+        
+        private void postChanges()
+        {
+            if( !mChangesPosted )
+            {
+                mChangesPosted = true;
+                mHandler.postDelayed( mApplyChanges, CHANGE_BATCH_MS );
+            }
+        }
+        
+        private void applyQuery()
+        {
+            if( mQuery == null )
+            {
+                mVisibleEntries = mEntries;
+                return;
+            }
+            
+            RomSearchIndex.Result result = mSearchIndex.search( mQuery );
+            mVisibleEntries = new ArrayList<Entry>( result.size() );
+            for( Entry entry : mEntries )
+            {
+                if( result.contains( entry.md5 ) )
+                    mVisibleEntries.add( entry );
+            }
+        }
+        
+        /**
+         * Adds an entry to the grid, or replaces the entry with the same MD5. The grid shows it
+         * with the other entries changed in the meantime.
+         * 
+         * @param entry The new entry of the ROM catalog.
+         */
+        public void put( Entry entry )
+        {
+            mChanges.put( entry.md5, entry );
+            postChanges();
+        }
+        
+        /**
+         * Removes an entry from the grid, if it is shown. The grid drops it with the other entries
+         * changed in the meantime.
+         * 
+         * @param md5 The MD5 of the entry.
+         */
+        public void remove( String md5 )
+        {
+            mChanges.put( md5, null );
+            postChanges();
+        }
+        
+        @Override
+        public int getCount()
+        {
+            return mVisibleEntries.size();
+        }
+        
+        @Override
+        public GalleryItem getItem( int position )
+        {
+            Entry entry = mVisibleEntries.get( position );
+            GalleryItem item = mItems.get( entry.md5 );
+            if( item == null )
+            {
+                item = new GalleryItem( entry );
+                mItems.put( entry.md5, item );
+            }
+            return item;
+        }
+        
+        @Override
+        public long getItemId( int position )
+        {
+            return position;
         }
         
         @Override
@@ -95,10 +376,7 @@ public class GalleryItem implements Comparable<GalleryItem>
             if( item != null )
             {
                 ImageView artView = (ImageView) view.findViewById( R.id.imageArt );
-                if( item.artBitmap != null )
-                    artView.setImageDrawable( item.artBitmap );
-                else
-                    artView.setImageResource( R.drawable.default_coverart );
+                loadArt( artView, item.artPath );
                 
                 TextView tv1 = (TextView) view.findViewById( R.id.text1 );
                 tv1.setText( item.toString() );
@@ -106,5 +384,83 @@ public class GalleryItem implements Comparable<GalleryItem>
             
             return view;
         }
+        
+        private void loadArt( ImageView artView, String artPath )
+        {
+            // Cancel whatever this recycled view was still loading, unless it's the same art
+            ArtRequest previous = (ArtRequest) artView.getTag();
+            if( previous != null )
+            {
+                if( previous.artPath.equals( artPath ) )
+                    return;
+                previous.cancel();
+                artView.setTag( null );
+            }
+            
+            Bitmap thumbnail = mThumbnails.getCached( artPath );
+            if( thumbnail != null )
+            {
+                artView.setImageBitmap( thumbnail );
+            }
+            else
+            {
+                artView.setImageResource( R.drawable.default_coverart );
+                if( !TextUtils.isEmpty( artPath ) )
+                {
+                    ArtRequest request = new ArtRequest( artView, artPath );
+                    artView.setTag( request );
+                    request.future = mDecoder.submit( request );
+                }
+            }
+        }
+        
+        /**
+         * Loads the art of one grid cell on the decoder pool and hands it back to the UI thread.
+         */
+        private class ArtRequest implements Runnable
+        {
+            public final ImageView artView;
+            public final String artPath;
+            public Future<?> future = null;
+            private volatile boolean mCanceled = false;
+            
+            public ArtRequest( ImageView artView, String artPath )
+            {
+                this.artView = artView;
+                this.artPath = artPath;
+            }
+            
+            public void cancel()
+            {
+                mCanceled = true;
+                if( future != null )
+                    future.cancel( false );
+            }
+            
+            @Override
+            public void run()
+            {
+                if( mCanceled )
+                    return;
+                
+                final Bitmap thumbnail = mThumbnails.get( artPath );
+                if( thumbnail == null || mCanceled )
+                    return;
+                
+                mHandler.post( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // The view may have been recycled for another item in the meantime
+                        if( !mCanceled && artView.getTag() == ArtRequest.this )
+                        {
+                            artView.setImageBitmap( thumbnail );
+                            artView.setTag( null );
+                        }
+                    }
+                } );
+            }
+        }
     }
 }
@@ -10,15 +10,27 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+/**
+ * A dialog showing the progress of a task. The setters may be called from any thread, as often as
+ * the task likes: each one only records the latest state, and the views are brought up to date on
+ * the UI thread at most once per {@link #PUBLISH_INTERVAL_MS}, however many changes were made in
+ * between.
+ */
 public class ProgressDialog implements OnClickListener
 {
     private static final float PROGRESS_PRECISION = 1000f;
     
+    /** The shortest time between two updates of the views, about one display frame. */
+    private static final long PUBLISH_INTERVAL_MS = 16;
+    
     private final Activity mActivity;
     private final AsyncTask<?, ?, ?> mTask;
     private final TextView mTextProgress;
@@ -29,10 +41,33 @@ public class ProgressDialog implements OnClickListener
     private final AlertDialog mDialog;
     private final AlertDialog mAbortDialog;
     
+    private final Handler mHandler = new Handler( Looper.getMainLooper() );
+    
+    private final Runnable mPublisher = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            publish();
+        }
+    };
+    
+    // The latest state, guarded by this dialog, and which parts changed since the last update
+    private CharSequence mText = null;
+    private CharSequence mSubtext = null;
+    private CharSequence mMessage = null;
+    private int mMessageResId = 0;
     private long mMaxProgress = -1;
     private long mMaxSubprogress = -1;
     private long mProgress = 0;
     private long mSubprogress = 0;
+    private boolean mTextChanged = false;
+    private boolean mSubtextChanged = false;
+    private boolean mMessageChanged = false;
+    private boolean mProgressChanged = false;
+    private boolean mSubprogressChanged = false;
+    private boolean mPublishScheduled = false;
+    private long mLastPublishTime = 0;
     
     @SuppressLint( "InflateParams" )
     public ProgressDialog( Activity activity, AsyncTask<?, ?, ?> task, CharSequence title,
@@ -69,6 +104,7 @@ public class ProgressDialog implements OnClickListener
     
     public void dismiss()
     {
+        mHandler.removeCallbacks( mPublisher );
         mAbortDialog.dismiss();
         mDialog.dismiss();
     }
@@ -99,117 +135,180 @@ public class ProgressDialog implements OnClickListener
         return builder;
     }
     
-    public void setText( final CharSequence text )
+    public void setText( CharSequence text )
     {
-        mActivity.runOnUiThread( new Runnable()
+        synchronized( this )
         {
-            @Override
-            public void run()
-            {
-                mTextProgress.setText( text );
-            }
-        } );
+            mText = text;
+            mTextChanged = true;
+            schedulePublish();
+        }
     }
     
-    public void setSubtext( final CharSequence text )
+    public void setSubtext( CharSequence text )
     {
-        mActivity.runOnUiThread( new Runnable()
+        synchronized( this )
         {
-            @Override
-            public void run()
-            {
-                mTextSubprogress.setText( text );
-            }
-        } );
+            mSubtext = text;
+            mSubtextChanged = true;
+            schedulePublish();
+        }
     }
     
-    public void setMessage( final CharSequence text )
+    public void setMessage( CharSequence text )
     {
-        mActivity.runOnUiThread( new Runnable()
+        synchronized( this )
         {
-            @Override
-            public void run()
-            {
-                mTextMessage.setText( text );
-            }
-        } );
+            mMessage = text;
+            mMessageResId = 0;
+            mMessageChanged = true;
+            schedulePublish();
+        }
     }
     
-    public void setMessage( final int resid )
+    public void setMessage( int resid )
     {
-        mActivity.runOnUiThread( new Runnable()
+        synchronized( this )
         {
-            @Override
-            public void run()
-            {
-                mTextMessage.setText( resid );
-            }
-        } );
+            mMessage = null;
+            mMessageResId = resid;
+            mMessageChanged = true;
+            schedulePublish();
+        }
     }
     
-    public void setMaxProgress( final long size )
+    public void setMaxProgress( long size )
     {
-        mActivity.runOnUiThread( new Runnable()
+        synchronized( this )
         {
-            @Override
-            public void run()
-            {
-                mMaxProgress = size;
-                mProgress = 0;
-                mProgressTotal.setProgress( 0 );
-                mProgressTotal.setVisibility( mMaxProgress > 0 ? View.VISIBLE : View.GONE );
-            }
-        } );
+            mMaxProgress = size;
+            mProgress = 0;
+            mProgressChanged = true;
+            schedulePublish();
+        }
     }
     
-    public void setMaxSubprogress( final long size )
+    public void incrementMaxProgress( long inc )
     {
-        mActivity.runOnUiThread( new Runnable()
+        synchronized( this )
         {
-            @Override
-            public void run()
+            mMaxProgress = Math.max( mMaxProgress, 0 ) + inc;
+            mProgressChanged = true;
+            schedulePublish();
+        }
+    }
+    
+    public void setMaxSubprogress( long size )
+    {
+        synchronized( this )
+        {
+            mMaxSubprogress = size;
+            mSubprogress = 0;
+            mSubprogressChanged = true;
+            schedulePublish();
+        }
+    }
+    
+    public void incrementProgress( long inc )
+    {
+        synchronized( this )
+        {
+            if( mMaxProgress > 0 )
             {
-                mMaxSubprogress = size;
-                mSubprogress = 0;
-                mProgressSubtotal.setProgress( 0 );
-                mProgressSubtotal.setVisibility( mMaxSubprogress > 0 ? View.VISIBLE : View.GONE );
+                mProgress += inc;
+                mProgressChanged = true;
+                schedulePublish();
             }
-        } );
+        }
     }
     
-    public void incrementProgress( final long inc )
+    public void incrementSubprogress( long inc )
     {
-        mActivity.runOnUiThread( new Runnable()
+        synchronized( this )
         {
-            @Override
-            public void run()
+            if( mMaxSubprogress > 0 )
             {
-                if( mMaxProgress > 0 )
-                {
-                    mProgress += inc;
-                    int pctProgress = Math.round( ( PROGRESS_PRECISION * mProgress )
-                            / mMaxProgress );
-                    mProgressTotal.setProgress( pctProgress );
-                }
+                mSubprogress += inc;
+                mSubprogressChanged = true;
+                schedulePublish();
             }
-        } );
+        }
+    }
+    
+    /**
+     * Makes sure the views will be updated, no sooner than one interval after the last update.
+     * Must be called while synchronized on this dialog.
+     */
+    private void schedulePublish()
+    {
+        if( mPublishScheduled )
+            return;
+        
+        mPublishScheduled = true;
+        long delay = mLastPublishTime + PUBLISH_INTERVAL_MS - SystemClock.uptimeMillis();
+        mHandler.postDelayed( mPublisher, Math.max( 0, delay ) );
     }
     
-    public void incrementSubprogress( final long inc )
+    /**
+     * Copies the latest state into the views. Runs on the UI thread.
+     */
+    private void publish()
     {
-        mActivity.runOnUiThread( new Runnable()
+        CharSequence text = null;
+        CharSequence subtext = null;
+        CharSequence message = null;
+        int messageResId = 0;
+        boolean textChanged, subtextChanged, messageChanged, progressChanged, subprogressChanged;
+        long maxProgress, progress, maxSubprogress, subprogress;
+        synchronized( this )
         {
-            @Override
-            public void run()
+            mPublishScheduled = false;
+            mLastPublishTime = SystemClock.uptimeMillis();
+            textChanged = mTextChanged;
+            subtextChanged = mSubtextChanged;
+            messageChanged = mMessageChanged;
+            progressChanged = mProgressChanged;
+            subprogressChanged = mSubprogressChanged;
+            mTextChanged = mSubtextChanged = mMessageChanged = false;
+            mProgressChanged = mSubprogressChanged = false;
+            if( textChanged )
+                text = mText;
+            if( subtextChanged )
+                subtext = mSubtext;
+            if( messageChanged )
             {
-                if( mMaxSubprogress > 0 )
-                {
-                    mSubprogress += inc;
-                    int pctSubprogress = Math.round( ( PROGRESS_PRECISION * mSubprogress )
-                            / mMaxSubprogress );
-                    mProgressSubtotal.setProgress( pctSubprogress );
-                }
+                message = mMessage;
+                messageResId = mMessageResId;
             }
-        } );
+            maxProgress = mMaxProgress;
+            progress = mProgress;
+            maxSubprogress = mMaxSubprogress;
+            subprogress = mSubprogress;
+        }
+        
+        if( textChanged )
+            mTextProgress.setText( text );
+        if( subtextChanged )
+            mTextSubprogress.setText( subtext );
+        if( messageChanged )
+        {
+            if( messageResId != 0 )
+                mTextMessage.setText( messageResId );
+            else
+                mTextMessage.setText( message );
+        }
+        if( progressChanged )
+            updateBar( mProgressTotal, progress, maxProgress );
+        if( subprogressChanged )
+            updateBar( mProgressSubtotal, subprogress, maxSubprogress );
+    }
+    
+    private static void updateBar( ProgressBar bar, long progress, long maxProgress )
+    {
+        if( maxProgress > 0 )
+            bar.setProgress( Math.round( ( PROGRESS_PRECISION * progress ) / maxProgress ) );
+        else
+            bar.setProgress( 0 );
+        bar.setVisibility( maxProgress > 0 ? View.VISIBLE : View.GONE );
     }
 }
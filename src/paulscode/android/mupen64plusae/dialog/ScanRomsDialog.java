@@ -35,7 +35,8 @@ public class ScanRomsDialog implements OnClickListener, OnItemClickListener
          * negative button.
          * @param which The DialogInterface button pressed by the user.
          */
-        public void onDialogClosed( File file, int which, boolean searchZips, boolean downloadArt, boolean clearGallery );
+        public void onDialogClosed( File file, int which, boolean searchZips, boolean downloadArt, boolean clearGallery,
+                boolean quickScan );
     }
     
     private final ScanRomsDialogListener mListener;
@@ -44,12 +45,13 @@ public class ScanRomsDialog implements OnClickListener, OnItemClickListener
     private final CheckBox mCheckBox1;
     private final CheckBox mCheckBox2;
     private final CheckBox mCheckBox3;
+    private final CheckBox mCheckBox4;
     private final AlertDialog mDialog;
     private final File mStartPath;
     
     @SuppressLint( "InflateParams" )
     public ScanRomsDialog( Activity activity, File startPath, boolean searchZips, boolean downloadArt, boolean clearGallery,
-            ScanRomsDialogListener listener )
+            boolean quickScan, ScanRomsDialogListener listener )
     {
         mListener = listener;
         
@@ -72,9 +74,11 @@ public class ScanRomsDialog implements OnClickListener, OnItemClickListener
         mCheckBox1 = (CheckBox) layout.findViewById( R.id.checkBox1 );
         mCheckBox2 = (CheckBox) layout.findViewById( R.id.checkBox2 );
         mCheckBox3 = (CheckBox) layout.findViewById( R.id.checkBox3 );
+        mCheckBox4 = (CheckBox) layout.findViewById( R.id.checkBox4 );
         mCheckBox1.setChecked( searchZips );
         mCheckBox2.setChecked( downloadArt );
         mCheckBox3.setChecked( clearGallery );
+        mCheckBox4.setChecked( quickScan );
         
         // Populate the file list
         ListView listView1 = (ListView) layout.findViewById( R.id.listView1 );
@@ -113,13 +117,14 @@ public class ScanRomsDialog implements OnClickListener, OnItemClickListener
         boolean check1 = mCheckBox1.isChecked();
         boolean check2 = mCheckBox2.isChecked();
         boolean check3 = mCheckBox3.isChecked();
+        boolean check4 = mCheckBox4.isChecked();
         dismiss();
         
         if( which >= 0 && which < mNames.size() )
-            mListener.onDialogClosed( new File( mPaths.get( which ) ), which, check1, check2, check3 );
+            mListener.onDialogClosed( new File( mPaths.get( which ) ), which, check1, check2, check3, check4 );
         else if( which == DialogInterface.BUTTON_POSITIVE )
-            mListener.onDialogClosed( mStartPath, which, check1, check2, check3 );
+            mListener.onDialogClosed( mStartPath, which, check1, check2, check3, check4 );
         else
-            mListener.onDialogClosed( null, which, check1, check2, check3 );
+            mListener.onDialogClosed( null, which, check1, check2, check3, check4 );
     }
 }
@@ -27,6 +27,7 @@ import paulscode.android.mupen64plusae.input.AbstractController;
 import paulscode.android.mupen64plusae.input.TouchController;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.profile.Profile;
 import paulscode.android.mupen64plusae.util.Image;
 import paulscode.android.mupen64plusae.util.Utility;
@@ -429,7 +430,7 @@ public class TouchMap
         
         // Load the configuration files
         skinFolder = skinDir;
-        ConfigFile skin_ini = new ConfigFile( skinFolder + "/skin.ini" );
+        ConfigFile skin_ini = ConfigFileCache.getShared().get( skinFolder + "/skin.ini" );
         
         // Look up the mask colors
         loadMaskColors( skin_ini );
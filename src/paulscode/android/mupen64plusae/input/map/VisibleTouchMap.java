@@ -26,6 +26,7 @@ import java.util.regex.Pattern;
 
 import paulscode.android.mupen64plusae.GameOverlay;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.profile.Profile;
 import paulscode.android.mupen64plusae.util.Image;
 import paulscode.android.mupen64plusae.util.SafeMethods;
@@ -447,7 +448,7 @@ public class VisibleTouchMap extends TouchMap
         mTouchscreenTransparency = alpha;
         
         super.load( skinDir, profile, animated );
-        ConfigFile skin_ini = new ConfigFile( skinFolder + "/skin.ini" );
+        ConfigFile skin_ini = ConfigFileCache.getShared().get( skinFolder + "/skin.ini" );
         mReferenceWidth = SafeMethods.toInt( skin_ini.get( "INFO", "referenceScreenWidth" ), 0 );
         mReferenceHeight = SafeMethods.toInt( skin_ini.get( "INFO", "referenceScreenHeight" ), 0 );
         mFpsTextX = SafeMethods.toInt( skin_ini.get( "INFO", "fps-numx" ), 50 );
@@ -20,24 +20,44 @@
  */
 package paulscode.android.mupen64plusae.jni;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.persistent.GamePrefs;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
+import paulscode.android.mupen64plusae.util.FileUtil;
+import android.util.Log;
 
 public class NativeConfigFiles
 {
     private final static String EMPTY = "\"\"";
     
+    /** Suffix of the file that records what a config file was last synced to. */
+    private final static String STAMP_SUFFIX = ".sync";
+    
     /**
-     * Populates the core configuration files with the user preferences.
+     * Populates the core configuration files with the user preferences. A file is only read if its
+     * preferences changed since it was last synced, or if something else changed it since, and only
+     * written if it doesn't already hold them. May take a while, so avoid calling it from the UI
+     * thread.
      */
     public static void syncConfigFiles( GamePrefs game, UserPrefs user, AppData appData )
     {
+        long startTime = System.nanoTime();
+        
         //@formatter:off
         
         // gln64 config file
-        ConfigFile gln64_conf = new ConfigFile( appData.gln64_conf );
+        ConfigSync gln64_conf = new ConfigSync( appData.gln64_conf );
         gln64_conf.put( ConfigFile.SECTIONLESS_NAME, "window width", String.valueOf( user.videoRenderWidth ) );
         gln64_conf.put( ConfigFile.SECTIONLESS_NAME, "window height", String.valueOf( user.videoRenderHeight ) );
         gln64_conf.put( ConfigFile.SECTIONLESS_NAME, "auto frameskip", boolToNum( game.isGln64AutoFrameskipEnabled ) );
@@ -52,11 +72,11 @@ public class NativeConfigFiles
         gln64_conf.put( ConfigFile.SECTIONLESS_NAME, "hack z", boolToNum( game.isGln64HackDepthEnabled ) );
         
         // glide64 config file
-        ConfigFile glide64_conf = new ConfigFile( appData.glide64mk2_ini );
+        ConfigSync glide64_conf = new ConfigSync( appData.glide64mk2_ini );
         glide64_conf.put( "DEFAULT", "aspect", "2" );                                                                       // Stretch to GameSurface, Java will manage aspect ratio
         
         // Core and rice config file
-        ConfigFile mupen64plus_cfg = new ConfigFile( game.mupen64plus_cfg );
+        ConfigSync mupen64plus_cfg = new ConfigSync( game.mupen64plus_cfg );
         
         mupen64plus_cfg.put( "Audio-SDL", "Version", "1.000000" );                                                          // Mupen64Plus SDL Audio Plugin config parameter version number
         mupen64plus_cfg.put( "Audio-SDL", "SWAP_CHANNELS", boolToTF( user.audioSwapChannels ) );                            // Swaps left and right channels
@@ -138,11 +158,14 @@ public class NativeConfigFiles
         mupen64plus_cfg.put( "Video-Rice", "Mipmapping", "0" );                                                             // Use Mipmapping? 0=no, 1=nearest, 2=bilinear, 3=trilinear
         mupen64plus_cfg.put( "Video-Rice", "FogMethod", boolToNum( game.isRiceFogEnabled ) );                               // Enable, Disable or Force fog generation (0=Disable, 1=Enable n64 choose, 2=Force Fog)
         
-        gln64_conf.save();
-        glide64_conf.save();
-        mupen64plus_cfg.save();
-        
         //@formatter:on
+        
+        gln64_conf.apply();
+        glide64_conf.apply();
+        mupen64plus_cfg.apply();
+        
+        Log.i( "NativeConfigFiles", String.format( Locale.US, "Synced config files in %.1f ms",
+                ( System.nanoTime() - startTime ) / 1e6 ) );
     }
     
     private static String boolToTF( boolean b )
@@ -154,4 +177,118 @@ public class NativeConfigFiles
     {
         return b ? "1" : "0";
     }
+    
+    /**
+     * The ConfigSync class collects the values that one config file should hold. The values are
+     * digested, and the digest is stamped next to the file along with the file's size and time once
+     * they are written, so that the next sync can tell that nothing needs to be done without reading
+     * the file.
+     */
+    private static class ConfigSync
+    {
+        private final String mFilename;
+        private final List<String[]> mEntries = new ArrayList<String[]>();
+        
+        public ConfigSync( String filename )
+        {
+            mFilename = filename;
+        }
+        
+        public void put( String section, String parameter, String value )
+        {
+            mEntries.add( new String[] { section, parameter, value } );
+        }
+        
+        /**
+         * Writes the collected values to the config file, unless it holds them already.
+         */
+        public void apply()
+        {
+            long startTime = System.nanoTime();
+            File file = new File( mFilename );
+            File stampFile = new File( mFilename + STAMP_SUFFIX );
+            String digest = computeDigest();
+            
+            String result;
+            if( digest != null && getStamp( file, digest ).equals( readStamp( stampFile ) ) )
+            {
+                result = "unchanged";
+            }
+            else
+            {
+                // Only the parameters that differ make the file dirty
+                ConfigFile config = ConfigFileCache.getShared().get( mFilename );
+                for( String[] entry : mEntries )
+                    config.put( entry[0], entry[1], entry[2] );
+                result = config.isDirty() ? "written" : "already current";
+                
+                if( !config.save() )
+                    result = "failed";
+                else if( digest != null )
+                    writeStamp( stampFile, getStamp( file, digest ) );
+            }
+            
+            Log.i( "NativeConfigFiles", String.format( Locale.US, "Synced %s (%s) in %.1f ms",
+                    file.getName(), result, ( System.nanoTime() - startTime ) / 1e6 ) );
+        }
+        
+        private String computeDigest()
+        {
+            try
+            {
+                MessageDigest digester = MessageDigest.getInstance( "MD5" );
+                for( String[] entry : mEntries )
+                {
+                    for( String field : entry )
+                    {
+                        digester.update( String.valueOf( field ).getBytes( "UTF-8" ) );
+                        digester.update( (byte) 0 );
+                    }
+                }
+                
+                StringBuilder builder = new StringBuilder();
+                for( byte b : digester.digest() )
+                    builder.append( String.format( Locale.US, "%02x", b ) );
+                return builder.toString();
+            }
+            catch( NoSuchAlgorithmException e )
+            {
+                return null;
+            }
+            catch( UnsupportedEncodingException e )
+            {
+                return null;
+            }
+        }
+        
+        private static String getStamp( File file, String digest )
+        {
+            return digest + " " + file.length() + " " + file.lastModified();
+        }
+        
+        private static String readStamp( File stampFile )
+        {
+            try
+            {
+                return stampFile.exists() ? FileUtil.readStringFromFile( stampFile ) : null;
+            }
+            catch( IOException e )
+            {
+                return null;
+            }
+        }
+        
+        private static void writeStamp( File stampFile, String stamp )
+        {
+            try
+            {
+                FileUtil.writeStringToFile( stampFile, stamp );
+            }
+            catch( IOException e )
+            {
+                // The next sync will just read the config file again
+                Log.w( "NativeConfigFiles", "Could not write " + stampFile.getName(), e );
+            }
+        }
+    }
 }
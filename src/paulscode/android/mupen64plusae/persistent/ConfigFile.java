@@ -20,17 +20,18 @@
  */
 package paulscode.android.mupen64plusae.persistent;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 
 import android.text.TextUtils;
@@ -51,6 +52,9 @@ import android.util.Log;
  * <li>Leading and trailing whitespace in lines, param names, and values is discarded.
  * <li>Whitespace inside brackets or double-quotes is not discarded.
  * </ul>
+ * Saves are crash-safe: the file is written in full to a temporary file, which then replaces it,
+ * so a save that is interrupted leaves the previous file intact. Files with no unsaved changes are
+ * not written at all.
  * 
  * @author Paul Lamb
  */
@@ -59,12 +63,18 @@ public class ConfigFile
     /** The name we use for the untitled section (preamble) of the config file. */
     public static final String SECTIONLESS_NAME = "[<sectionless!>]";
     
+    /** Values this short are pooled while parsing, since most of them repeat. */
+    private static final int MAX_POOLED_VALUE_LENGTH = 16;
+    
     /** Name of the config file. */
     private final String mFilename;
     
     /** Sections mapped by title for easy lookup, with insertion order retained. */
     private final LinkedHashMap<String, ConfigSection> mConfigMap;
     
+    /** True if sections were added or removed since the file was loaded or saved. */
+    private boolean mDirty = false;
+    
     /**
      * Reads the entire config file, and saves the data to internal collections for manipulation.
      * 
@@ -77,6 +87,21 @@ public class ConfigFile
         reload();
     }
     
+    /**
+     * Copies another config file. The copy shares the parsed lines of the original until either
+     * one changes a section, so that {@link ConfigFileCache} can hand out copies cheaply.
+     * 
+     * @param source The config file to copy.
+     */
+    ConfigFile( ConfigFile source )
+    {
+        mFilename = source.mFilename;
+        mConfigMap = new LinkedHashMap<String, ConfigSection>();
+        for( Map.Entry<String, ConfigSection> entry : source.mConfigMap.entrySet() )
+            mConfigMap.put( entry.getKey(), new ConfigSection( entry.getValue() ) );
+        mDirty = source.mDirty;
+    }
+    
     /**
      * Looks up a config section by its title.
      * 
@@ -97,7 +122,8 @@ public class ConfigFile
      */
     public void remove( String sectionTitle )
     {
-        mConfigMap.remove( sectionTitle );
+        if( mConfigMap.remove( sectionTitle ) != null )
+            mDirty = true;
     }
     
     /**
@@ -112,18 +138,11 @@ public class ConfigFile
     {
         ConfigSection section = mConfigMap.get( sectionTitle );
         
-        // The specified section doesn't exist or is empty.. quit
-        if( section == null || section.parameters == null )
-            return null;
-        
-        ConfigParameter confParam = section.parameters.get( parameter );
-        
-        // The specified parameter doesn't exist.. quit
-        if( confParam == null )
+        // The specified section doesn't exist.. quit
+        if( section == null )
             return null;
         
-        // Got it
-        return confParam.value;
+        return section.get( parameter );
     }
     
     /**
@@ -141,6 +160,7 @@ public class ConfigFile
             // Add a new section
             section = new ConfigSection( sectionTitle );
             mConfigMap.put( sectionTitle, section );
+            mDirty = true;
         }
         section.put( parameter, value );
     }
@@ -151,6 +171,7 @@ public class ConfigFile
     public void clear()
     {
         mConfigMap.clear();
+        mDirty = true;
     }
     
     /**
@@ -169,10 +190,12 @@ public class ConfigFile
         // Free any previously loaded data
         clear();
         
-        FileInputStream fstream;
+        // Read the whole file at once, then parse it in place
+        File file = new File( mFilename );
+        InputStreamReader reader;
         try
         {
-            fstream = new FileInputStream( mFilename );
+            reader = new InputStreamReader( new FileInputStream( file ) );
         }
         catch( FileNotFoundException fnfe )
         {
@@ -180,42 +203,176 @@ public class ConfigFile
             return false;
         }
         
-        DataInputStream in = new DataInputStream( fstream );
-        BufferedReader br = new BufferedReader( new InputStreamReader( in ) );
-        
-        String sectionName = SECTIONLESS_NAME;
-        ConfigSection section = new ConfigSection( sectionName, br ); // Read the 'sectionless'
-                                                                      // section
-        mConfigMap.put( sectionName, section ); // Save the data to 'configMap'
-        
-        // Loop through reading the remaining sections
-        while( !TextUtils.isEmpty( section.nextName ) )
-        {
-            // Get the next section name
-            sectionName = section.nextName;
-            
-            // Load the next section
-            section = new ConfigSection( sectionName, br );
-            mConfigMap.put( sectionName, section ); // Save the data to 'configMap'
-        }
-        
+        // A char never takes less than a byte, so the buffer only grows for unusual charsets
+        char[] text = new char[(int) file.length() + 1];
+        int length = 0;
         try
         {
-            // Finished. Close the file.
-            in.close();
-            br.close();
+            int count;
+            while( ( count = reader.read( text, length, text.length - length ) ) != -1 )
+            {
+                length += count;
+                if( length == text.length )
+                {
+                    // Arrays.copyOf( text, length * 2 ) requires API 9, so do it manually
+                    char[] larger = new char[length * 2];
+                    System.arraycopy( text, 0, larger, 0, length );
+                    text = larger;
+                }
+            }
         }
         catch( IOException ioe )
         {
-            // (Don't care)
+            // (Don't care) Parse whatever was read
+        }
+        finally
+        {
+            try
+            {
+                reader.close();
+            }
+            catch( IOException ignored )
+            {
+            }
         }
         
+        parse( text, length );
+        mDirty = false;
+        
         // Success
         return true;
     }
     
     /**
-     * Saves the data from 'configMap' back to the config file.
+     * Parses the text of a config file into sections, in a single pass over the characters.
+     * Parsing stops at the first line with bad syntax, keeping what was read so far.
+     * 
+     * @param text The text of the config file.
+     * @param length The number of characters to parse.
+     */
+    private void parse( char[] text, int length )
+    {
+        // Parameter names and short values repeat from section to section, so share them
+        StringPool pool = new StringPool();
+        
+        // Read the 'sectionless' section first
+        ConfigSection section = new ConfigSection( SECTIONLESS_NAME );
+        mConfigMap.put( SECTIONLESS_NAME, section );
+        
+        int next;
+        for( int start = 0; start < length; start = next )
+        {
+            // Find the end of the line; "\n", "\r", and "\r\n" all end a line
+            int end = start;
+            while( end < length && text[end] != '\n' && text[end] != '\r' )
+                end++;
+            next = end + 1;
+            if( next < length && text[end] == '\r' && text[next] == '\n' )
+                next++;
+            
+            // Trim leading and trailing whitespace, exactly like String.trim()
+            int first = start;
+            int last = end;
+            while( first < last && text[first] <= ' ' )
+                first++;
+            while( last > first && text[last - 1] <= ' ' )
+                last--;
+            
+            char c = first < last ? text[first] : 0;
+            if( first == last || c == '#' || c == ';'
+                    || ( c == '/' && first + 1 < last && text[first + 1] == '/' ) )
+            {
+                // A comment or blank line; empty lines, which end most sections, need no text
+                section.addLine( start == end ? null : new String( text, start, end - start ) );
+                continue;
+            }
+            
+            int equals = indexOf( text, first, last, '=' );
+            if( equals != -1 )
+            {
+                // This should be a "parameter=value" pair
+                if( equals == first )
+                    break; // This shouldn't happen (bad syntax). Quit.
+                
+                int keyEnd = equals;
+                while( text[keyEnd - 1] <= ' ' )
+                    keyEnd--;
+                int valueStart = equals + 1;
+                while( valueStart < last && text[valueStart] <= ' ' )
+                    valueStart++;
+                
+                // It's ok to have an empty assignment (such as "param="), but it isn't kept
+                if( valueStart == last )
+                    continue;
+                
+                String key = pool.get( text, first, keyEnd );
+                String value;
+                if( last - valueStart <= MAX_POOLED_VALUE_LENGTH )
+                    value = pool.get( text, valueStart, last );
+                else
+                    value = new String( text, valueStart, last - valueStart );
+                
+                // Most lines are just "param=value", so only keep the text left of the value
+                // when it is something else
+                String prefix = null;
+                if( first != start || keyEnd != equals )
+                    prefix = new String( text, start, equals + 1 - start );
+                section.addParameter( key, value, prefix );
+            }
+            else if( indexOf( text, first, last, '[' ) != -1 )
+            {
+                // This should be the beginning of the next section
+                int x = indexOf( text, first, last, '[' );
+                int y = indexOf( text, first, last, ']' );
+                if( last - first < 3 || y <= x + 1 )
+                    break; // This shouldn't happen (bad syntax). Quit.
+                
+                int nameStart = x + 1;
+                int nameEnd = y;
+                while( nameStart < nameEnd && text[nameStart] <= ' ' )
+                    nameStart++;
+                while( nameEnd > nameStart && text[nameEnd - 1] <= ' ' )
+                    nameEnd--;
+                if( nameStart == nameEnd )
+                    break; // Untitled section. Quit.
+                
+                section.trimToSize();
+                String sectionName = new String( text, nameStart, nameEnd - nameStart );
+                section = new ConfigSection( sectionName );
+                mConfigMap.put( sectionName, section );
+            }
+            else
+            {
+                // This shouldn't happen (bad syntax). Quit.
+                break;
+            }
+        }
+        
+        // Reached end of file or bad syntax.. either way, we're done
+        section.trimToSize();
+    }
+    
+    /**
+     * Spreads the high bits of a hash code into the low bits, which pick the slot of a table.
+     */
+    private static int spread( int hash )
+    {
+        return hash ^ ( hash >>> 16 );
+    }
+    
+    private static int indexOf( char[] text, int start, int end, char c )
+    {
+        for( int i = start; i < end; i++ )
+        {
+            if( text[i] == c )
+                return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Saves the data from 'configMap' back to the config file, replacing the file only once the new
+     * one is completely written. Does nothing if there are no unsaved changes.
      * 
      * @return True if successful. False otherwise.
      * @see #reload()
@@ -229,35 +386,52 @@ public class ConfigFile
             return false; // Quit
         }
         
+        // The file already holds everything
+        File file = new File( mFilename );
+        if( !isDirty() && file.exists() )
+            return true;
+        
         // Ensure parent directories exist before writing file
-        new File( mFilename ).getParentFile().mkdirs();
+        file.getParentFile().mkdirs();
         
-        // Write data to file
-        FileWriter fw = null;
+        // Write data to a temporary file of this save's own, since other copies of the file may be
+        // saved at the same time
+        File tempFile = null;
+        FileOutputStream stream = null;
         try
         {
-            fw = new FileWriter( mFilename );
+            tempFile = File.createTempFile( file.getName(), ".tmp", file.getParentFile() );
+            stream = new FileOutputStream( tempFile );
+            Writer writer = new BufferedWriter( new OutputStreamWriter( stream ) );
             
             // Loop through the sections
             for( ConfigSection section : mConfigMap.values() )
             {
                 if( section != null )
-                    section.save( fw );
+                    section.save( writer );
             }
+            
+            // The new file must be on disk before it replaces the old one
+            writer.flush();
+            stream.getFD().sync();
+            writer.close();
+            stream = null;
         }
         catch( IOException ioe )
         {
             Log.e( "ConfigFile", "IOException creating file " + mFilename + ", error message: "
                     + ioe.getMessage() );
+            if( tempFile != null )
+                tempFile.delete();
             return false; // Some problem creating the file.. quit
         }
         finally
         {
-            if( fw != null )
+            if( stream != null )
             {
                 try
                 {
-                    fw.close();
+                    stream.close();
                 }
                 catch( IOException ignored )
                 {
@@ -265,10 +439,45 @@ public class ConfigFile
             }
         }
         
+        // Replace the config file in one step
+        if( !tempFile.renameTo( file ) )
+        {
+            Log.e( "ConfigFile", "Could not replace " + mFilename );
+            tempFile.delete();
+            return false;
+        }
+        
         // Success
+        mDirty = false;
+        for( ConfigSection section : mConfigMap.values() )
+        {
+            if( section != null )
+                section.mDirty = false;
+        }
+        
+        // Don't let the cache hand out the old contents, even if the size and time didn't change
+        ConfigFileCache.getShared().invalidate( mFilename );
         return true;
     }
     
+    /**
+     * Determines whether anything was changed since the file was loaded or saved.
+     * 
+     * @return True if {@link #save()} would write the file.
+     */
+    public boolean isDirty()
+    {
+        if( mDirty )
+            return true;
+        
+        for( ConfigSection section : mConfigMap.values() )
+        {
+            if( section != null && section.mDirty )
+                return true;
+        }
+        return false;
+    }
+    
     /**
      * Returns a handle to the configMap keyset.
      * 
@@ -280,19 +489,112 @@ public class ConfigFile
     }
     
     /**
-     * The ConfigSection class reads all the parameters in the next section of the config file.
-     * Saves the name of the next section (or null if end of file or error). Can also be used to add
-     * a new section to an existing configuration.
+     * The StringPool class hands out one String for each distinct run of characters, so that text
+     * repeated throughout a file is only allocated once. Runs are looked up without creating a String,
+     * in an open-addressing table keyed by the same hash as {@link String#hashCode()}.
+     */
+    private static class StringPool
+    {
+        private String[] mStrings = new String[256];
+        private int mCount = 0;
+        
+        public String get( char[] text, int start, int end )
+        {
+            int hash = 0;
+            for( int i = start; i < end; i++ )
+                hash = 31 * hash + text[i];
+            
+            int mask = mStrings.length - 1;
+            int slot = spread( hash ) & mask;
+            for( String string = mStrings[slot]; string != null; string = mStrings[slot] )
+            {
+                if( string.hashCode() == hash && matches( string, text, start, end ) )
+                    return string;
+                slot = ( slot + 1 ) & mask;
+            }
+            
+            String string = new String( text, start, end - start );
+            mStrings[slot] = string;
+            if( ++mCount * 2 > mStrings.length )
+                grow();
+            return string;
+        }
+        
+        private void grow()
+        {
+            String[] strings = mStrings;
+            mStrings = new String[strings.length * 2];
+            int mask = mStrings.length - 1;
+            for( String string : strings )
+            {
+                if( string != null )
+                {
+                    int slot = spread( string.hashCode() ) & mask;
+                    while( mStrings[slot] != null )
+                        slot = ( slot + 1 ) & mask;
+                    mStrings[slot] = string;
+                }
+            }
+        }
+        
+        private static boolean matches( String string, char[] text, int start, int end )
+        {
+            if( string.length() != end - start )
+                return false;
+            for( int i = start; i < end; i++ )
+            {
+                if( string.charAt( i - start ) != text[i] )
+                    return false;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * The ConfigSection class holds the parameters of one section of the config file, along with
+     * its comments and blank lines, in the order they appear in the file. Can also be used to add a
+     * new section to an existing configuration.
+     * <p>
+     * The lines are kept in parallel arrays rather than one object per line, since a section lives
+     * as long as its config file and mupen64plus.ini alone has thousands of them. Small sections,
+     * like those of mupen64plus.ini, are searched in order; larger ones get an open-addressing table
+     * of line numbers, which needs no object per parameter.
      */
     public static class ConfigSection
     {
+        /** Sections with more parameters than this are indexed instead of searched. */
+        private static final int LINEAR_SEARCH_LIMIT = 8;
+        
+        private static final String[] EMPTY = new String[0];
+        
         public String name; // Section name
-        private HashMap<String, ConfigParameter> parameters; // Parameters sorted by name for easy
-                                                             // lookup
-        private LinkedList<ConfigLine> lines; // All the lines in this section, including comments
         
-        // Name of the next section, or null if there are no sections left to read in the file:
-        private String nextName = null;
+        // Parameter names, or null for comment and blank lines
+        private String[] mKeys = EMPTY;
+        
+        // Parameter values, or null for comment and blank lines
+        private String[] mValues = EMPTY;
+        
+        // The full text of comment and blank lines, and the text up to the equal sign of parameter
+        // lines, or null for empty lines and for parameter lines that are just "param=value"; null
+        // until needed
+        private String[] mText = null;
+        
+        // Number of lines in use
+        private int mSize = 0;
+        
+        // Number of parameter lines
+        private int mParameterCount = 0;
+        
+        // Line numbers plus one, hashed by parameter name with linear probing, or null while the
+        // section is small; zero marks an empty slot
+        private int[] mIndex = null;
+        
+        // True if parameters were added or changed since the file was loaded or saved
+        private boolean mDirty = false;
+        
+        // True if the arrays and index are shared with a copy, and must be copied before a change
+        private boolean mShared = false;
         
         /**
          * Constructor: Creates an empty config section
@@ -301,134 +603,42 @@ public class ConfigFile
          */
         public ConfigSection( String sectionName )
         {
-            parameters = new HashMap<String, ConfigParameter>();
-            lines = new LinkedList<ConfigLine>();
-            
-            if( !TextUtils.isEmpty( sectionName ) && !sectionName.equals( SECTIONLESS_NAME ) )
-                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, "[" + sectionName + "]\n", null ) );
-            
             name = sectionName;
         }
         
-        // TODO: Clean this method up a bit?
         /**
-         * Constructor: Reads the next section of the config file, and saves it in 'parameters'.
+         * Constructor: Copies a config section, sharing its lines until either section changes.
          * 
-         * @param sectionName The section title.
-         * @param br The config file to read from.
+         * @param source The section to copy.
          */
-        public ConfigSection( String sectionName, BufferedReader br )
+        private ConfigSection( ConfigSection source )
         {
-            String fullLine, strLine, p, v;
-            ConfigParameter confParam;
-            int x, y;
-            
-            parameters = new HashMap<String, ConfigParameter>();
-            lines = new LinkedList<ConfigLine>();
-            
-            if( !TextUtils.isEmpty( sectionName ) && !sectionName.equals( SECTIONLESS_NAME ) )
-                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, "[" + sectionName + "]\n", null ) );
-            
-            name = sectionName;
-            
-            // No file to read from. Quit.
-            if( br == null )
-                return;
-            
-            try
-            {
-                while( ( fullLine = br.readLine() ) != null )
-                {
-                    strLine = fullLine.trim();
-                    if( ( strLine.length() < 1 )
-                            || ( strLine.substring( 0, 1 ).equals( "#" ) )
-                            || ( strLine.substring( 0, 1 ).equals( ";" ) )
-                            || ( ( strLine.length() > 1 ) && ( strLine.substring( 0, 2 )
-                                    .equals( "//" ) ) ) )
-                    
-                    { // A comment or blank line.
-                        lines.add( new ConfigLine( ConfigLine.LINE_GARBAGE, fullLine + "\n", null ) );
-                    }
-                    else if( strLine.contains( "=" ) )
-                    {
-                        // This should be a "parameter=value" pair:
-                        x = strLine.indexOf( '=' );
-                        
-                        if( x < 1 )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        if( x < ( strLine.length() - 1 ) )
-                        {
-                            p = strLine.substring( 0, x ).trim();
-                            if( p.length() < 1 )
-                                return; // This shouldn't happen (bad syntax). Quit.
-                                
-                            v = strLine.substring( x + 1, strLine.length() ).trim();
-                            // v = v.replace( "\"", "" ); // I'm doing this later, so I can save
-                            // back without losing them
-                            
-                            if( v.length() > 0 )
-                            {
-                                // Save the parameter=value pair
-                                confParam = parameters.get( p );
-                                if( confParam != null )
-                                {
-                                    confParam.value = v;
-                                }
-                                else
-                                {
-                                    confParam = new ConfigParameter( p, v );
-                                    lines.add( new ConfigLine( ConfigLine.LINE_PARAM, fullLine
-                                            + "\n", confParam ) );
-                                    parameters.put( p, confParam ); // Save the pair.
-                                }
-                            }
-                        } // It's ok to have an empty assignment (such as "param=")
-                    }
-                    else if( strLine.contains( "[" ) )
-                    {
-                        // This should be the beginning of the next section
-                        if( ( strLine.length() < 3 ) || ( !strLine.contains( "]" ) ) )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        x = strLine.indexOf( '[' );
-                        y = strLine.indexOf( ']' );
-                        
-                        if( ( y <= x + 1 ) || ( x == -1 ) || ( y == -1 ) )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        p = strLine.substring( x + 1, y ).trim();
-                        
-                        // Save the name of the next section.
-                        nextName = p;
-                        
-                        // Done reading parameters. Return.
-                        return;
-                    }
-                    else
-                    {
-                        // This shouldn't happen (bad syntax). Quit.
-                        return;
-                    }
-                }
-            }
-            catch( IOException ioe )
-            {
-                // (Don't care)
-            }
-            
-            // Reached end of file or error.. either way, just quit
-            return;
+            name = source.name;
+            mKeys = source.mKeys;
+            mValues = source.mValues;
+            mText = source.mText;
+            mSize = source.mSize;
+            mParameterCount = source.mParameterCount;
+            mIndex = source.mIndex;
+            mDirty = source.mDirty;
+            mShared = true;
+            source.mShared = true;
         }
         
         /**
-         * Returns a handle to the parameter keyset.
+         * Returns the parameter names, in the order they appear in the section.
          * 
-         * @return keyset containing all the parameters.
+         * @return A new set containing all the parameters.
          */
         public Set<String> keySet()
         {
-            return parameters.keySet();
+            Set<String> keys = new LinkedHashSet<String>();
+            for( int i = 0; i < mSize; i++ )
+            {
+                if( mKeys[i] != null )
+                    keys.add( mKeys[i] );
+            }
+            return keys;
         }
         
         /**
@@ -440,18 +650,18 @@ public class ConfigFile
          */
         public String get( String parameter )
         {
-            // Error: no parameters, or parameter was null
-            if( parameters == null || TextUtils.isEmpty( parameter ) )
+            // Error: parameter was null
+            if( TextUtils.isEmpty( parameter ) )
                 return null;
             
-            ConfigParameter confParam = parameters.get( parameter );
+            int line = indexOf( parameter );
             
             // Parameter not found
-            if( confParam == null )
+            if( line == -1 )
                 return null;
             
             // Got it
-            return confParam.value;
+            return mValues[line];
         }
         
         /**
@@ -463,117 +673,187 @@ public class ConfigFile
          */
         public void put( String parameter, String value )
         {
-            ConfigParameter confParam = parameters.get( parameter );
-            if( confParam == null ) // New parameter
+            int line = indexOf( parameter );
+            if( line == -1 ) // New parameter
             {
                 if( !TextUtils.isEmpty( value ) )
                 {
-                    confParam = new ConfigParameter( parameter, value );
-                    lines.add( new ConfigLine( ConfigLine.LINE_PARAM, parameter + "=" + value
-                            + "\n", confParam ) );
-                    parameters.put( parameter, confParam );
+                    append( parameter, value, null );
+                    mDirty = true;
                 }
             }
-            else
+            else if( !TextUtils.equals( mValues[line], value ) )
             {
                 // Change the parameter's value
-                confParam.value = value;
+                unshare();
+                mValues[line] = value;
+                mDirty = true;
             }
         }
         
         /**
          * Writes the entire section to file.
          * 
-         * @param fw File to write to.
+         * @param writer File to write to.
          * 
          * @throws IOException if a writing error occurs.
          */
-        public void save( FileWriter fw ) throws IOException
+        public void save( Writer writer ) throws IOException
         {
-            for( ConfigLine line : lines )
+            if( !TextUtils.isEmpty( name ) && !name.equals( SECTIONLESS_NAME ) )
+                writer.write( "[" + name + "]\n" );
+            
+            for( int i = 0; i < mSize; i++ )
             {
-                if( line != null )
-                    line.save( fw );
+                String text = mText == null ? null : mText[i];
+                if( mKeys[i] == null )
+                {
+                    if( text != null )
+                        writer.write( text );
+                }
+                else
+                {
+                    if( text == null )
+                    {
+                        writer.write( mKeys[i] );
+                        writer.write( '=' );
+                    }
+                    else
+                    {
+                        writer.write( text );
+                    }
+                    writer.write( String.valueOf( mValues[i] ) );
+                }
+                writer.write( '\n' );
             }
         }
-    }
-    
-    /**
-     * The ConfigLine class stores each line of the config file (including comments).
-     */
-    private static class ConfigLine
-    {
-        public static final int LINE_GARBAGE = 0; // Comment, whitespace, or blank line
-        public static final int LINE_SECTION = 1; // Section title
-        public static final int LINE_PARAM = 2; // Parameter=value pair
         
-        public int lineType = 0; // LINE_GARBAGE, LINE_SECTION, or LINE_PARAM.
-        public String strLine = ""; // Actual line from the config file.
-        public ConfigParameter confParam = null; // Null unless this line has a parameter.
+        /**
+         * Adds a comment or blank line while parsing.
+         */
+        private void addLine( String text )
+        {
+            append( null, null, text );
+        }
         
         /**
-         * Constructor: Saves the relevant information about the line.
+         * Adds a parameter line while parsing. A parameter that was already read keeps its line and
+         * takes the new value.
          * 
-         * @param type The type of line.
-         * @param line The line itself.
-         * @param param Config parameters pertaining to the line.
+         * @param prefix The text of the line up to the equal sign, or null if it is just "param=".
          */
-        public ConfigLine( int type, String line, ConfigParameter param )
+        private void addParameter( String parameter, String value, String prefix )
         {
-            lineType = type;
-            strLine = line;
-            confParam = param;
+            int line = indexOf( parameter );
+            if( line == -1 )
+                append( parameter, value, prefix );
+            else
+                mValues[line] = value;
         }
         
         /**
-         * Saves the ConfigLine.
-         * 
-         * @param fw The file to save the ConfigLine to.
-         * 
-         * @throws IOException If a writing error occurs.
+         * Releases the spare room left by parsing.
          */
-        public void save( FileWriter fw ) throws IOException
+        private void trimToSize()
         {
-            int x;
-            if( lineType == LINE_PARAM )
+            if( mSize < mKeys.length )
+                resize( mSize );
+        }
+        
+        private int indexOf( String parameter )
+        {
+            if( mIndex == null )
             {
-                if( !strLine.contains( "=" ) || confParam == null )
-                    return; // This shouldn't happen
-                    
-                x = strLine.indexOf( '=' );
-                
-                if( x < 1 )
-                    return; // This shouldn't happen either
-                    
-                if( x < strLine.length() )
-                    fw.write( strLine.substring( 0, x + 1 ) + confParam.value + "\n" );
+                for( int i = 0; i < mSize; i++ )
+                {
+                    if( parameter.equals( mKeys[i] ) )
+                        return i;
+                }
+                return -1;
             }
-            else
+            
+            int mask = mIndex.length - 1;
+            for( int slot = spread( parameter.hashCode() ) & mask;; slot = ( slot + 1 ) & mask )
             {
-                fw.write( strLine );
+                int line = mIndex[slot] - 1;
+                if( line == -1 || parameter.equals( mKeys[line] ) )
+                    return line;
             }
         }
-    }
-    
-    /**
-     * The ConfigParameter class associates a parameter with its value.
-     */
-    private static class ConfigParameter
-    {
-        @SuppressWarnings( "unused" )
-        public String parameter;
-        public String value;
         
-        /**
-         * Constructor: Associate the parameter and value
-         * 
-         * @param parameter The name of the parameter.
-         * @param value The value of the parameter.
-         */
-        public ConfigParameter( String parameter, String value )
+        private void append( String key, String value, String text )
+        {
+            unshare();
+            if( mSize == mKeys.length )
+                resize( Math.max( 8, mSize * 2 ) );
+            if( text != null && mText == null )
+                mText = new String[mKeys.length];
+            
+            int line = mSize++;
+            mKeys[line] = key;
+            mValues[line] = value;
+            if( mText != null )
+                mText[line] = text;
+            
+            if( key != null )
+            {
+                mParameterCount++;
+                if( mIndex != null && mParameterCount * 2 <= mIndex.length )
+                    insertIndex( key, line );
+                else if( mParameterCount > LINEAR_SEARCH_LIMIT )
+                    rebuildIndex();
+            }
+        }
+        
+        private void rebuildIndex()
+        {
+            // Keep the table at most half full, so that probes stay short and always end
+            int capacity = 16;
+            while( capacity < mParameterCount * 2 )
+                capacity *= 2;
+            mIndex = new int[capacity];
+            for( int i = 0; i < mSize; i++ )
+            {
+                if( mKeys[i] != null )
+                    insertIndex( mKeys[i], i );
+            }
+        }
+        
+        private void insertIndex( String key, int line )
         {
-            this.parameter = parameter;
-            this.value = value;
+            int mask = mIndex.length - 1;
+            int slot = spread( key.hashCode() ) & mask;
+            while( mIndex[slot] != 0 )
+                slot = ( slot + 1 ) & mask;
+            mIndex[slot] = line + 1;
+        }
+        
+        private void unshare()
+        {
+            if( mShared )
+            {
+                resize( mKeys.length );
+                if( mIndex != null )
+                    mIndex = mIndex.clone();
+                mShared = false;
+            }
+        }
+        
+        private void resize( int capacity )
+        {
+            // Arrays.copyOf( array, capacity ) requires API 9, so do it manually
+            String[] keys = new String[capacity];
+            String[] values = new String[capacity];
+            System.arraycopy( mKeys, 0, keys, 0, mSize );
+            System.arraycopy( mValues, 0, values, 0, mSize );
+            mKeys = keys;
+            mValues = values;
+            if( mText != null )
+            {
+                String[] text = new String[capacity];
+                System.arraycopy( mText, 0, text, 0, mSize );
+                mText = text;
+            }
         }
     }
 }
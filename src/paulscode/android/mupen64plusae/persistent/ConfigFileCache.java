@@ -0,0 +1,265 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The ConfigFileCache class keeps parsed config files in memory, so that the profile, skin, and
+ * plugin configs that are opened over and over are only parsed again after they change. Files are
+ * keyed by canonical path and validated against their size and modification time on every lookup.
+ * Saving a {@link ConfigFile} drops its cached copy, in case the change kept both the same.
+ * <p>
+ * Each lookup returns a copy of its own, which the caller may change and save freely. The copies
+ * share their sections with the cached file until they change them, so a lookup costs a few objects
+ * per section rather than a parse.
+ * <p>
+ * The cache is an LRU bounded by the combined size of its files on disk, which the memory they take
+ * once parsed is roughly proportional to. Files larger than the whole budget, such as the ROM
+ * database, are parsed on every lookup and never cached.
+ * <p>
+ * All methods are thread-safe. Parsing happens outside the lock, so a parse is only cached if the
+ * file wasn't invalidated or changed while it ran.
+ */
+public class ConfigFileCache
+{
+    /** Enough for every profile, skin, and plugin config, but not for the ROM database. */
+    private static final long SHARED_MAX_BYTES = 256 * 1024;
+    
+    /** Whether to log the state of the cache after every parse. */
+    private static final boolean LOG_MISSES = false;
+    
+    private static final ConfigFileCache sShared = new ConfigFileCache( SHARED_MAX_BYTES );
+    
+    private final long mMaxBytes;
+    
+    /** Config files in access order, least recently used first. */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>( 16,
+            0.75f, true );
+    private long mBytes = 0;
+    
+    /** Bumped whenever files are dropped, so that parses already under way aren't cached. */
+    private int mGeneration = 0;
+    
+    // Statistics
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mStaleCount = 0;
+    private int mEvictionCount = 0;
+    
+    private static class Entry
+    {
+        public final ConfigFile config;
+        public final long length;
+        public final long lastModified;
+        
+        public Entry( ConfigFile config, long length, long lastModified )
+        {
+            this.config = config;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+    
+    /**
+     * Creates a config file cache.
+     * 
+     * @param maxBytes The largest combined size, on disk, of the cached files.
+     */
+    public ConfigFileCache( long maxBytes )
+    {
+        mMaxBytes = maxBytes;
+    }
+    
+    /**
+     * Gets the cache shared by the whole process.
+     */
+    public static ConfigFileCache getShared()
+    {
+        return sShared;
+    }
+    
+    /**
+     * Gets a config file, parsing it only if it isn't cached or changed since it was cached.
+     * 
+     * @param filename The config file to read from.
+     * 
+     * @return A copy of the config file that belongs to the caller.
+     */
+    public ConfigFile get( String filename )
+    {
+        if( TextUtils.isEmpty( filename ) )
+            return new ConfigFile( filename );
+        
+        // Check the file before parsing it, so that a change during the parse is seen next time
+        File file = new File( filename );
+        String key = getKey( file );
+        long length = file.length();
+        long lastModified = file.lastModified();
+        int generation;
+        
+        synchronized( this )
+        {
+            Entry entry = mEntries.get( key );
+            if( entry != null )
+            {
+                if( entry.length == length && entry.lastModified == lastModified )
+                {
+                    mHitCount++;
+                    return new ConfigFile( entry.config );
+                }
+                remove( key );
+                mStaleCount++;
+            }
+            mMissCount++;
+            generation = mGeneration;
+        }
+        
+        // Only cache the parse if the file is still the one that was checked before it
+        ConfigFile config = new ConfigFile( filename );
+        if( lastModified != 0 && length <= mMaxBytes && file.length() == length
+                && file.lastModified() == lastModified )
+        {
+            // Cache a copy, since the caller may change its own
+            put( key, new Entry( new ConfigFile( config ), length, lastModified ), generation );
+        }
+        if( LOG_MISSES )
+            Log.v( "ConfigFileCache", "Loaded " + filename + ", " + this );
+        return config;
+    }
+    
+    /**
+     * Drops a config file from the cache, so that the next lookup parses it again.
+     * 
+     * @param filename The config file.
+     */
+    public synchronized void invalidate( String filename )
+    {
+        if( !TextUtils.isEmpty( filename ) )
+        {
+            remove( getKey( new File( filename ) ) );
+            mGeneration++;
+        }
+    }
+    
+    /**
+     * Drops all config files from the cache.
+     */
+    public synchronized void clear()
+    {
+        mEvictionCount += mEntries.size();
+        mEntries.clear();
+        mBytes = 0;
+        mGeneration++;
+    }
+    
+    public synchronized int getHitCount()
+    {
+        return mHitCount;
+    }
+    
+    public synchronized int getMissCount()
+    {
+        return mMissCount;
+    }
+    
+    public synchronized int getStaleCount()
+    {
+        return mStaleCount;
+    }
+    
+    public synchronized int getEvictionCount()
+    {
+        return mEvictionCount;
+    }
+    
+    /**
+     * Gets the fraction of lookups that didn't have to parse their file.
+     */
+    public synchronized float getHitRate()
+    {
+        int lookups = mHitCount + mMissCount;
+        return lookups == 0 ? 0 : (float) mHitCount / lookups;
+    }
+    
+    public synchronized long getSizeBytes()
+    {
+        return mBytes;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "ConfigFileCache[" + mEntries.size() + " files, " + mBytes + "/" + mMaxBytes
+                + " bytes, hits=" + mHitCount + ", misses=" + mMissCount + ", stale="
+                + mStaleCount + ", evictions=" + mEvictionCount + ", hitRate="
+                + Math.round( getHitRate() * 100 ) + "%]";
+    }
+    
+    private synchronized void put( String key, Entry entry, int generation )
+    {
+        // Something was invalidated during the parse, maybe this very file after a save
+        if( generation != mGeneration )
+            return;
+        
+        remove( key );
+        mEntries.put( key, entry );
+        mBytes += entry.length;
+        
+        // Evict the least recently used files until back under budget
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while( mBytes > mMaxBytes && iterator.hasNext() )
+        {
+            Entry eldest = iterator.next().getValue();
+            if( eldest == entry )
+                break;
+            iterator.remove();
+            mBytes -= eldest.length;
+            mEvictionCount++;
+        }
+    }
+    
+    private void remove( String key )
+    {
+        Entry entry = mEntries.remove( key );
+        if( entry != null )
+            mBytes -= entry.length;
+    }
+    
+    private static String getKey( File file )
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return file.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,782 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.util.SafeMethods;
+import android.util.Log;
+
+/**
+ * The GalleryCatalog class stores the ROMs shown in the gallery. It replaces the romInfoCache.cfg
+ * file, which had to be parsed in full to show the gallery and rewritten in full after every scan.
+ * <p>
+ * The catalog file is an append-only log. It starts with a small header (magic, format version,
+ * and the number of entries at the last compaction), followed by records that each put, remove, or
+ * clear entries. Every record is length-prefixed, so loading only decodes the MD5 of each record
+ * and skips the rest; an entry's strings are decoded the first time they are read. Changes are
+ * appended as soon as they are made. When most of the log is superseded records, closing the
+ * catalog compacts it into a fresh file.
+ * <p>
+ * If the last record was cut short (e.g. by a crash), it is dropped when the catalog is opened. Any
+ * other record that cannot be decoded is skipped, and dropped at the next compaction.
+ * <p>
+ * Only one instance should write to a file at a time, since compaction rewrites the file from the
+ * entries of the instance that compacts it. This is enforced rather than assumed: once another
+ * instance has written the file, an instance reopens its log before appending, so that its records
+ * still reach the current file, and never compacts it, so that it cannot drop the other's records.
+ * <p>
+ * All methods are synchronized. Entries are immutable.
+ */
+public class GalleryCatalog
+{
+    private static final int MAGIC = 0x4d363443; // "M64C"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    
+    /** Suffix of a catalog that couldn't be read, kept beside the new one. */
+    private static final String BAD_SUFFIX = ".bad";
+    
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_CLEAR = 3;
+    private static final int RECORD_HEADER_SIZE = 5;
+    
+    /** Compact the log when it holds more than this many records per live entry. */
+    private static final int COMPACTION_RATIO = 2;
+    
+    private static final int FIELD_COUNT = 7;
+    private static final int FIELD_GOOD_NAME = 0;
+    private static final int FIELD_BASE_NAME = 1;
+    private static final int FIELD_ROM_PATH = 2;
+    private static final int FIELD_ZIP_PATH = 3;
+    private static final int FIELD_ZIP_ENTRY = 4;
+    private static final int FIELD_ART_PATH = 5;
+    private static final int FIELD_PLAYERS = 6; // Missing from records written before it was added
+    
+    /** Guards every read and write of a catalog file, across all instances. */
+    private static final Object sFileLock = new Object();
+    
+    /** The number of writes to each catalog file, by absolute path. Guarded by sFileLock. */
+    private static final HashMap<String, Integer> sFileVersions = new HashMap<String, Integer>();
+    
+    private final String mFilename;
+    
+    /** Entries mapped by MD5, in the order they were first added. */
+    private final LinkedHashMap<String, Entry> mEntries;
+    
+    /** Number of records in the log, including superseded ones. */
+    private int mRecordCount;
+    
+    /** The log, opened for appending on the first change. */
+    private DataOutputStream mLog = null;
+    
+    /** The version of the file as this instance last read or wrote it. */
+    private int mFileVersion;
+    
+    /** True once another instance has written the file, after which this one never compacts it. */
+    private boolean mOutdated = false;
+    
+    private GalleryCatalog( String filename, LinkedHashMap<String, Entry> entries, int recordCount,
+            int fileVersion )
+    {
+        mFilename = filename;
+        mEntries = entries;
+        mRecordCount = recordCount;
+        mFileVersion = fileVersion;
+    }
+    
+    /**
+     * The Entry class describes one ROM in the gallery.
+     */
+    public static class Entry
+    {
+        public final String md5;
+        
+        /** The encoded record, until its fields are decoded. */
+        private byte[] mData;
+        private int mOffset;
+        private int mLength;
+        private String[] mFields;
+        
+        private Entry( String md5, String[] fields )
+        {
+            this.md5 = md5;
+            mFields = fields;
+        }
+        
+        private Entry( String md5, byte[] data, int offset, int length )
+        {
+            this.md5 = md5;
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+        }
+        
+        public String getGoodName()
+        {
+            return getField( FIELD_GOOD_NAME );
+        }
+        
+        public String getBaseName()
+        {
+            return getField( FIELD_BASE_NAME );
+        }
+        
+        /** Gets the path of the ROM file, or null if the ROM is zipped. */
+        public String getRomPath()
+        {
+            return getField( FIELD_ROM_PATH );
+        }
+        
+        /** Gets the path of the zip file containing the ROM, or null if the ROM is not zipped. */
+        public String getZipPath()
+        {
+            return getField( FIELD_ZIP_PATH );
+        }
+        
+        /** Gets the name of the ROM's zip entry, or null if the ROM is not zipped. */
+        public String getZipEntryName()
+        {
+            return getField( FIELD_ZIP_ENTRY );
+        }
+        
+        public String getArtPath()
+        {
+            return getField( FIELD_ART_PATH );
+        }
+        
+        /** Gets the number of players the ROM supports, or 0 if unknown. */
+        public int getPlayers()
+        {
+            return SafeMethods.toInt( getField( FIELD_PLAYERS ), 0 );
+        }
+        
+        private synchronized String getField( int field )
+        {
+            if( mFields == null )
+            {
+                mFields = decodeFields( mData, mOffset, mLength );
+                mData = null;
+            }
+            return mFields[field];
+        }
+        
+        /** Copies the encoded record out of the file it was loaded from, so that the file can go. */
+        private synchronized void detach()
+        {
+            if( mData == null )
+                return;
+            
+            byte[] data = new byte[mLength];
+            System.arraycopy( mData, mOffset, data, 0, mLength );
+            mData = data;
+            mOffset = 0;
+        }
+    }
+    
+    /**
+     * Opens a catalog.
+     * 
+     * @param filename The catalog file.
+     * 
+     * @return The catalog, never null. If the file cannot be read, the catalog is empty and the file
+     *         is renamed with a .bad suffix.
+     */
+    public static GalleryCatalog open( String filename )
+    {
+        return load( filename );
+    }
+    
+    /**
+     * Opens a catalog, migrating the legacy ROM info cache into it if the catalog doesn't exist
+     * yet. The legacy file is deleted once it has been migrated.
+     * 
+     * @param filename The catalog file.
+     * @param legacyConfigPath The romInfoCache.cfg file written by earlier versions.
+     * 
+     * @return The catalog, never null. If the file cannot be read, the catalog is empty and the file
+     *         is renamed with a .bad suffix.
+     */
+    public static GalleryCatalog open( String filename, String legacyConfigPath )
+    {
+        File file = new File( filename );
+        File legacyFile = new File( legacyConfigPath );
+        if( !file.exists() && legacyFile.exists() )
+        {
+            GalleryCatalog catalog = migrate( filename, legacyConfigPath );
+            if( catalog.compact() )
+                legacyFile.delete();
+            return catalog;
+        }
+        return load( filename );
+    }
+    
+    /**
+     * Gets an entry.
+     * 
+     * @param md5 The MD5 of the ROM.
+     * 
+     * @return The entry, or null if the ROM is not in the catalog.
+     */
+    public synchronized Entry get( String md5 )
+    {
+        return mEntries.get( md5 );
+    }
+    
+    /**
+     * Gets all entries, in the order they were first added.
+     * 
+     * @return A snapshot of the entries.
+     */
+    public synchronized List<Entry> getEntries()
+    {
+        return new ArrayList<Entry>( mEntries.values() );
+    }
+    
+    public synchronized int size()
+    {
+        return mEntries.size();
+    }
+    
+    /**
+     * Adds or replaces an entry, and appends it to the catalog file.
+     * 
+     * @return The new entry.
+     */
+    public synchronized Entry put( String md5, String goodName, String baseName, String romPath,
+            String zipPath, String zipEntryName, String artPath, int players )
+    {
+        String[] fields = new String[FIELD_COUNT];
+        fields[FIELD_GOOD_NAME] = goodName;
+        fields[FIELD_BASE_NAME] = baseName;
+        fields[FIELD_ROM_PATH] = romPath;
+        fields[FIELD_ZIP_PATH] = zipPath;
+        fields[FIELD_ZIP_ENTRY] = zipEntryName;
+        fields[FIELD_ART_PATH] = artPath;
+        fields[FIELD_PLAYERS] = players > 0 ? String.valueOf( players ) : null;
+        Entry entry = new Entry( md5, fields );
+        
+        // Re-insert so that the entry moves to the end, matching the order on reload
+        mEntries.remove( md5 );
+        mEntries.put( md5, entry );
+        append( RECORD_PUT, encodePut( md5, fields ) );
+        return entry;
+    }
+    
+    /**
+     * Removes an entry, and appends the removal to the catalog file.
+     */
+    public synchronized void remove( String md5 )
+    {
+        if( mEntries.remove( md5 ) != null )
+            append( RECORD_REMOVE, encodeRemove( md5 ) );
+    }
+    
+    /**
+     * Removes every entry, and appends the removal to the catalog file.
+     */
+    public synchronized void clear()
+    {
+        mEntries.clear();
+        append( RECORD_CLEAR, new byte[0] );
+    }
+    
+    /**
+     * Closes the catalog file, compacting it first if most of its records are superseded.
+     * 
+     * @return True if successful.
+     */
+    public synchronized boolean close()
+    {
+        return close( true );
+    }
+    
+    /**
+     * Closes the catalog file.
+     * 
+     * @param allowCompaction Whether to compact the file if most of its records are superseded.
+     *            Compacting rewrites the whole file, which a canceled task should leave to the next.
+     * 
+     * @return True if successful.
+     */
+    public synchronized boolean close( boolean allowCompaction )
+    {
+        boolean success = closeLog();
+        if( allowCompaction && mRecordCount > COMPACTION_RATIO * mEntries.size() + 1 )
+            success = compact() && success;
+        return success;
+    }
+    
+    /**
+     * Rewrites the catalog file with one record per entry. Does nothing if another instance has
+     * written the file since this one was opened.
+     * 
+     * @return True if successful.
+     */
+    public synchronized boolean compact()
+    {
+        closeLog();
+        synchronized( sFileLock )
+        {
+            File file = new File( mFilename );
+            if( file.exists() && isOutdated() )
+            {
+                Log.w( "GalleryCatalog", "Not compacting " + mFilename + ", written by another instance" );
+                return false;
+            }
+            return writeCompacted( file );
+        }
+    }
+    
+    private boolean writeCompacted( File file )
+    {
+        // Write to a temporary file first so that readers never see a partial catalog
+        file.getParentFile().mkdirs();
+        File tempFile = null;
+        FileOutputStream stream = null;
+        try
+        {
+            tempFile = File.createTempFile( file.getName(), ".tmp", file.getParentFile() );
+            stream = new FileOutputStream( tempFile );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( stream ) );
+            out.writeInt( MAGIC );
+            out.writeInt( FORMAT_VERSION );
+            out.writeInt( mEntries.size() );
+            for( Entry entry : mEntries.values() )
+            {
+                String[] fields = new String[FIELD_COUNT];
+                for( int i = 0; i < FIELD_COUNT; i++ )
+                    fields[i] = entry.getField( i );
+                writeRecord( out, RECORD_PUT, encodePut( entry.md5, fields ) );
+            }
+            
+            // Reach the disk before the rename, so that a power loss can't leave an empty catalog
+            out.flush();
+            stream.getFD().sync();
+            out.close();
+            stream = null;
+            if( !tempFile.renameTo( file ) )
+            {
+                Log.e( "GalleryCatalog", "Could not replace " + mFilename );
+                return false;
+            }
+            tempFile = null;
+            mRecordCount = mEntries.size();
+            mFileVersion = nextFileVersion( mFilename );
+            mOutdated = false;
+            return true;
+        }
+        catch( IOException e )
+        {
+            Log.e( "GalleryCatalog", "IOException writing file " + mFilename + ", error message: "
+                    + e.getMessage() );
+            return false;
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( tempFile != null )
+                tempFile.delete();
+        }
+    }
+    
+    private static GalleryCatalog migrate( String filename, String legacyConfigPath )
+    {
+        Log.i( "GalleryCatalog", "Migrating " + legacyConfigPath );
+        ConfigFile config = new ConfigFile( legacyConfigPath );
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        for( String md5 : config.keySet() )
+        {
+            if( ConfigFile.SECTIONLESS_NAME.equals( md5 ) )
+                continue;
+            
+            String[] fields = new String[FIELD_COUNT];
+            fields[FIELD_GOOD_NAME] = config.get( md5, "goodName" );
+            fields[FIELD_BASE_NAME] = config.get( md5, "baseName" );
+            fields[FIELD_ROM_PATH] = config.get( md5, "romPath" );
+            fields[FIELD_ZIP_PATH] = config.get( md5, "zipPath" );
+            fields[FIELD_ZIP_ENTRY] = config.get( md5, "zipEntry" );
+            fields[FIELD_ART_PATH] = config.get( md5, "artPath" );
+            entries.put( md5, new Entry( md5, fields ) );
+        }
+        synchronized( sFileLock )
+        {
+            return new GalleryCatalog( filename, entries, 0, getFileVersion( filename ) );
+        }
+    }
+    
+    private static GalleryCatalog load( String filename )
+    {
+        byte[] data;
+        int fileVersion;
+        synchronized( sFileLock )
+        {
+            data = readFile( new File( filename ) );
+            fileVersion = getFileVersion( filename );
+            if( data == null || data.length < HEADER_SIZE || readInt( data, 0 ) != MAGIC
+                    || readInt( data, 4 ) != FORMAT_VERSION )
+            {
+                // Keep a catalog this build can't read, since it may only be damaged or be from a
+                // newer build; the next append starts a new one in its place
+                if( data != null && setAside( filename ) )
+                    fileVersion = nextFileVersion( filename );
+                return new GalleryCatalog( filename, new LinkedHashMap<String, Entry>(), 0, fileVersion );
+            }
+            
+            // Drop a record that was cut short, so that new records are appended after a valid one
+            int end = findEnd( data );
+            if( end < data.length )
+            {
+                Log.w( "GalleryCatalog", "Truncating " + filename + " to " + end + " bytes" );
+                truncate( filename, end );
+                fileVersion = nextFileVersion( filename );
+            }
+        }
+        
+        int capacity = Math.max( 16, readInt( data, 8 ) * 4 / 3 + 1 );
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( capacity );
+        int recordCount = 0;
+        int position = HEADER_SIZE;
+        int end = findEnd( data );
+        while( position < end )
+        {
+            byte type = data[position];
+            int length = readInt( data, position + 1 );
+            int payload = position + RECORD_HEADER_SIZE;
+            position = payload + length;
+            
+            // A record that can't be decoded is skipped, and counted as superseded
+            recordCount++;
+            try
+            {
+                if( type == RECORD_PUT || type == RECORD_REMOVE )
+                {
+                    // Only the MD5 is decoded now; the rest waits until it is needed
+                    DataInputStream in = new DataInputStream( new ByteArrayInputStream( data, payload,
+                            length ) );
+                    String md5 = in.readUTF();
+                    entries.remove( md5 );
+                    if( type == RECORD_PUT )
+                        entries.put( md5, new Entry( md5, data, payload, length ) );
+                }
+                else if( type == RECORD_CLEAR )
+                {
+                    entries.clear();
+                }
+            }
+            catch( IOException e )
+            {
+                Log.w( "GalleryCatalog", "Skipping corrupt record in " + filename, e );
+            }
+        }
+        
+        // Superseded records are most of the file, so keep only the live ones
+        for( Entry entry : entries.values() )
+            entry.detach();
+        return new GalleryCatalog( filename, entries, recordCount, fileVersion );
+    }
+    
+    /**
+     * Moves an unreadable catalog out of the way. Called with sFileLock held.
+     * 
+     * @return True if the file was moved.
+     */
+    private static boolean setAside( String filename )
+    {
+        File file = new File( filename );
+        File badFile = new File( filename + BAD_SUFFIX );
+        badFile.delete();
+        if( !file.renameTo( badFile ) )
+        {
+            Log.e( "GalleryCatalog", "Could not move unreadable catalog " + filename + " aside" );
+            return false;
+        }
+        Log.w( "GalleryCatalog", "Moved unreadable catalog to " + badFile.getAbsolutePath() );
+        return true;
+    }
+    
+    /**
+     * Finds the end of the last complete record. A record whose length runs past the end of the
+     * file was cut short while it was being appended, so it and anything after it are unusable.
+     */
+    private static int findEnd( byte[] data )
+    {
+        int position = HEADER_SIZE;
+        while( position + RECORD_HEADER_SIZE <= data.length )
+        {
+            int length = readInt( data, position + 1 );
+            if( length < 0 || length > data.length - position - RECORD_HEADER_SIZE )
+                break;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+    
+    private void append( byte type, byte[] payload )
+    {
+        synchronized( sFileLock )
+        {
+            // The log may be open on a file that another instance has since replaced; once reopened
+            // and written, the versions match again, though this instance still never compacts
+            if( mFileVersion != getFileVersion( mFilename ) )
+            {
+                closeLog();
+                mOutdated = true;
+            }
+            
+            try
+            {
+                if( mLog == null )
+                {
+                    File file = new File( mFilename );
+                    if( !file.exists() && !writeCompacted( file ) )
+                        return;
+                    mLog = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file,
+                            true ) ) );
+                }
+                writeRecord( mLog, type, payload );
+                
+                // Each record reaches the file as soon as it is made
+                mLog.flush();
+                mRecordCount++;
+                mFileVersion = nextFileVersion( mFilename );
+            }
+            catch( IOException e )
+            {
+                Log.e( "GalleryCatalog", "IOException appending to " + mFilename + ", error message: "
+                        + e.getMessage() );
+                closeLog();
+            }
+        }
+    }
+    
+    /** Checks whether another instance has written the file. Called with sFileLock held. */
+    private boolean isOutdated()
+    {
+        return mOutdated || mFileVersion != getFileVersion( mFilename );
+    }
+    
+    private static int getFileVersion( String filename )
+    {
+        Integer version = sFileVersions.get( new File( filename ).getAbsolutePath() );
+        return version == null ? 0 : version;
+    }
+    
+    private static int nextFileVersion( String filename )
+    {
+        int version = getFileVersion( filename ) + 1;
+        sFileVersions.put( new File( filename ).getAbsolutePath(), version );
+        return version;
+    }
+    
+    private boolean closeLog()
+    {
+        if( mLog == null )
+            return true;
+        
+        try
+        {
+            mLog.close();
+            return true;
+        }
+        catch( IOException e )
+        {
+            Log.e( "GalleryCatalog", "IOException closing " + mFilename + ", error message: "
+                    + e.getMessage() );
+            return false;
+        }
+        finally
+        {
+            mLog = null;
+        }
+    }
+    
+    private static void writeRecord( DataOutputStream out, byte type, byte[] payload ) throws IOException
+    {
+        out.writeByte( type );
+        out.writeInt( payload.length );
+        out.write( payload );
+    }
+    
+    private static byte[] encodePut( String md5, String[] fields )
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        try
+        {
+            out.writeUTF( md5 );
+            
+            // One bit per field that is present
+            int mask = 0;
+            for( int i = 0; i < FIELD_COUNT; i++ )
+            {
+                if( fields[i] != null )
+                    mask |= 1 << i;
+            }
+            out.writeByte( mask );
+            for( int i = 0; i < FIELD_COUNT; i++ )
+            {
+                if( fields[i] != null )
+                    out.writeUTF( fields[i] );
+            }
+        }
+        catch( IOException e )
+        {
+            // Writing to memory never fails
+            throw new RuntimeException( e );
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static byte[] encodeRemove( String md5 )
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            new DataOutputStream( bytes ).writeUTF( md5 );
+        }
+        catch( IOException e )
+        {
+            // Writing to memory never fails
+            throw new RuntimeException( e );
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static String[] decodeFields( byte[] data, int offset, int length )
+    {
+        String[] fields = new String[FIELD_COUNT];
+        try
+        {
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream( data, offset, length ) );
+            in.readUTF();
+            int mask = in.readUnsignedByte();
+            for( int i = 0; i < FIELD_COUNT; i++ )
+            {
+                if( ( mask & ( 1 << i ) ) != 0 )
+                    fields[i] = in.readUTF();
+            }
+        }
+        catch( IOException e )
+        {
+            Log.w( "GalleryCatalog", "Corrupt entry", e );
+        }
+        return fields;
+    }
+    
+    private static int readInt( byte[] data, int offset )
+    {
+        return ( ( data[offset] & 0xff ) << 24 ) | ( ( data[offset + 1] & 0xff ) << 16 )
+                | ( ( data[offset + 2] & 0xff ) << 8 ) | ( data[offset + 3] & 0xff );
+    }
+    
+    private static byte[] readFile( File file )
+    {
+        if( !file.exists() )
+            return null;
+        
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream( file );
+            byte[] data = new byte[(int) file.length()];
+            int count = 0;
+            int n;
+            while( count < data.length && ( n = in.read( data, count, data.length - count ) ) > 0 )
+                count += n;
+            if( count < data.length )
+            {
+                byte[] partial = new byte[count];
+                System.arraycopy( data, 0, partial, 0, count );
+                data = partial;
+            }
+            return data;
+        }
+        catch( IOException e )
+        {
+            Log.w( "GalleryCatalog", "Error reading " + file.getAbsolutePath(), e );
+            return null;
+        }
+        finally
+        {
+            if( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private static void truncate( String filename, long length )
+    {
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile( filename, "rw" );
+            file.setLength( length );
+        }
+        catch( IOException e )
+        {
+            Log.w( "GalleryCatalog", "Could not truncate " + filename, e );
+        }
+        finally
+        {
+            if( file != null )
+            {
+                try
+                {
+                    file.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+}
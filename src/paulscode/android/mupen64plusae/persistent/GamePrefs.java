@@ -360,8 +360,8 @@ public class GamePrefs
     private static Profile loadProfile( SharedPreferences prefs, String key, String defaultName,
             String customPath, String builtinPath )
     {
-        final ConfigFile custom = new ConfigFile( customPath );
-        final ConfigFile builtin = new ConfigFile( builtinPath );
+        final ConfigFile custom = ConfigFileCache.getShared().get( customPath );
+        final ConfigFile builtin = ConfigFileCache.getShared().get( builtinPath );
         final String name = prefs.getString( key, defaultName );
         
         if( TextUtils.isEmpty( name ) )
@@ -379,8 +379,8 @@ public class GamePrefs
     private static ControllerProfile loadControllerProfile( SharedPreferences prefs, String key,
             String defaultName, String customPath, String builtinPath )
     {
-        final ConfigFile custom = new ConfigFile( customPath );
-        final ConfigFile builtin = new ConfigFile( builtinPath );
+        final ConfigFile custom = ConfigFileCache.getShared().get( customPath );
+        final ConfigFile builtin = ConfigFileCache.getShared().get( builtinPath );
         final String name = prefs.getString( key, defaultName );
         
         if( custom.keySet().contains( name ) )
@@ -0,0 +1,434 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The RomFingerprintIndex class remembers the MD5 of every ROM that has been hashed, keyed on the
+ * ROM's absolute path, length, and last-modified time. As long as none of those change, a rescan
+ * can reuse the MD5 rather than reading the entire file again.
+ * <p>
+ * Each record also holds the cheaper tiers of the ROM's fingerprint: the CRCs from its header, and
+ * a {@link paulscode.android.mupen64plusae.util.SampledRomHash sampled hash} of its contents. These
+ * are enough to rule out most duplicates without an MD5, so a record may lack the MD5 until it is
+ * needed (e.g. after a quick scan).
+ * <p>
+ * ROMs found inside zip archives are keyed on the archive's fingerprint plus the entry name. They
+ * have no sampled hash, since an inflated entry can't be read out of order.
+ * <p>
+ * The file is plain text with one record per line, with empty fields for unknown values:
+ * 
+ * <pre>
+ * md5 &lt;tab&gt; length &lt;tab&gt; lastModified &lt;tab&gt; crc &lt;tab&gt; sampledHash &lt;tab&gt; path [&lt;tab&gt; zipEntryName]
+ * </pre>
+ * 
+ * Records written by earlier versions, without the crc and sampledHash fields, are still read.
+ * 
+ * All methods are synchronized so that multiple scan workers can share one index.
+ */
+public class RomFingerprintIndex
+{
+    private static final char SEPARATOR = '\t';
+    
+    /** Name of the index file. */
+    private final String mFilename;
+    
+    /** Fingerprints mapped by path (and zip entry name, if any). */
+    private final HashMap<String, Fingerprint> mFingerprints = new HashMap<String, Fingerprint>();
+    
+    /**
+     * Reads the entire index file.
+     * 
+     * @param filename The index file to read from.
+     */
+    public RomFingerprintIndex( String filename )
+    {
+        mFilename = filename;
+        reload();
+    }
+    
+    /**
+     * Looks up the MD5 of a ROM file.
+     * 
+     * @param file The ROM file.
+     * 
+     * @return The MD5 of the file, or null if the file is unknown or has changed since it was
+     *         hashed.
+     */
+    public String get( File file )
+    {
+        return get( file, null );
+    }
+    
+    /**
+     * Looks up the MD5 of a ROM inside a zip archive.
+     * 
+     * @param file The ROM file, or the zip file containing the ROM.
+     * @param zipEntryName The name of the ROM's zip entry, or null if the ROM is not zipped.
+     * 
+     * @return The MD5 of the ROM, or null if the ROM is unknown or has changed since it was hashed.
+     */
+    public synchronized String get( File file, String zipEntryName )
+    {
+        Fingerprint fingerprint = getFingerprint( file, zipEntryName );
+        return fingerprint == null ? null : fingerprint.md5;
+    }
+    
+    /**
+     * Looks up the whole fingerprint of a ROM.
+     * 
+     * @param file The ROM file, or the zip file containing the ROM.
+     * @param zipEntryName The name of the ROM's zip entry, or null if the ROM is not zipped.
+     * 
+     * @return The fingerprint, or null if the ROM is unknown or has changed since it was indexed.
+     */
+    public synchronized Fingerprint getFingerprint( File file, String zipEntryName )
+    {
+        Fingerprint fingerprint = mFingerprints.get( getKey( file.getAbsolutePath(), zipEntryName ) );
+        if( fingerprint == null || !fingerprint.matches( file ) )
+            return null;
+        return fingerprint;
+    }
+    
+    /**
+     * Gets every fingerprint in the index.
+     * 
+     * @return A snapshot of the fingerprints.
+     */
+    public synchronized List<Fingerprint> getFingerprints()
+    {
+        return new ArrayList<Fingerprint>( mFingerprints.values() );
+    }
+    
+    /**
+     * Records the MD5 of a ROM file.
+     * 
+     * @param file The ROM file.
+     * @param md5 The MD5 of the file.
+     */
+    public void put( File file, String md5 )
+    {
+        put( file, null, md5 );
+    }
+    
+    /**
+     * Records the MD5 of a ROM inside a zip archive.
+     * 
+     * @param file The ROM file, or the zip file containing the ROM.
+     * @param zipEntryName The name of the ROM's zip entry, or null if the ROM is not zipped.
+     * @param md5 The MD5 of the ROM.
+     */
+    public void put( File file, String zipEntryName, String md5 )
+    {
+        if( TextUtils.isEmpty( md5 ) )
+            return;
+        
+        put( file, zipEntryName, md5, null, null );
+    }
+    
+    /**
+     * Records some or all tiers of a ROM's fingerprint. Tiers that are null keep the values already
+     * recorded for the ROM, as long as the ROM hasn't changed since.
+     * 
+     * @param file The ROM file, or the zip file containing the ROM.
+     * @param zipEntryName The name of the ROM's zip entry, or null if the ROM is not zipped.
+     * @param md5 The MD5 of the ROM, or null.
+     * @param crc The CRCs from the ROM header, or null.
+     * @param sampledHash The sampled hash of the ROM, or null.
+     */
+    public synchronized void put( File file, String zipEntryName, String md5, String crc,
+            String sampledHash )
+    {
+        Fingerprint previous = getFingerprint( file, zipEntryName );
+        if( previous != null )
+        {
+            if( md5 == null )
+                md5 = previous.md5;
+            if( crc == null )
+                crc = previous.crc;
+            if( sampledHash == null )
+                sampledHash = previous.sampledHash;
+        }
+        
+        String path = file.getAbsolutePath();
+        mFingerprints.put( getKey( path, zipEntryName ), new Fingerprint( md5, file.length(),
+                file.lastModified(), crc, sampledHash, path, zipEntryName ) );
+    }
+    
+    /**
+     * Forgets a ROM, e.g. after its file was deleted.
+     * 
+     * @param file The ROM file, or the zip file containing the ROM.
+     * @param zipEntryName The name of the ROM's zip entry, or null if the ROM is not zipped.
+     */
+    public synchronized void remove( File file, String zipEntryName )
+    {
+        mFingerprints.remove( getKey( file.getAbsolutePath(), zipEntryName ) );
+    }
+    
+    /**
+     * Removes the records of all ROMs whose files no longer exist.
+     * 
+     * @return The number of records removed.
+     */
+    public synchronized int prune()
+    {
+        int count = 0;
+        Iterator<Fingerprint> iterator = mFingerprints.values().iterator();
+        while( iterator.hasNext() )
+        {
+            if( !new File( iterator.next().path ).exists() )
+            {
+                iterator.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Re-loads the entire index file, overwriting any unsaved changes.
+     * 
+     * @return True if successful.
+     * @see #save()
+     */
+    public synchronized boolean reload()
+    {
+        mFingerprints.clear();
+        if( TextUtils.isEmpty( mFilename ) )
+            return false;
+        
+        BufferedReader reader;
+        try
+        {
+            reader = new BufferedReader( new FileReader( mFilename ) );
+        }
+        catch( FileNotFoundException e )
+        {
+            // Nothing has been indexed yet
+            return false;
+        }
+        
+        try
+        {
+            String line;
+            while( ( line = reader.readLine() ) != null )
+            {
+                Fingerprint fingerprint = Fingerprint.parse( line );
+                if( fingerprint != null )
+                    mFingerprints.put( getKey( fingerprint.path, fingerprint.zipEntryName ), fingerprint );
+            }
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomFingerprintIndex", "Error reading " + mFilename, e );
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                reader.close();
+            }
+            catch( IOException ignored )
+            {
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Saves the index back to the index file. The index file is only replaced once the new one is
+     * completely written, so an interrupted save leaves the previous index intact.
+     * 
+     * @return True if successful.
+     * @see #reload()
+     */
+    public synchronized boolean save()
+    {
+        if( TextUtils.isEmpty( mFilename ) )
+        {
+            Log.e( "RomFingerprintIndex", "Filename not specified in method save()" );
+            return false;
+        }
+        
+        // Ensure parent directories exist before writing file
+        File file = new File( mFilename );
+        file.getParentFile().mkdirs();
+        
+        // Each save writes a temp file of its own, so saves from two instances can't interleave
+        File tempFile = null;
+        FileOutputStream stream = null;
+        try
+        {
+            tempFile = File.createTempFile( file.getName(), ".tmp", file.getParentFile() );
+            stream = new FileOutputStream( tempFile );
+            BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( stream ) );
+            for( Fingerprint fingerprint : mFingerprints.values() )
+            {
+                writer.write( fingerprint.toString() );
+                writer.newLine();
+            }
+            writer.flush();
+            stream.getFD().sync();
+            writer.close();
+            stream = null;
+        }
+        catch( IOException e )
+        {
+            Log.e( "RomFingerprintIndex", "IOException writing file " + mFilename + ", error message: "
+                    + e.getMessage() );
+            if( tempFile != null )
+                tempFile.delete();
+            return false;
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+        
+        if( !tempFile.renameTo( file ) )
+        {
+            Log.e( "RomFingerprintIndex", "Could not replace " + mFilename );
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+    
+    private static String getKey( String path, String zipEntryName )
+    {
+        return zipEntryName == null ? path : path + SEPARATOR + zipEntryName;
+    }
+    
+    /**
+     * The Fingerprint class associates the identity of a ROM with its MD5 and cheaper hashes.
+     */
+    public static class Fingerprint
+    {
+        /** The MD5 of the ROM, or null if it hasn't been computed. */
+        public final String md5;
+        
+        /** The length of the ROM file, or of the zip file containing the ROM. */
+        public final long length;
+        
+        public final long lastModified;
+        
+        /** The CRCs from the ROM header, or null if unknown. */
+        public final String crc;
+        
+        /** The sampled hash of the ROM, or null if unknown or the ROM is zipped. */
+        public final String sampledHash;
+        
+        /** The path of the ROM file, or of the zip file containing the ROM. */
+        public final String path;
+        
+        /** The name of the ROM's zip entry, or null if the ROM is not zipped. */
+        public final String zipEntryName;
+        
+        public Fingerprint( String md5, long length, long lastModified, String crc,
+                String sampledHash, String path, String zipEntryName )
+        {
+            this.md5 = md5;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.crc = crc;
+            this.sampledHash = sampledHash;
+            this.path = path;
+            this.zipEntryName = zipEntryName;
+        }
+        
+        public boolean matches( File file )
+        {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+        
+        public static Fingerprint parse( String line )
+        {
+            String[] fields = line.split( String.valueOf( SEPARATOR ) );
+            if( fields.length < 4 || fields.length > 7 )
+                return null;
+            
+            try
+            {
+                long length = Long.parseLong( fields[1] );
+                long lastModified = Long.parseLong( fields[2] );
+                if( fields.length <= 5 )
+                {
+                    // Written before the crc and sampled hash were recorded
+                    String zipEntryName = fields.length == 5 ? fields[4] : null;
+                    return new Fingerprint( fields[0], length, lastModified, null, null, fields[3],
+                            zipEntryName );
+                }
+                String zipEntryName = fields.length == 7 ? fields[6] : null;
+                return new Fingerprint( emptyToNull( fields[0] ), length, lastModified,
+                        emptyToNull( fields[3] ), emptyToNull( fields[4] ), fields[5], zipEntryName );
+            }
+            catch( NumberFormatException e )
+            {
+                return null;
+            }
+        }
+        
+        @Override
+        public String toString()
+        {
+            String line = nullToEmpty( md5 ) + SEPARATOR + length + SEPARATOR + lastModified
+                    + SEPARATOR + nullToEmpty( crc ) + SEPARATOR + nullToEmpty( sampledHash )
+                    + SEPARATOR + path;
+            return zipEntryName == null ? line : line + SEPARATOR + zipEntryName;
+        }
+        
+        private static String emptyToNull( String value )
+        {
+            return value.length() == 0 ? null : value;
+        }
+        
+        private static String nullToEmpty( String value )
+        {
+            return value == null ? "" : value;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The ScanCheckpoint class records how far a ROM scan got, so that a scan that was canceled or
+ * killed can be restarted without examining the same files again. The gallery catalog already
+ * keeps every ROM the scan cached, so the checkpoint only holds what the catalog can't tell: the
+ * scan's settings, which files were finished, and which ROMs still await their real MD5 after a
+ * quick scan. Files that were being examined when the scan stopped are not recorded, and are
+ * examined again from the start.
+ * <p>
+ * The file is plain text. The first line holds the settings, and each following line a finished
+ * file or a deferred ROM:
+ * 
+ * <pre>
+ * S &lt;tab&gt; searchZips &lt;tab&gt; quickScan &lt;tab&gt; clearGallery &lt;tab&gt; searchPath
+ * F &lt;tab&gt; path
+ * D &lt;tab&gt; crc &lt;tab&gt; md5 &lt;tab&gt; path [&lt;tab&gt; zipEntryName]
+ * </pre>
+ * 
+ * The file is replaced atomically, so a save that is interrupted leaves the previous checkpoint
+ * intact.
+ * <p>
+ * All methods are synchronized.
+ */
+public class ScanCheckpoint
+{
+    private static final char SEPARATOR = '\t';
+    private static final String TAG_SETTINGS = "S";
+    private static final String TAG_FILE = "F";
+    private static final String TAG_DEFERRED = "D";
+    
+    /** Name of the checkpoint file. */
+    private final String mFilename;
+    
+    private String mSearchPath = null;
+    private boolean mSearchZips = false;
+    private boolean mQuickScan = false;
+    private boolean mClearGallery = false;
+    
+    /** Absolute paths of the files whose ROMs are all in the catalog. */
+    private final HashSet<String> mFinishedPaths = new HashSet<String>();
+    
+    /** ROMs cached under an MD5 assumed from their header CRC. */
+    private final List<DeferredEntry> mDeferredEntries = new ArrayList<DeferredEntry>();
+    
+    /**
+     * Reads the checkpoint file, if one was left by an unfinished scan.
+     * 
+     * @param filename The checkpoint file to read from.
+     */
+    public ScanCheckpoint( String filename )
+    {
+        mFilename = filename;
+        reload();
+    }
+    
+    /**
+     * The DeferredEntry class describes a ROM whose MD5 was assumed from its header CRC.
+     */
+    public static class DeferredEntry
+    {
+        /** The absolute path of the ROM file, or of the zip file containing the ROM. */
+        public final String path;
+        
+        /** The name of the ROM's zip entry, or null if the ROM is not zipped. */
+        public final String zipEntryName;
+        
+        /** The CRC from the ROM header. */
+        public final String crc;
+        
+        /** The MD5 the ROM was provisionally cached under. */
+        public final String md5;
+        
+        public DeferredEntry( String path, String zipEntryName, String crc, String md5 )
+        {
+            this.path = path;
+            this.zipEntryName = zipEntryName;
+            this.crc = crc;
+            this.md5 = md5;
+        }
+    }
+    
+    /**
+     * Determines whether the checkpoint was left by a scan with the given settings.
+     * 
+     * @return True if a scan with these settings can continue from the checkpoint.
+     */
+    public synchronized boolean matches( File searchPath, boolean searchZips, boolean quickScan,
+            boolean clearGallery )
+    {
+        return mSearchPath != null && mSearchPath.equals( searchPath.getAbsolutePath() )
+                && mSearchZips == searchZips && mQuickScan == quickScan
+                && mClearGallery == clearGallery;
+    }
+    
+    /**
+     * Forgets any earlier progress and starts recording a scan with the given settings.
+     */
+    public synchronized void begin( File searchPath, boolean searchZips, boolean quickScan,
+            boolean clearGallery )
+    {
+        mSearchPath = searchPath.getAbsolutePath();
+        mSearchZips = searchZips;
+        mQuickScan = quickScan;
+        mClearGallery = clearGallery;
+        mFinishedPaths.clear();
+        mDeferredEntries.clear();
+    }
+    
+    /**
+     * Determines whether a file was finished by the checkpointed scan.
+     */
+    public synchronized boolean isFinished( File file )
+    {
+        return mFinishedPaths.contains( file.getAbsolutePath() );
+    }
+    
+    /**
+     * Records that every ROM in a file is in the catalog.
+     */
+    public synchronized void putFinished( File file )
+    {
+        mFinishedPaths.add( file.getAbsolutePath() );
+    }
+    
+    /**
+     * Gets the number of finished files.
+     */
+    public synchronized int getFinishedCount()
+    {
+        return mFinishedPaths.size();
+    }
+    
+    /**
+     * Records a ROM whose MD5 was assumed from its header CRC.
+     */
+    public synchronized void putDeferred( File file, String zipEntryName, String crc, String md5 )
+    {
+        mDeferredEntries.add( new DeferredEntry( file.getAbsolutePath(), zipEntryName, crc, md5 ) );
+    }
+    
+    /**
+     * Gets the ROMs whose MD5s were assumed by the checkpointed scan.
+     */
+    public synchronized List<DeferredEntry> getDeferredEntries()
+    {
+        return new ArrayList<DeferredEntry>( mDeferredEntries );
+    }
+    
+    /**
+     * Deletes the checkpoint file, once the scan it describes has finished.
+     * 
+     * @return True if successful.
+     */
+    public synchronized boolean delete()
+    {
+        mSearchPath = null;
+        mFinishedPaths.clear();
+        mDeferredEntries.clear();
+        File file = new File( mFilename );
+        return !file.exists() || file.delete();
+    }
+    
+    /**
+     * Re-loads the entire checkpoint file, overwriting any unsaved changes.
+     * 
+     * @return True if successful.
+     * @see #save()
+     */
+    public synchronized boolean reload()
+    {
+        mSearchPath = null;
+        mFinishedPaths.clear();
+        mDeferredEntries.clear();
+        if( TextUtils.isEmpty( mFilename ) )
+            return false;
+        
+        BufferedReader reader;
+        try
+        {
+            reader = new BufferedReader( new FileReader( mFilename ) );
+        }
+        catch( FileNotFoundException e )
+        {
+            // No scan was left unfinished
+            return false;
+        }
+        
+        try
+        {
+            String line;
+            while( ( line = reader.readLine() ) != null )
+                parseLine( line );
+        }
+        catch( IOException e )
+        {
+            Log.w( "ScanCheckpoint", "Error reading " + mFilename, e );
+            mSearchPath = null;
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                reader.close();
+            }
+            catch( IOException ignored )
+            {
+            }
+        }
+        return mSearchPath != null;
+    }
+    
+    /**
+     * Saves the checkpoint to the checkpoint file, replacing the previous one only once the new one
+     * is completely written.
+     * 
+     * @return True if successful.
+     * @see #reload()
+     */
+    public synchronized boolean save()
+    {
+        if( TextUtils.isEmpty( mFilename ) )
+        {
+            Log.e( "ScanCheckpoint", "Filename not specified in method save()" );
+            return false;
+        }
+        if( mSearchPath == null )
+        {
+            Log.e( "ScanCheckpoint", "No scan begun before method save()" );
+            return false;
+        }
+        
+        // Ensure parent directories exist before writing file
+        File file = new File( mFilename );
+        file.getParentFile().mkdirs();
+        
+        // Each save writes a temp file of its own, so saves from two instances can't interleave
+        File tempFile = null;
+        FileOutputStream stream = null;
+        try
+        {
+            tempFile = File.createTempFile( file.getName(), ".tmp", file.getParentFile() );
+            stream = new FileOutputStream( tempFile );
+            BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( stream ) );
+            writer.write( TAG_SETTINGS + SEPARATOR + ( mSearchZips ? 1 : 0 ) + SEPARATOR
+                    + ( mQuickScan ? 1 : 0 ) + SEPARATOR + ( mClearGallery ? 1 : 0 ) + SEPARATOR
+                    + mSearchPath );
+            writer.newLine();
+            for( String path : mFinishedPaths )
+            {
+                writer.write( TAG_FILE + SEPARATOR + path );
+                writer.newLine();
+            }
+            for( DeferredEntry entry : mDeferredEntries )
+            {
+                writer.write( TAG_DEFERRED + SEPARATOR + entry.crc + SEPARATOR + entry.md5
+                        + SEPARATOR + entry.path );
+                if( entry.zipEntryName != null )
+                    writer.write( SEPARATOR + entry.zipEntryName );
+                writer.newLine();
+            }
+            
+            // The new checkpoint must be on disk before it replaces the old one
+            writer.flush();
+            stream.getFD().sync();
+            writer.close();
+            stream = null;
+        }
+        catch( IOException e )
+        {
+            Log.e( "ScanCheckpoint", "IOException writing file " + mFilename + ", error message: "
+                    + e.getMessage() );
+            if( tempFile != null )
+                tempFile.delete();
+            return false;
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+        
+        if( !tempFile.renameTo( file ) )
+        {
+            Log.e( "ScanCheckpoint", "Could not replace " + mFilename );
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+    
+    private void parseLine( String line )
+    {
+        String[] fields = line.split( String.valueOf( SEPARATOR ), -1 );
+        if( fields[0].equals( TAG_SETTINGS ) && fields.length == 5 )
+        {
+            mSearchZips = fields[1].equals( "1" );
+            mQuickScan = fields[2].equals( "1" );
+            mClearGallery = fields[3].equals( "1" );
+            mSearchPath = fields[4];
+        }
+        else if( fields[0].equals( TAG_FILE ) && fields.length == 2 )
+        {
+            mFinishedPaths.add( fields[1] );
+        }
+        else if( fields[0].equals( TAG_DEFERRED ) && ( fields.length == 4 || fields.length == 5 ) )
+        {
+            String zipEntryName = fields.length == 5 ? fields[4] : null;
+            mDeferredEntries.add( new DeferredEntry( fields[3], zipEntryName, fields[1], fields[2] ) );
+        }
+    }
+}
@@ -93,9 +93,15 @@ public class UserPrefs
     /** The subdirectory containing cover art files. */
     public final String coverArtDir;
     
+    /** The subdirectory containing cover art scaled to the gallery cell size. */
+    public final String coverArtThumbnailDir;
+    
     /** The subdirectory containing unzipped ROM files. */
     public final String unzippedRomsDir;
     
+    /** The most disk space the unzipped ROM files may occupy, in bytes. */
+    public final long unzippedRomsMaxBytes;
+    
     /** The subdirectory containing custom profiles. */
     public final String profilesDir;
     
@@ -111,9 +117,21 @@ public class UserPrefs
     /** The subdirectory where hi-res textures must be unzipped. */
     public final String hiResTextureDir;
     
-    /** The path of the rom info cache for the gallery. */
+    /** The path of the rom catalog for the gallery. */
+    public final String romCatalog_dat;
+    
+    /** The path of the rom info cache written by earlier versions, migrated into the catalog. */
     public final String romInfoCache_cfg;
     
+    /** The path of the rom fingerprint index, used to skip hashing unchanged roms. */
+    public final String romFingerprints_txt;
+    
+    /** The path of the checkpoint left by an unfinished rom scan, used to resume the scan. */
+    public final String scanCheckpoint_txt;
+    
+    /** The path of the cover art failure list, used to avoid re-requesting missing art. */
+    public final String coverArtFailures_txt;
+    
     /** The path of the custom controller profiles file. */
     public final String controllerProfiles_cfg;
     
@@ -226,6 +244,8 @@ public class UserPrefs
     private static final String KEY_SEARCH_ZIPS = "searchZips";
     private static final String KEY_DOWNLOAD_ART = "downloadArt";
     private static final String KEY_CLEAR_GALLERY = "clearGallery";
+    private static final String KEY_QUICK_SCAN = "quickScan";
+    private static final String KEY_SEARCH_PATH = "searchPath";
     // ... add more as needed
     
     // Shared preferences default values
@@ -238,6 +258,8 @@ public class UserPrefs
     public static final boolean DEFAULT_SEARCH_ZIPS = true;
     public static final boolean DEFAULT_DOWNLOAD_ART = true;
     public static final boolean DEFAULT_CLEAR_GALLERY = true;
+    public static final boolean DEFAULT_QUICK_SCAN = true;
+    public static final String DEFAULT_SEARCH_PATH = "";
     // ... add more as needed
     
     private final SharedPreferences mPreferences;
@@ -290,13 +312,19 @@ public class UserPrefs
         userDataDir = mPreferences.getString( "pathGameSaves", "" );
         galleryCacheDir = userDataDir + "/GalleryCache";
         coverArtDir = galleryCacheDir + "/CoverArt";
+        coverArtThumbnailDir = coverArtDir + "/Thumbnails";
         unzippedRomsDir = galleryCacheDir + "/UnzippedRoms";
+        unzippedRomsMaxBytes = getSafeInt( mPreferences, "unzippedRomsCacheSize", 1024 ) * 1024L * 1024L;
         profilesDir = userDataDir + "/Profiles";
         crashLogDir = userDataDir + "/CrashLogs";
         coreUserDataDir = userDataDir + "/CoreConfig/UserData";
         coreUserCacheDir = userDataDir + "/CoreConfig/UserCache";
         hiResTextureDir = coreUserDataDir + "/mupen64plus/hires_texture/"; // MUST match what rice assumes natively
+        romCatalog_dat = galleryCacheDir + "/romCatalog.dat";
         romInfoCache_cfg = galleryCacheDir + "/romInfoCache.cfg";
+        romFingerprints_txt = galleryCacheDir + "/romFingerprints.txt";
+        scanCheckpoint_txt = galleryCacheDir + "/scanCheckpoint.txt";
+        coverArtFailures_txt = galleryCacheDir + "/coverArtFailures.txt";
         controllerProfiles_cfg = profilesDir + "/controller.cfg";
         touchscreenProfiles_cfg = profilesDir + "/touchscreen.cfg";
         emulationProfiles_cfg = profilesDir + "/emulation.cfg";
@@ -317,7 +345,7 @@ public class UserPrefs
         isTouchpadEnabled = appData.hardwareInfo.isXperiaPlay && mPreferences.getBoolean( "touchpadEnabled", true );
         isTouchpadFeedbackEnabled = mPreferences.getBoolean( "touchpadFeedback", false );
         touchpadSkin = appData.touchpadSkinsDir + "/Xperia-Play";
-        ConfigFile touchpad_cfg = new ConfigFile( appData.touchpadProfiles_cfg );
+        ConfigFile touchpad_cfg = ConfigFileCache.getShared().get( appData.touchpadProfiles_cfg );
         ConfigSection section = touchpad_cfg.get( mPreferences.getString( "touchpadLayout", "" ) );
         if( section != null )
             touchpadProfile = new Profile( true, section );
@@ -582,6 +610,17 @@ public class UserPrefs
         return getBoolean( KEY_CLEAR_GALLERY, DEFAULT_CLEAR_GALLERY );
     }
     
+    public boolean getQuickScan()
+    {
+        return getBoolean( KEY_QUICK_SCAN, DEFAULT_QUICK_SCAN );
+    }
+    
+    /** Gets the directory of the last ROM scan, which is watched for changes, or empty if none. */
+    public String getSearchPath()
+    {
+        return getString( KEY_SEARCH_PATH, DEFAULT_SEARCH_PATH );
+    }
+    
     public void putEmulationProfileDefault( String value )
     {
         putString( KEY_EMULATION_PROFILE_DEFAULT, value );
@@ -622,6 +661,16 @@ public class UserPrefs
         putBoolean( KEY_CLEAR_GALLERY, value );
     }
     
+    public void putQuickScan( boolean value )
+    {
+        putBoolean( KEY_QUICK_SCAN, value );
+    }
+    
+    public void putSearchPath( String value )
+    {
+        putString( KEY_SEARCH_PATH, value );
+    }
+    
     private boolean getBoolean( String key, boolean defaultValue )
     {
         return mPreferences.getBoolean( key, defaultValue );
@@ -27,6 +27,7 @@ import org.apache.commons.lang.ArrayUtils;
 import org.mupen64plusae.v3.alpha.R;
 
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.profile.Profile;
 import android.app.AlertDialog.Builder;
 import android.content.Context;
@@ -82,8 +83,8 @@ public class ProfilePreference extends CompatibleListPreference
     
     public void populateProfiles( String builtinPath, String customPath, String defaultValue )
     {
-        ConfigFile configBuiltin = new ConfigFile( builtinPath );
-        ConfigFile configCustom = new ConfigFile( customPath );
+        ConfigFile configBuiltin = ConfigFileCache.getShared().get( builtinPath );
+        ConfigFile configCustom = ConfigFileCache.getShared().get( customPath );
         List<Profile> profiles = new ArrayList<Profile>();
         profiles.addAll( Profile.getProfiles( configBuiltin, true ) );
         profiles.addAll( Profile.getProfiles( configCustom, false ) );
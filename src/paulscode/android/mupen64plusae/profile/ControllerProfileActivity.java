@@ -43,6 +43,7 @@ import paulscode.android.mupen64plusae.input.provider.MogaProvider;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import android.annotation.TargetApi;
 import android.app.Activity;
@@ -136,7 +137,7 @@ public class ControllerProfileActivity extends Activity implements OnInputListen
         String name = extras.getString( Keys.Extras.PROFILE_NAME );
         if( TextUtils.isEmpty( name ) )
             throw new Error( "Invalid usage: profile name cannot be null or empty" );
-        mConfigFile = new ConfigFile( mUserPrefs.controllerProfiles_cfg );
+        mConfigFile = ConfigFileCache.getShared().get( mUserPrefs.controllerProfiles_cfg );
         ConfigSection section = mConfigFile.get( name );
         if( section == null )
             throw new Error( "Invalid usage: profile name not found in config file" );
@@ -31,6 +31,7 @@ import paulscode.android.mupen64plusae.dialog.Prompt;
 import paulscode.android.mupen64plusae.dialog.Prompt.PromptConfirmListener;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import android.annotation.TargetApi;
 import android.app.AlertDialog;
@@ -132,8 +133,8 @@ abstract public class ManageProfilesActivity extends ListActivity
         // Get the config files from the subclass-specified paths
         String customPath = getConfigFilePath( false );
         String builtinPath = getConfigFilePath( true );
-        mConfigBuiltin = new ConfigFile( builtinPath );
-        mConfigCustom = new ConfigFile( customPath );
+        mConfigBuiltin = ConfigFileCache.getShared().get( builtinPath );
+        mConfigCustom = ConfigFileCache.getShared().get( customPath );
     }
     
     @Override
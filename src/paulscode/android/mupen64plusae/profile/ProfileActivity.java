@@ -23,6 +23,7 @@ package paulscode.android.mupen64plusae.profile;
 import paulscode.android.mupen64plusae.Keys;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
@@ -129,7 +130,7 @@ public abstract class ProfileActivity extends PreferenceActivity implements
         final String configPath = getConfigFilePath();
         
         // Load the config file and working cache
-        mConfigFile = new ConfigFile( configPath );
+        mConfigFile = ConfigFileCache.getShared().get( configPath );
         mPrefs = getSharedPreferences( PREFS_NAME, MODE_PRIVATE );
         transcribe( mConfigFile, mPrefs, mProfileName );
         
@@ -33,6 +33,7 @@ import paulscode.android.mupen64plusae.input.map.VisibleTouchMap;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
@@ -130,7 +131,7 @@ public class TouchscreenProfileActivity extends Activity implements OnTouchListe
         String name = extras.getString( Keys.Extras.PROFILE_NAME );
         if( TextUtils.isEmpty( name ) )
             throw new Error( "Invalid usage: profile name cannot be null or empty" );
-        mConfigFile = new ConfigFile( mUserPrefs.touchscreenProfiles_cfg );
+        mConfigFile = ConfigFileCache.getShared().get( mUserPrefs.touchscreenProfiles_cfg );
         ConfigSection section = mConfigFile.get( name );
         if( section == null )
             throw new Error( "Invalid usage: profile name not found in config file" );
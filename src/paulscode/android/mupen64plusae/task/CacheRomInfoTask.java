@@ -21,17 +21,22 @@
 package paulscode.android.mupen64plusae.task;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -39,28 +44,36 @@ import java.util.zip.ZipFile;
 import org.mupen64plusae.v3.alpha.R;
 
 import paulscode.android.mupen64plusae.dialog.ProgressDialog;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog;
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog.Entry;
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex.Fingerprint;
+import paulscode.android.mupen64plusae.persistent.ScanCheckpoint;
+import paulscode.android.mupen64plusae.persistent.ScanCheckpoint.DeferredEntry;
+import paulscode.android.mupen64plusae.task.DeferredMd5Task.DeferredRom;
 import paulscode.android.mupen64plusae.util.RomDatabase;
 import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
-import paulscode.android.mupen64plusae.util.RomHeader;
+import paulscode.android.mupen64plusae.util.RomFileWalker;
+import paulscode.android.mupen64plusae.util.RomHeaderReader;
+import paulscode.android.mupen64plusae.util.SampledRomHash;
+import paulscode.android.mupen64plusae.util.ScanStats;
 import android.app.Activity;
 import android.os.AsyncTask;
 import android.text.TextUtils;
 import android.util.Log;
 
-public class CacheRomInfoTask extends AsyncTask<Void, ConfigSection, ConfigFile>
+public class CacheRomInfoTask extends AsyncTask<Void, Entry, GalleryCatalog>
 {
     public interface CacheRomInfoListener
     {
-        public void onCacheRomInfoProgress( ConfigSection section );
+        public void onCacheRomInfoProgress( Entry entry );
         
-        public void onCacheRomInfoFinished( ConfigFile file, boolean canceled );
+        public void onCacheRomInfoFinished( GalleryCatalog catalog, boolean canceled );
     }
     
-    public CacheRomInfoTask( Activity activity, File searchPath, String databasePath, String configPath,
-            String artDir, String unzipDir, boolean searchZips, boolean downloadArt, boolean clearGallery,
-            CacheRomInfoListener listener )
+    public CacheRomInfoTask( Activity activity, File searchPath, String databasePath, String catalogPath,
+            String fingerprintPath, String checkpointPath, String artDir, String artFailuresPath, boolean searchZips, boolean downloadArt, boolean clearGallery,
+            boolean quickScan, CacheRomInfoListener listener )
     {
         if( searchPath == null )
             throw new IllegalArgumentException( "Root path cannot be null" );
@@ -68,23 +81,30 @@ public class CacheRomInfoTask extends AsyncTask<Void, ConfigSection, ConfigFile>
             throw new IllegalArgumentException( "Root path does not exist: " + searchPath.getAbsolutePath() );
         if( TextUtils.isEmpty( databasePath ) )
             throw new IllegalArgumentException( "ROM database path cannot be null or empty" );
-        if( TextUtils.isEmpty( configPath ) )
-            throw new IllegalArgumentException( "Config file path cannot be null or empty" );
+        if( TextUtils.isEmpty( catalogPath ) )
+            throw new IllegalArgumentException( "Catalog path cannot be null or empty" );
+        if( TextUtils.isEmpty( fingerprintPath ) )
+            throw new IllegalArgumentException( "Fingerprint index path cannot be null or empty" );
+        if( TextUtils.isEmpty( checkpointPath ) )
+            throw new IllegalArgumentException( "Checkpoint path cannot be null or empty" );
         if( TextUtils.isEmpty( artDir ) )
             throw new IllegalArgumentException( "Art directory cannot be null or empty" );
-        if( TextUtils.isEmpty( unzipDir ) )
-            throw new IllegalArgumentException( "Unzip directory cannot be null or empty" );
+        if( TextUtils.isEmpty( artFailuresPath ) )
+            throw new IllegalArgumentException( "Art failures path cannot be null or empty" );
         if( listener == null )
             throw new IllegalArgumentException( "Listener cannot be null" );
         
         mSearchPath = searchPath;
         mDatabasePath = databasePath;
-        mConfigPath = configPath;
+        mCatalogPath = catalogPath;
+        mFingerprintPath = fingerprintPath;
+        mCheckpointPath = checkpointPath;
         mArtDir = artDir;
-        mUnzipDir = unzipDir;
+        mArtFailuresPath = artFailuresPath;
         mSearchZips = searchZips;
         mDownloadArt = downloadArt;
         mClearGallery = clearGallery;
+        mQuickScan = quickScan;
         mListener = listener;
         
         CharSequence title = activity.getString( R.string.scanning_title );
@@ -95,229 +115,579 @@ public class CacheRomInfoTask extends AsyncTask<Void, ConfigSection, ConfigFile>
     
     private final File mSearchPath;
     private final String mDatabasePath;
-    private final String mConfigPath;
+    private final String mCatalogPath;
+    private final String mFingerprintPath;
+    private final String mCheckpointPath;
     private final String mArtDir;
-    private final String mUnzipDir;
+    private final String mArtFailuresPath;
     private final boolean mSearchZips;
     private final boolean mDownloadArt;
     private final boolean mClearGallery;
+    private final boolean mQuickScan;
     private final CacheRomInfoListener mListener;
     private final ProgressDialog mProgress;
     
+    /** Where the scan spends its time, logged when the scan ends. */
+    private final ScanStats mStats = new ScanStats();
+    
+    /** ROMs cached under an MD5 assumed from their header CRC, accessed only by the writer. */
+    private final List<DeferredRom> mDeferredRoms = new ArrayList<DeferredRom>();
+    
+    /** Number of worker threads parsing headers and computing MD5s in parallel. */
+    private static final int WORKER_COUNT = Math.max( 1, Runtime.getRuntime().availableProcessors() );
+    
+    /** Capacity of the queues between the pipeline stages. */
+    private static final int QUEUE_CAPACITY = 4 * WORKER_COUNT;
+    
+    /** How long a blocked pipeline stage waits before checking whether the task was canceled. */
+    private static final long POLL_TIMEOUT_MS = 100;
+    
+    /** Marker telling a worker that the walker has no more files. */
+    private static final File END_OF_FILES = new File( "" );
+    
+    /** Marker telling the writer that a worker has no more ROMs. */
+    private static final HashedRom END_OF_ROMS = new HashedRom( null, null, null, null, false );
+    
+    /** How long to wait for the pipeline threads to stop before saving what they produced. */
+    private static final long WORKER_TIMEOUT_MS = 10000;
+    
+    /** How often the scan's progress is saved, so that an interrupted scan can be resumed. */
+    private static final long CHECKPOINT_INTERVAL_MS = 5000;
+    
     @Override
-    protected ConfigFile doInBackground( Void... params )
+    protected GalleryCatalog doInBackground( Void... params )
     {
+        mStats.start();
+        
         // Ensure destination directories exist
         new File( mArtDir ).mkdirs();
-        new File( mUnzipDir ).mkdirs();
         
         // Create .nomedia file to hide cover art from Android Photo Gallery
         // http://android2know.blogspot.com/2013/01/create-nomedia-file.html
         touchFile( mArtDir + "/.nomedia" );
         
-        final List<File> files = getAllFiles( mSearchPath );
         final RomDatabase database = new RomDatabase( mDatabasePath );
-        final ConfigFile config = new ConfigFile( mConfigPath );
-        if (mClearGallery)
-            config.clear();
+        final GalleryCatalog catalog = GalleryCatalog.open( mCatalogPath );
         
-        mProgress.setMaxProgress( files.size() );
-        for( final File file : files )
+        // Continue an unfinished scan with the same settings, whose ROMs are already in the catalog
+        final ScanCheckpoint checkpoint = new ScanCheckpoint( mCheckpointPath );
+        if( checkpoint.matches( mSearchPath, mSearchZips, mQuickScan, mClearGallery ) )
         {
-            mProgress.setMaxSubprogress( 0 );
-            mProgress.setSubtext( "" );
-            mProgress.setText( file.getAbsolutePath().substring( mSearchPath.getAbsolutePath().length() ) );
-            mProgress.setMessage( R.string.cacheRomInfo_searching );
-            
-            if( isCancelled() ) break;
-            RomHeader header = new RomHeader( file );
-            if( header.isValid )
+            Log.i( "CacheRomInfoTask", "Resuming scan after " + checkpoint.getFinishedCount() + " files" );
+            for( DeferredEntry entry : checkpoint.getDeferredEntries() )
+                mDeferredRoms.add( new DeferredRom( new File( entry.path ), entry.zipEntryName,
+                        entry.crc, entry.md5 ) );
+        }
+        else
+        {
+            checkpoint.begin( mSearchPath, mSearchZips, mQuickScan, mClearGallery );
+            if( mClearGallery )
+                catalog.clear();
+        }
+        
+        // Forget the MD5s of ROMs that have since been deleted
+        final RomFingerprintIndex fingerprints = new RomFingerprintIndex( mFingerprintPath );
+        fingerprints.prune();
+        
+        // Cover art is downloaded on its own threads so that slow servers don't hold up the scan
+        final CoverArtFetcher artFetcher = mDownloadArt ? new CoverArtFetcher( mArtFailuresPath, mStats ) : null;
+        
+        // The scan is a pipeline: one walker feeds candidate files to a pool of workers that parse
+        // headers and compute MD5s, and this thread serializes every write into the catalog
+        final BlockingQueue<File> files = new ArrayBlockingQueue<File>( QUEUE_CAPACITY );
+        final BlockingQueue<HashedRom> roms = new ArrayBlockingQueue<HashedRom>( QUEUE_CAPACITY );
+        final ExecutorService executor = Executors.newFixedThreadPool( WORKER_COUNT + 1 );
+        mProgress.setMaxProgress( 0 );
+        executor.execute( new Runnable()
+        {
+            @Override
+            public void run()
             {
-                cacheFile( file, database, config );
+                walkFiles( files, checkpoint );
             }
-            else if( header.isZip && mSearchZips )
+        } );
+        for( int i = 0; i < WORKER_COUNT; i++ )
+        {
+            executor.execute( new Runnable()
             {
-                Log.i( "CacheRomInfoTask", "Found zip file " + file.getName() );
-                try
+                @Override
+                public void run()
                 {
-                    ZipFile zipFile = new ZipFile( file );
-                    mProgress.setMaxSubprogress( zipFile.size() );
-                    Enumeration<? extends ZipEntry> entries = zipFile.entries();
-                    while( entries.hasMoreElements() )
-                    {
-                        ZipEntry zipEntry = entries.nextElement();
-                        mProgress.setSubtext( zipEntry.getName() );
-                        mProgress.setMessage( R.string.cacheRomInfo_searchingZip );
-                        
-                        if( isCancelled() ) break;
-                        try
-                        {
-                            InputStream zipStream = zipFile.getInputStream( zipEntry );
-                            File extractedFile = extractRomFile( new File( mUnzipDir ), zipEntry, zipStream );
-                            
-                            if( isCancelled() ) break;
-                            if( extractedFile != null )
-                                cacheFile( extractedFile, database, config );
-                            zipStream.close();
-                        }
-                        catch( IOException e )
-                        {
-                            Log.w( "CacheRomInfoTask", e );
-                        }
-                        mProgress.incrementSubprogress( 1 );
-                    }
-                    zipFile.close();
-                }
-                catch( ZipException e )
-                {
-                    Log.w( "CacheRomInfoTask", e );
+                    hashFiles( files, roms, fingerprints, database );
                 }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoTask", e );
-                }
-                catch( ArrayIndexOutOfBoundsException e )
+            } );
+        }
+        
+        boolean finished = false;
+        try
+        {
+            int finishedWorkers = 0;
+            long checkpointTime = System.currentTimeMillis();
+            while( finishedWorkers < WORKER_COUNT && !isCancelled() )
+            {
+                HashedRom rom = roms.poll( POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+                if( rom == END_OF_ROMS )
+                    finishedWorkers++;
+                else if( rom != null && rom.endOfFile )
+                    checkpoint.putFinished( rom.file );
+                else if( rom != null )
+                    cacheFile( rom, database, catalog, checkpoint, artFetcher );
+                
+                if( System.currentTimeMillis() - checkpointTime >= CHECKPOINT_INTERVAL_MS )
                 {
-                    Log.w( "CacheRomInfoTask", e );
+                    saveCheckpoint( fingerprints, checkpoint );
+                    checkpointTime = System.currentTimeMillis();
                 }
             }
-            mProgress.incrementProgress( 1 );
+            finished = !isCancelled();
+        }
+        catch( InterruptedException e )
+        {
+            Log.w( "CacheRomInfoTask", "Interrupted while caching ROM info" );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        // A worker may still be hashing and recording fingerprints; let it stop before they're saved
+        waitForWorkers( executor );
+        if( artFetcher != null )
+            waitForArt( artFetcher );
+        
+        // Keep the checkpoint until every file has been examined
+        long time = System.nanoTime();
+        catalog.close();
+        if( finished )
+        {
+            fingerprints.save();
+            checkpoint.delete();
+            mStats.recordSince( ScanStats.PERSIST, time );
+        }
+        else
+        {
+            mStats.recordSince( ScanStats.PERSIST, time );
+            saveCheckpoint( fingerprints, checkpoint );
         }
-        config.save();
-        return config;
+        mStats.finish();
+        Log.i( "CacheRomInfoTask", "Scan of " + mSearchPath.getAbsolutePath() + ":\n" + mStats );
+        return catalog;
+    }
+    
+    /**
+     * Gets the ROMs whose MD5s were skipped by a quick scan. Only valid once the task has finished.
+     * 
+     * @return The ROMs to hand to a {@link DeferredMd5Task}, never null.
+     */
+    public List<DeferredRom> getDeferredRoms()
+    {
+        return mDeferredRoms;
+    }
+    
+    /**
+     * Gets the time spent in each stage of the scan. Only complete once the task has finished.
+     */
+    public ScanStats getStats()
+    {
+        return mStats;
     }
     
     @Override
-    protected void onProgressUpdate( ConfigSection... values )
+    protected void onProgressUpdate( Entry... values )
     {
         mListener.onCacheRomInfoProgress( values[0] );
     }
     
     @Override
-    protected void onPostExecute( ConfigFile result )
+    protected void onPostExecute( GalleryCatalog result )
     {
         mListener.onCacheRomInfoFinished( result, false );
         mProgress.dismiss();
     }
     
     @Override
-    protected void onCancelled( ConfigFile result )
+    protected void onCancelled( GalleryCatalog result )
     {
         mListener.onCacheRomInfoFinished( result, true );
         mProgress.dismiss();
     }
     
-    private List<File> getAllFiles( File searchPath )
+    private void walkFiles( BlockingQueue<File> files, ScanCheckpoint checkpoint )
     {
-        List<File> result = new ArrayList<File>();
-        if( searchPath.isDirectory() )
+        try
         {
-            for( File file : searchPath.listFiles() )
+            // Zip files can be skipped without opening them if they won't be searched
+            Set<String> excludedExtensions = new HashSet<String>( RomFileWalker.MEDIA_EXTENSIONS );
+            if( !mSearchZips )
+                excludedExtensions.add( "zip" );
+            
+            RomFileWalker walker = new RomFileWalker( mSearchPath, null, excludedExtensions );
+            File file;
+            long time = System.nanoTime();
+            while( !isCancelled() && ( file = walker.next() ) != null )
             {
-                if( isCancelled() ) break;
-                result.addAll( getAllFiles( file ) );
+                mStats.recordSince( ScanStats.WALK, time );
+                
+                // Files finished before the scan was interrupted are already in the catalog
+                if( !checkpoint.isFinished( file ) && offer( files, file ) )
+                    mProgress.incrementMaxProgress( 1 );
+                
+                // Time spent waiting for the workers is not part of the walk
+                time = System.nanoTime();
             }
         }
-        else
+        catch( InterruptedException e )
+        {
+            Log.w( "CacheRomInfoTask", "Interrupted while searching for ROMs" );
+        }
+        finally
         {
-            result.add( searchPath );
+            // Tell every worker there is nothing left to do
+            for( int i = 0; i < WORKER_COUNT; i++ )
+            {
+                try
+                {
+                    if( !offer( files, END_OF_FILES ) )
+                        break;
+                }
+                catch( InterruptedException e )
+                {
+                    break;
+                }
+            }
         }
-        return result;
     }
     
-    private void cacheFile( File file, RomDatabase database, ConfigFile config )
+    private void hashFiles( BlockingQueue<File> files, BlockingQueue<HashedRom> roms,
+            RomFingerprintIndex fingerprints, RomDatabase database )
     {
-        if( isCancelled() ) return;
-        mProgress.setMessage( R.string.cacheRomInfo_computingMD5 );
-        String md5 = ComputeMd5Task.computeMd5( file );
+        // Each worker reuses one header buffer for every file it examines
+        RomHeaderReader header = new RomHeaderReader();
+        try
+        {
+            File file;
+            while( !isCancelled() && ( file = files.take() ) != END_OF_FILES )
+            {
+                hashFile( file, header, roms, fingerprints, database );
+                mProgress.incrementProgress( 1 );
+                
+                // A file is only finished once every ROM in it has reached the writer
+                if( !isCancelled() )
+                    offer( roms, new HashedRom( file ) );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Log.w( "CacheRomInfoTask", "Interrupted while computing MD5s" );
+        }
+        finally
+        {
+            try
+            {
+                offer( roms, END_OF_ROMS );
+            }
+            catch( InterruptedException ignored )
+            {
+            }
+        }
+    }
+    
+    private void hashFile( File file, RomHeaderReader header, BlockingQueue<HashedRom> roms,
+            RomFingerprintIndex fingerprints, RomDatabase database ) throws InterruptedException
+    {
+        mProgress.setMaxSubprogress( 0 );
+        mProgress.setSubtext( "" );
+        mProgress.setText( file.getAbsolutePath().substring( mSearchPath.getAbsolutePath().length() ) );
+        mProgress.setMessage( R.string.cacheRomInfo_searching );
         
-        if( isCancelled() ) return;
+        long time = System.nanoTime();
+        header.read( file );
+        mStats.recordSince( ScanStats.HEADER, time );
+        if( header.isValid() )
+        {
+            offer( roms, hashRomFile( file, header, fingerprints, mQuickScan ? database : null,
+                    mProgress, mStats ) );
+        }
+        else if( header.isZip() && mSearchZips )
+        {
+            Log.i( "CacheRomInfoTask", "Found zip file " + file.getName() );
+            ZipFile zipFile = null;
+            try
+            {
+                time = System.nanoTime();
+                zipFile = new ZipFile( file );
+                mStats.recordSince( ScanStats.INFLATE, time );
+                mProgress.setMaxSubprogress( zipFile.size() );
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while( entries.hasMoreElements() )
+                {
+                    ZipEntry zipEntry = entries.nextElement();
+                    mProgress.setSubtext( zipEntry.getName() );
+                    mProgress.setMessage( R.string.cacheRomInfo_searchingZip );
+                    
+                    if( isCancelled() ) break;
+                    if( !zipEntry.isDirectory() )
+                    {
+                        try
+                        {
+                            InputStream zipStream = new BufferedInputStream( zipFile.getInputStream( zipEntry ) );
+                            try
+                            {
+                                HashedRom rom = hashRomZipEntry( file, zipEntry, zipStream, header,
+                                        fingerprints, mQuickScan ? database : null, mProgress, mStats );
+                                if( rom != null )
+                                    offer( roms, rom );
+                            }
+                            finally
+                            {
+                                zipStream.close();
+                            }
+                        }
+                        catch( IOException e )
+                        {
+                            Log.w( "CacheRomInfoTask", e );
+                        }
+                    }
+                    mProgress.incrementSubprogress( 1 );
+                }
+            }
+            catch( ZipException e )
+            {
+                Log.w( "CacheRomInfoTask", e );
+            }
+            catch( IOException e )
+            {
+                Log.w( "CacheRomInfoTask", e );
+            }
+            catch( ArrayIndexOutOfBoundsException e )
+            {
+                Log.w( "CacheRomInfoTask", e );
+            }
+            finally
+            {
+                // Scans open thousands of files, so a leaked descriptor would soon exhaust them
+                if( zipFile != null )
+                {
+                    try
+                    {
+                        zipFile.close();
+                    }
+                    catch( IOException ignored )
+                    {
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Fingerprints a ROM file whose header has been read, computing only what the fingerprint
+     * index doesn't already hold for it, and records the fingerprint.
+     * 
+     * @param quickScanDatabase The database to identify a ROM from its header CRC alone, or null to
+     *            hash every ROM whose MD5 is unknown.
+     * @param progress The dialog to show the hashing on, or null.
+     * 
+     * @return The ROM, whose MD5 is null if the file could not be read.
+     */
+    static HashedRom hashRomFile( File file, RomHeaderReader header, RomFingerprintIndex fingerprints,
+            RomDatabase quickScanDatabase, ProgressDialog progress, ScanStats stats )
+    {
+        // Only hash the file if it changed since the last scan
+        Fingerprint fingerprint = fingerprints.getFingerprint( file, null );
+        String md5 = fingerprint == null ? null : fingerprint.md5;
+        boolean deferred = false;
+        if( md5 == null && quickScanDatabase != null )
+        {
+            md5 = guessMd5( header, quickScanDatabase, stats );
+            deferred = md5 != null;
+        }
+        if( md5 == null )
+        {
+            if( progress != null )
+                progress.setMessage( R.string.cacheRomInfo_computingMD5 );
+            md5 = ComputeMd5Task.computeMd5( file, stats );
+        }
+        
+        // Record the cheap tiers of the fingerprint too, so duplicates can be found later
+        // without hashing every ROM in full
+        String sampledHash = fingerprint == null ? null : fingerprint.sampledHash;
+        if( sampledHash == null )
+        {
+            long time = System.nanoTime();
+            sampledHash = SampledRomHash.compute( file, header.getFormat() );
+            stats.recordSince( ScanStats.HASH, time );
+        }
+        fingerprints.put( file, null, deferred ? null : md5, header.getCrc(), sampledHash );
+        return new HashedRom( file, null, header.getCrc(), md5, deferred );
+    }
+    
+    /**
+     * Fingerprints a zip entry if it is a ROM, like {@link #hashRomFile} fingerprints a file.
+     * 
+     * @param zipStream The entry's contents, which must support mark and reset.
+     * 
+     * @return The ROM, or null if the entry is not a ROM.
+     */
+    static HashedRom hashRomZipEntry( File zipFile, ZipEntry zipEntry, InputStream zipStream,
+            RomHeaderReader header, RomFingerprintIndex fingerprints, RomDatabase quickScanDatabase,
+            ProgressDialog progress, ScanStats stats ) throws IOException
+    {
+        // Peek at the header of the entry without consuming it
+        long time = System.nanoTime();
+        zipStream.mark( RomHeaderReader.HEADER_SIZE );
+        header.read( zipStream );
+        zipStream.reset();
+        stats.recordSince( ScanStats.HEADER, time );
+        
+        // See if this entry is a valid ROM
+        if( !header.isValid() )
+            return null;
+        
+        // This entry appears to be a valid ROM; hash the inflated bytes without extracting them
+        Log.i( "CacheRomInfoTask", "Found zip entry " + zipEntry.getName() );
+        Fingerprint fingerprint = fingerprints.getFingerprint( zipFile, zipEntry.getName() );
+        String md5 = fingerprint == null ? null : fingerprint.md5;
+        boolean deferred = false;
+        if( md5 == null && quickScanDatabase != null )
+        {
+            md5 = guessMd5( header, quickScanDatabase, stats );
+            deferred = md5 != null;
+        }
+        if( md5 == null )
+        {
+            if( progress != null )
+                progress.setMessage( R.string.cacheRomInfo_computingMD5 );
+            md5 = ComputeMd5Task.computeMd5( zipStream, stats );
+        }
+        if( fingerprint == null || fingerprint.md5 == null || fingerprint.crc == null )
+            fingerprints.put( zipFile, zipEntry.getName(), deferred ? null : md5, header.getCrc(), null );
+        return new HashedRom( zipFile, zipEntry.getName(), header.getCrc(), md5, deferred );
+    }
+    
+    /**
+     * Identifies a ROM from its header CRC alone, so that its MD5 can be computed later.
+     * 
+     * @return The MD5 of the only database entry with the same CRC, or null if the ROM must be
+     *         hashed now to be identified.
+     */
+    private static String guessMd5( RomHeaderReader header, RomDatabase database, ScanStats stats )
+    {
+        // Unknown ROMs and CRC collisions can only be told apart by their actual MD5
+        long time = System.nanoTime();
+        RomDetail[] details = database.lookupByCrc( header.getCrc() );
+        stats.recordSince( ScanStats.LOOKUP, time );
+        return details.length == 1 ? details[0].md5 : null;
+    }
+    
+    /**
+     * Blocks until the item is queued or the task is canceled.
+     * 
+     * @return True if the item was queued, false if the task was canceled.
+     */
+    private <T> boolean offer( BlockingQueue<T> queue, T item ) throws InterruptedException
+    {
+        while( !queue.offer( item, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS ) )
+        {
+            if( isCancelled() )
+                return false;
+        }
+        return true;
+    }
+    
+    private void cacheFile( HashedRom rom, RomDatabase database, GalleryCatalog catalog,
+            ScanCheckpoint checkpoint, CoverArtFetcher artFetcher )
+    {
+        final String md5 = rom.md5;
+        if( isCancelled() || md5 == null ) return;
         mProgress.setMessage( R.string.cacheRomInfo_searchingDB );
-        RomDetail detail = database.lookupByMd5WithFallback( md5, file );
+        String romPath = getRomPath( rom.file, rom.zipEntryName );
+        long time = System.nanoTime();
+        RomDetail detail = database.lookupByMd5WithFallback( md5, romPath, rom.crc );
+        time = mStats.recordSince( ScanStats.LOOKUP, time );
         String artPath = mArtDir + "/" + detail.artName;
-        config.put( md5, "goodName", detail.goodName );
-        if (detail.baseName != null && detail.baseName.length() != 0)
-            config.put( md5, "baseName", detail.baseName );
-        config.put( md5, "romPath", file.getAbsolutePath() );
-        config.put( md5, "artPath", artPath );
         
-        if( mDownloadArt )
+        // Each entry is appended to the catalog as soon as it is cached
+        Entry entry = putRomInfo( catalog, md5, detail, rom.file, rom.zipEntryName, artPath );
+        mStats.recordSince( ScanStats.PERSIST, time );
+        if( rom.deferred )
         {
-            if( isCancelled() ) return;
-            mProgress.setMessage( R.string.cacheRomInfo_downloadingArt );
-            downloadFile( detail.artUrl, artPath );
+            mDeferredRoms.add( new DeferredRom( rom.file, rom.zipEntryName, rom.crc, md5 ) );
+            checkpoint.putDeferred( rom.file, rom.zipEntryName, rom.crc, md5 );
         }
         
+        if( artFetcher != null )
+            artFetcher.fetch( detail.artUrl, artPath );
+        
         if( isCancelled() ) return;
         mProgress.setMessage( R.string.cacheRomInfo_refreshingUI );
-        this.publishProgress( config.get( md5 ) );
+        this.publishProgress( entry );
     }
     
-    private File extractRomFile( File destDir, ZipEntry zipEntry, InputStream inStream )
+    private void saveCheckpoint( RomFingerprintIndex fingerprints, ScanCheckpoint checkpoint )
+    {
+        // The catalog already holds every cached ROM, since each entry is appended as it is made
+        long time = System.nanoTime();
+        fingerprints.save();
+        checkpoint.save();
+        mStats.recordSince( ScanStats.PERSIST, time );
+    }
+    
+    private static void waitForWorkers( ExecutorService executor )
     {
-        if( zipEntry.isDirectory() )
-            return null;
-        
-        // Read the first 4 bytes of the entry
-        byte[] buffer = new byte[1024];
         try
         {
-            if( inStream.read( buffer, 0, 4 ) != 4 )
-                return null;
+            if( !executor.awaitTermination( WORKER_TIMEOUT_MS, TimeUnit.MILLISECONDS ) )
+                Log.w( "CacheRomInfoTask", "Timed out waiting for the scan threads to stop" );
         }
-        catch( IOException e )
+        catch( InterruptedException e )
         {
-            Log.w( "CacheRomInfoTask", e );
-            return null;
+            Log.w( "CacheRomInfoTask", "Interrupted while waiting for the scan threads to stop" );
         }
-        
-        // See if this entry is a valid ROM (copy array in case RomHeader mutates it)
-        if( !new RomHeader( new byte[] { buffer[0], buffer[1], buffer[2], buffer[3] } ).isValid )
-            return null;
-        
-        // This entry appears to be a valid ROM, extract it
-        Log.i( "CacheRomInfoTask", "Found zip entry " + zipEntry.getName() );
-        mProgress.setMessage( R.string.cacheRomInfo_extractingZip );
-        String entryName = new File( zipEntry.getName() ).getName();
-        File extractedFile = new File( destDir, entryName );
+    }
+    
+    private void waitForArt( CoverArtFetcher artFetcher )
+    {
+        // Let the art still in flight arrive before the gallery refreshes
+        mProgress.setMessage( R.string.cacheRomInfo_downloadingArt );
         try
         {
-            // Open the output stream (throws exceptions)
-            OutputStream outStream = new FileOutputStream( extractedFile );
-            try
+            while( !isCancelled() )
             {
-                // Buffer the stream
-                outStream = new BufferedOutputStream( outStream );
-                
-                // Write the first four bytes we already peeked at (throws exceptions)
-                outStream.write( buffer, 0, 4 );
-                
-                // Read/write the remainder of the zip entry (throws exceptions)
-                int n;
-                while( ( n = inStream.read( buffer ) ) >= 0 )
+                mProgress.setSubtext( String.valueOf( artFetcher.getPendingCount() ) );
+                if( artFetcher.finish( POLL_TIMEOUT_MS ) )
                 {
-                    if( isCancelled() )
-                        return null;
-                    outStream.write( buffer, 0, n );
+                    Log.i( "CacheRomInfoTask", artFetcher.toString() );
+                    return;
                 }
-                return extractedFile;
-            }
-            catch( IOException e )
-            {
-                Log.w( "CacheRomInfoTask", e );
-                return null;
-            }
-            finally
-            {
-                // Flush output stream and guarantee no memory leaks
-                outStream.close();
             }
         }
-        catch( IOException e )
+        catch( InterruptedException e )
         {
-            Log.w( "CacheRomInfoTask", e );
-            return null;
+            Log.w( "CacheRomInfoTask", "Interrupted while downloading cover art" );
         }
+        artFetcher.cancel();
+    }
+    
+    static String getRomPath( File file, String zipEntryName )
+    {
+        String romPath = file.getAbsolutePath();
+        if( zipEntryName != null )
+            romPath += "/" + zipEntryName;
+        return romPath;
+    }
+    
+    static Entry putRomInfo( GalleryCatalog catalog, String md5, RomDetail detail, File file,
+            String zipEntryName, String artPath )
+    {
+        String baseName = TextUtils.isEmpty( detail.baseName ) ? null : detail.baseName;
+        if( zipEntryName == null )
+            return catalog.put( md5, detail.goodName, baseName, file.getAbsolutePath(), null, null,
+                    artPath, detail.players );
+        
+        // Zipped ROMs are only extracted when they are launched
+        return catalog.put( md5, detail.goodName, baseName, null, file.getAbsolutePath(),
+                zipEntryName, artPath, detail.players );
     }
     
     private static Throwable touchFile( String destPath )
@@ -343,62 +713,44 @@ public class CacheRomInfoTask extends AsyncTask<Void, ConfigSection, ConfigFile>
         return null;
     }
     
-    private Throwable downloadFile( String sourceUrl, String destPath )
+    static class HashedRom
     {
-        // Be sure destination directory exists
-        new File( destPath ).getParentFile().mkdirs();
+        /** The ROM file, or the zip file containing the ROM. */
+        public final File file;
         
-        // Download file
-        InputStream inStream = null;
-        OutputStream outStream = null;
-        try
-        {
-            // Open the streams (throws exceptions)
-            URL url = new URL( sourceUrl );
-            inStream = url.openStream();
-            outStream = new FileOutputStream( destPath );
-
-            // Buffer the streams
-            inStream = new BufferedInputStream( inStream );
-            outStream = new BufferedOutputStream( outStream );
-            
-            // Read/write the streams (throws exceptions)
-            byte[] buffer = new byte[1024];
-            int n;
-            while( ( n = inStream.read( buffer ) ) >= 0 )
-            {
-                if( isCancelled() )
-                    return null;
-                outStream.write( buffer, 0, n );
-            }
-            return null;
-        }
-        catch( Throwable e )
+        /** The name of the ROM's zip entry, or null if the ROM is not zipped. */
+        public final String zipEntryName;
+        
+        /** The CRCs from the ROM header. */
+        public final String crc;
+        
+        public final String md5;
+        
+        /** True if the MD5 was assumed from the header CRC and still needs to be computed. */
+        public final boolean deferred;
+        
+        /** True if this only marks that every ROM in the file was queued. */
+        public final boolean endOfFile;
+        
+        public HashedRom( File file, String zipEntryName, String crc, String md5,
+                boolean deferred )
         {
-            Log.w( "CacheRomInfoTask", e );
-            return e;
+            this.file = file;
+            this.zipEntryName = zipEntryName;
+            this.crc = crc;
+            this.md5 = md5;
+            this.deferred = deferred;
+            this.endOfFile = false;
         }
-        finally
+        
+        public HashedRom( File file )
         {
-            // Flush output stream and guarantee no memory leaks
-            if( outStream != null )
-                try
-                {
-                    outStream.close();
-                }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoTask", e );
-                }
-            if( inStream != null )
-                try
-                {
-                    inStream.close();
-                }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoTask", e );
-                }
+            this.file = file;
+            this.zipEntryName = null;
+            this.crc = null;
+            this.md5 = null;
+            this.deferred = false;
+            this.endOfFile = true;
         }
     }
 }
@@ -20,13 +20,18 @@
  */
 package paulscode.android.mupen64plusae.task;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
-import java.util.Locale;
+import java.security.NoSuchAlgorithmException;
 
+import paulscode.android.mupen64plusae.util.ScanStats;
 import android.os.AsyncTask;
 
 public class ComputeMd5Task extends AsyncTask<Void, Void, String>
@@ -52,6 +57,21 @@ public class ComputeMd5Task extends AsyncTask<Void, Void, String>
     private final File mFile;
     private final ComputeMd5Listener mListener;
     
+    /** Size of the read buffer; must be a multiple of eight bytes. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    
+    /** One read buffer per thread, since every scan worker hashes ROM after ROM. */
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer initialValue()
+        {
+            return ByteBuffer.allocate( BUFFER_SIZE );
+        }
+    };
+    
     @Override
     protected String doInBackground( Void... params )
     {
@@ -66,51 +86,26 @@ public class ComputeMd5Task extends AsyncTask<Void, Void, String>
     
     public static String computeMd5( File file )
     {
-        // From http://stackoverflow.com/a/16938703
-        InputStream inputStream = null;
+        return computeMd5( file, null );
+    }
+    
+    /**
+     * Computes the MD5 of a ROM file, recording the time spent reading the file apart from the time
+     * spent digesting it.
+     * 
+     * @param file The ROM file.
+     * @param stats Where to record the {@link ScanStats#READ} and {@link ScanStats#HASH} times, or
+     *            null.
+     * 
+     * @return The MD5 of the ROM image, or null if the file could not be read.
+     */
+    public static String computeMd5( File file, ScanStats stats )
+    {
+        FileInputStream inputStream = null;
         try
         {
-            inputStream = new BufferedInputStream( new FileInputStream( file ) );
-            inputStream.mark( 1 );
-            int firstByte = inputStream.read();
-            inputStream.reset();
-            
-            MessageDigest digester = MessageDigest.getInstance( "MD5" );
-            byte[] bytes = new byte[8192];
-            int byteCount;
-            while( ( byteCount = inputStream.read( bytes ) ) > 0 )
-            {
-                // TODO: Test multiple bytes
-                switch( firstByte )
-                {
-                    case 0x37:
-                        // Byteswap if .v64 image
-                        for( int i = 0; i < byteCount; i += 2 )
-                        {
-                            byte temp = bytes[i];
-                            bytes[i] = bytes[i + 1];
-                            bytes[i + 1] = temp;
-                        }
-                        break;
-                    case 0x40:
-                        // Wordswap if .n64 image
-                        for( int i = 0; i < byteCount; i += 4 )
-                        {
-                            byte temp = bytes[i];
-                            bytes[i] = bytes[i + 3];
-                            bytes[i + 3] = temp;
-                            temp = bytes[i + 1];
-                            bytes[i + 1] = bytes[i + 2];
-                            bytes[i + 2] = temp;
-                        }
-                        break;
-                    default:
-                        // No swap otherwise
-                        break;
-                }
-                digester.update( bytes, 0, byteCount );
-            }
-            return convertHashToString( digester.digest() );
+            inputStream = new FileInputStream( file );
+            return computeMd5( inputStream.getChannel(), stats, ScanStats.READ );
         }
         catch( Exception e )
         {
@@ -131,14 +126,160 @@ public class ComputeMd5Task extends AsyncTask<Void, Void, String>
         }
     }
     
+    /**
+     * Computes the MD5 of a ROM image read from a stream, such as an inflated zip entry. The
+     * stream is read to the end but not closed.
+     * 
+     * @param inputStream The stream positioned at the start of the ROM image.
+     * 
+     * @return The MD5 of the ROM image, or null if the stream could not be read.
+     */
+    public static String computeMd5( InputStream inputStream )
+    {
+        return computeMd5( inputStream, null );
+    }
+    
+    /**
+     * Computes the MD5 of a ROM image read from a stream, recording the time spent inflating the
+     * stream apart from the time spent digesting it. The stream is read to the end but not closed.
+     * 
+     * @param inputStream The stream positioned at the start of the ROM image.
+     * @param stats Where to record the {@link ScanStats#INFLATE} and {@link ScanStats#HASH} times,
+     *            or null.
+     * 
+     * @return The MD5 of the ROM image, or null if the stream could not be read.
+     */
+    public static String computeMd5( InputStream inputStream, ScanStats stats )
+    {
+        try
+        {
+            return computeMd5( Channels.newChannel( inputStream ), stats, ScanStats.INFLATE );
+        }
+        catch( Exception e )
+        {
+            return null;
+        }
+    }
+    
+    private static String computeMd5( ReadableByteChannel channel, ScanStats stats, int readStage )
+            throws IOException, NoSuchAlgorithmException
+    {
+        MessageDigest digester = MessageDigest.getInstance( "MD5" );
+        
+        // The buffer size is a multiple of eight, so every full read stays long-aligned
+        ByteBuffer buffer = BUFFERS.get();
+        buffer.clear();
+        LongBuffer longs = buffer.asLongBuffer();
+        byte[] bytes = buffer.array();
+        int firstByte = -1;
+        int byteCount;
+        
+        // Reading and digesting alternate, so one clock is split between the two
+        long totalBytes = 0;
+        long readNanos = 0;
+        long hashNanos = 0;
+        long time = System.nanoTime();
+        while( ( byteCount = fill( channel, buffer ) ) > 0 )
+        {
+            long now = System.nanoTime();
+            readNanos += now - time;
+            time = now;
+            
+            if( firstByte < 0 )
+                firstByte = bytes[0] & 0xff;
+            
+            switch( firstByte )
+            {
+                case 0x37:
+                    // Byteswap if .v64 image
+                    swapHalfWords( longs, bytes, byteCount );
+                    break;
+                case 0x40:
+                    // Wordswap if .n64 image
+                    swapWords( longs, bytes, byteCount );
+                    break;
+                default:
+                    // No swap otherwise
+                    break;
+            }
+            digester.update( bytes, 0, byteCount );
+            buffer.clear();
+            totalBytes += byteCount;
+            
+            now = System.nanoTime();
+            hashNanos += now - time;
+            time = now;
+        }
+        if( stats != null )
+        {
+            stats.record( readStage, readNanos + System.nanoTime() - time, totalBytes );
+            stats.record( ScanStats.HASH, hashNanos, totalBytes );
+        }
+        return convertHashToString( digester.digest() );
+    }
+    
+    /**
+     * Reads from the channel until the buffer is full or the end of the file is reached.
+     * 
+     * @return The number of bytes in the buffer.
+     */
+    private static int fill( ReadableByteChannel channel, ByteBuffer buffer ) throws IOException
+    {
+        while( buffer.hasRemaining() && channel.read( buffer ) >= 0 )
+        {
+        }
+        return buffer.position();
+    }
+    
+    /**
+     * Swaps the two bytes of every 16-bit half-word, eight bytes at a time.
+     */
+    private static void swapHalfWords( LongBuffer longs, byte[] bytes, int byteCount )
+    {
+        int longCount = byteCount >> 3;
+        for( int i = 0; i < longCount; i++ )
+        {
+            long value = longs.get( i );
+            longs.put( i, ( ( value & 0x00ff00ff00ff00ffL ) << 8 ) | ( ( value >>> 8 ) & 0x00ff00ff00ff00ffL ) );
+        }
+        for( int i = longCount << 3; i + 1 < byteCount; i += 2 )
+        {
+            byte temp = bytes[i];
+            bytes[i] = bytes[i + 1];
+            bytes[i + 1] = temp;
+        }
+    }
+    
+    /**
+     * Reverses the four bytes of every 32-bit word, eight bytes at a time.
+     */
+    private static void swapWords( LongBuffer longs, byte[] bytes, int byteCount )
+    {
+        int longCount = byteCount >> 3;
+        for( int i = 0; i < longCount; i++ )
+        {
+            // Reversing all eight bytes also swaps the two words, so rotate them back into place
+            longs.put( i, Long.rotateLeft( Long.reverseBytes( longs.get( i ) ), 32 ) );
+        }
+        for( int i = longCount << 3; i + 3 < byteCount; i += 4 )
+        {
+            byte temp = bytes[i];
+            bytes[i] = bytes[i + 3];
+            bytes[i + 3] = temp;
+            temp = bytes[i + 1];
+            bytes[i + 1] = bytes[i + 2];
+            bytes[i + 2] = temp;
+        }
+    }
+    
     private static String convertHashToString( byte[] md5Bytes )
     {
-        // From http://stackoverflow.com/a/16938703
-        String returnVal = "";
+        char[] chars = new char[md5Bytes.length * 2];
         for( int i = 0; i < md5Bytes.length; i++ )
         {
-            returnVal += Integer.toString( ( md5Bytes[i] & 0xff ) + 0x100, 16 ).substring( 1 );
+            chars[2 * i] = HEX_DIGITS[( md5Bytes[i] >> 4 ) & 0x0f];
+            chars[2 * i + 1] = HEX_DIGITS[md5Bytes[i] & 0x0f];
         }
-        return returnVal.toUpperCase( Locale.US );
+        return new String( chars );
     }
-}
\ No newline at end of file
+}
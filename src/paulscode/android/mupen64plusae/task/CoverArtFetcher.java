@@ -0,0 +1,439 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import paulscode.android.mupen64plusae.util.ScanStats;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The CoverArtFetcher class downloads cover art on its own small pool of threads, so that a slow
+ * server never holds up the ROM scan.
+ * <p>
+ * Art that already exists is re-validated with a conditional request and only downloaded again if
+ * the server has a newer copy. Connection errors and server errors are retried with exponential
+ * backoff. Art that could not be fetched is recorded in a negative cache file, and is not requested
+ * again until the entry expires.
+ */
+public class CoverArtFetcher
+{
+    /** Number of downloads in flight at once. */
+    private static final int THREAD_COUNT = 2;
+    
+    /** Number of downloads that may wait for a thread before new ones are dropped. */
+    private static final int QUEUE_CAPACITY = 1024;
+    
+    /** Number of times a download is attempted before it is recorded as failed. */
+    private static final int MAX_ATTEMPTS = 3;
+    
+    /** Delay before the first retry; doubled for each retry after that. */
+    private static final long BACKOFF_MS = 1000;
+    
+    /** How long a failed URL is left alone before it is tried again. */
+    private static final long NEGATIVE_CACHE_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+    
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 20000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final char SEPARATOR = '\t';
+    
+    private final String mFailuresPath;
+    private final ScanStats mStats;
+    private final ThreadPoolExecutor mExecutor;
+    
+    /** Failed URLs mapped to the time they last failed. */
+    private final HashMap<String, Long> mFailures = new HashMap<String, Long>();
+    
+    /** Destination paths that are queued or being downloaded. */
+    private final HashSet<String> mPending = new HashSet<String>();
+    
+    private int mDownloadCount = 0;
+    private int mNotModifiedCount = 0;
+    private int mFailureCount = 0;
+    
+    /**
+     * Creates a fetcher and loads its negative cache.
+     * 
+     * @param failuresPath The file recording the URLs that could not be fetched.
+     */
+    public CoverArtFetcher( String failuresPath )
+    {
+        this( failuresPath, null );
+    }
+    
+    /**
+     * Creates a fetcher and loads its negative cache.
+     * 
+     * @param failuresPath The file recording the URLs that could not be fetched.
+     * @param stats Where to record the time each download took, or null.
+     */
+    public CoverArtFetcher( String failuresPath, ScanStats stats )
+    {
+        if( TextUtils.isEmpty( failuresPath ) )
+            throw new IllegalArgumentException( "Failures path cannot be null or empty" );
+        
+        mFailuresPath = failuresPath;
+        mStats = stats;
+        mExecutor = new ThreadPoolExecutor( THREAD_COUNT, THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>( QUEUE_CAPACITY ) );
+        loadFailures();
+    }
+    
+    /**
+     * Queues a download, unless the same file is already queued or the URL failed recently.
+     * 
+     * @param sourceUrl The URL of the art.
+     * @param destPath Where to save the art.
+     */
+    public void fetch( final String sourceUrl, final String destPath )
+    {
+        if( TextUtils.isEmpty( sourceUrl ) || TextUtils.isEmpty( destPath ) )
+            return;
+        
+        synchronized( this )
+        {
+            Long failedTime = mFailures.get( sourceUrl );
+            if( failedTime != null && System.currentTimeMillis() - failedTime < NEGATIVE_CACHE_TTL_MS )
+                return;
+            if( !mPending.add( destPath ) )
+                return;
+        }
+        
+        try
+        {
+            mExecutor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    download( sourceUrl, destPath );
+                }
+            } );
+        }
+        catch( RejectedExecutionException e )
+        {
+            // Too much is queued already; the next scan will try again
+            Log.w( "CoverArtFetcher", "Dropped download of " + sourceUrl );
+            synchronized( this )
+            {
+                mPending.remove( destPath );
+            }
+        }
+    }
+    
+    /**
+     * Stops accepting downloads and waits for the queued ones to finish, then saves the negative
+     * cache.
+     * 
+     * @param timeout How long to wait, in milliseconds.
+     * 
+     * @return True if every download finished, false if the timeout elapsed first.
+     * 
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean finish( long timeout ) throws InterruptedException
+    {
+        mExecutor.shutdown();
+        boolean finished = mExecutor.awaitTermination( timeout, TimeUnit.MILLISECONDS );
+        if( finished )
+            saveFailures();
+        return finished;
+    }
+    
+    /**
+     * Abandons all queued downloads, interrupts the ones in flight, and saves the negative cache.
+     */
+    public void cancel()
+    {
+        mExecutor.shutdownNow();
+        saveFailures();
+    }
+    
+    /**
+     * Gets the number of downloads that are queued or in flight.
+     */
+    public synchronized int getPendingCount()
+    {
+        return mPending.size();
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "CoverArtFetcher[downloaded=" + mDownloadCount + ", notModified=" + mNotModifiedCount
+                + ", failed=" + mFailureCount + ", pending=" + mPending.size() + "]";
+    }
+    
+    private void download( String sourceUrl, String destPath )
+    {
+        long startTime = System.nanoTime();
+        try
+        {
+            for( int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++ )
+            {
+                int result = tryDownload( sourceUrl, new File( destPath ) );
+                if( result == HttpURLConnection.HTTP_OK || result == HttpURLConnection.HTTP_NOT_MODIFIED )
+                {
+                    synchronized( this )
+                    {
+                        if( result == HttpURLConnection.HTTP_OK )
+                            mDownloadCount++;
+                        else
+                            mNotModifiedCount++;
+                        mFailures.remove( sourceUrl );
+                    }
+                    if( mStats != null )
+                        mStats.record( ScanStats.ART, System.nanoTime() - startTime,
+                                result == HttpURLConnection.HTTP_OK ? new File( destPath ).length() : 0 );
+                    return;
+                }
+                
+                // Only connection failures and server errors are worth retrying
+                if( result > 0 && result < HttpURLConnection.HTTP_INTERNAL_ERROR )
+                    break;
+                if( attempt < MAX_ATTEMPTS )
+                    Thread.sleep( BACKOFF_MS << ( attempt - 1 ) );
+            }
+            
+            Log.w( "CoverArtFetcher", "Could not download " + sourceUrl );
+            if( mStats != null )
+                mStats.recordSince( ScanStats.ART, startTime );
+            synchronized( this )
+            {
+                mFailureCount++;
+                mFailures.put( sourceUrl, System.currentTimeMillis() );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            // Canceled; don't record a failure
+        }
+        finally
+        {
+            synchronized( this )
+            {
+                mPending.remove( destPath );
+            }
+        }
+    }
+    
+    /**
+     * Makes one attempt at downloading a file.
+     * 
+     * @return The HTTP response code, or -1 if the connection or transfer failed.
+     */
+    private static int tryDownload( String sourceUrl, File destFile )
+    {
+        HttpURLConnection connection = null;
+        try
+        {
+            connection = (HttpURLConnection) new URL( sourceUrl ).openConnection();
+            connection.setConnectTimeout( CONNECT_TIMEOUT_MS );
+            connection.setReadTimeout( READ_TIMEOUT_MS );
+            
+            // Only fetch the art again if the server has a newer copy
+            if( destFile.exists() )
+                connection.setIfModifiedSince( destFile.lastModified() );
+            
+            int responseCode = connection.getResponseCode();
+            if( responseCode != HttpURLConnection.HTTP_OK )
+                return responseCode;
+            
+            // Write to a temporary file first so that the gallery never sees partial art; each
+            // download has its own, since a scan and an update may fetch the same art at once
+            destFile.getParentFile().mkdirs();
+            File tempFile = File.createTempFile( destFile.getName(), ".tmp", destFile.getParentFile() );
+            try
+            {
+                InputStream inStream = connection.getInputStream();
+                OutputStream outStream = null;
+                try
+                {
+                    outStream = new FileOutputStream( tempFile );
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    long count = 0;
+                    int n;
+                    while( ( n = inStream.read( buffer ) ) >= 0 )
+                    {
+                        outStream.write( buffer, 0, n );
+                        count += n;
+                    }
+                    
+                    // Some HTTP stacks end the stream quietly when the connection drops
+                    int length = connection.getContentLength();
+                    if( length >= 0 && count != length )
+                        throw new IOException( "Received " + count + " of " + length + " bytes" );
+                }
+                finally
+                {
+                    // Flush output stream and guarantee no memory leaks
+                    if( outStream != null )
+                        outStream.close();
+                    inStream.close();
+                }
+                if( !tempFile.renameTo( destFile ) )
+                    return -1;
+            }
+            finally
+            {
+                // Gone already if it was renamed; otherwise the transfer failed part way
+                tempFile.delete();
+            }
+            
+            // Stamp the file with the server's time so the next conditional request compares like
+            // with like
+            long lastModified = connection.getLastModified();
+            if( lastModified > 0 )
+                destFile.setLastModified( lastModified );
+            return responseCode;
+        }
+        catch( IOException e )
+        {
+            Log.w( "CoverArtFetcher", sourceUrl + ": " + e.getMessage() );
+            return -1;
+        }
+        finally
+        {
+            if( connection != null )
+                connection.disconnect();
+        }
+    }
+    
+    private synchronized void loadFailures()
+    {
+        BufferedReader reader;
+        try
+        {
+            reader = new BufferedReader( new FileReader( mFailuresPath ) );
+        }
+        catch( FileNotFoundException e )
+        {
+            // Nothing has failed yet
+            return;
+        }
+        
+        try
+        {
+            String line;
+            while( ( line = reader.readLine() ) != null )
+            {
+                int separator = line.indexOf( SEPARATOR );
+                if( separator < 0 )
+                    continue;
+                try
+                {
+                    long failedTime = Long.parseLong( line.substring( 0, separator ) );
+                    mFailures.put( line.substring( separator + 1 ), failedTime );
+                }
+                catch( NumberFormatException ignored )
+                {
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            Log.w( "CoverArtFetcher", "Error reading " + mFailuresPath, e );
+        }
+        finally
+        {
+            try
+            {
+                reader.close();
+            }
+            catch( IOException ignored )
+            {
+            }
+        }
+    }
+    
+    private synchronized void saveFailures()
+    {
+        // Ensure parent directories exist before writing file
+        File file = new File( mFailuresPath );
+        file.getParentFile().mkdirs();
+        
+        // Write to a temp file of its own and rename it, so that a killed save keeps the old cache
+        long now = System.currentTimeMillis();
+        File tempFile = null;
+        FileOutputStream stream = null;
+        try
+        {
+            tempFile = File.createTempFile( file.getName(), ".tmp", file.getParentFile() );
+            stream = new FileOutputStream( tempFile );
+            BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( stream ) );
+            for( Map.Entry<String, Long> failure : mFailures.entrySet() )
+            {
+                // Expired entries are dropped rather than carried forward
+                if( now - failure.getValue() < NEGATIVE_CACHE_TTL_MS )
+                {
+                    writer.write( failure.getValue() + String.valueOf( SEPARATOR ) + failure.getKey() );
+                    writer.newLine();
+                }
+            }
+            writer.flush();
+            stream.getFD().sync();
+            writer.close();
+            stream = null;
+            if( !tempFile.renameTo( file ) )
+                Log.e( "CoverArtFetcher", "Could not replace " + mFailuresPath );
+        }
+        catch( IOException e )
+        {
+            Log.e( "CoverArtFetcher", "IOException writing file " + mFailuresPath + ", error message: "
+                    + e.getMessage() );
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( tempFile != null )
+                tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog;
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog.Entry;
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.util.RomDatabase;
+import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
+import android.os.AsyncTask;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Computes the MD5s that a quick scan skipped. A quick scan identifies a ROM by its header CRC
+ * whenever that CRC matches exactly one database entry, and keys the ROM on that entry's MD5. This
+ * task later hashes those ROMs at low priority, records their MD5s in the fingerprint index, and
+ * re-keys any gallery entry whose actual MD5 turns out to be different.
+ */
+public class DeferredMd5Task extends AsyncTask<Void, Void, GalleryCatalog>
+{
+    public interface DeferredMd5Listener
+    {
+        /**
+         * Called when every deferred ROM has been hashed, or when the task was canceled and has
+         * saved what it hashed so far.
+         * 
+         * @param catalog The updated gallery catalog, or null if no gallery entry changed.
+         */
+        public void onDeferredMd5Finished( GalleryCatalog catalog );
+    }
+    
+    /**
+     * The DeferredRom class describes a ROM whose MD5 was assumed from its header CRC.
+     */
+    public static class DeferredRom
+    {
+        /** The ROM file, or the zip file containing the ROM. */
+        public final File file;
+        
+        /** The name of the ROM's zip entry, or null if the ROM is not zipped. */
+        public final String zipEntryName;
+        
+        /** The CRC from the ROM header. */
+        public final String crc;
+        
+        /** The MD5 the ROM was provisionally cached under. */
+        public final String md5;
+        
+        public DeferredRom( File file, String zipEntryName, String crc, String md5 )
+        {
+            this.file = file;
+            this.zipEntryName = zipEntryName;
+            this.crc = crc;
+            this.md5 = md5;
+        }
+    }
+    
+    public DeferredMd5Task( List<DeferredRom> roms, String databasePath, String catalogPath,
+            String fingerprintPath, String artDir, DeferredMd5Listener listener )
+    {
+        if( roms == null )
+            throw new IllegalArgumentException( "ROM list cannot be null" );
+        if( TextUtils.isEmpty( databasePath ) )
+            throw new IllegalArgumentException( "ROM database path cannot be null or empty" );
+        if( TextUtils.isEmpty( catalogPath ) )
+            throw new IllegalArgumentException( "Catalog path cannot be null or empty" );
+        if( TextUtils.isEmpty( fingerprintPath ) )
+            throw new IllegalArgumentException( "Fingerprint index path cannot be null or empty" );
+        if( TextUtils.isEmpty( artDir ) )
+            throw new IllegalArgumentException( "Art directory cannot be null or empty" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mRoms = roms;
+        mDatabasePath = databasePath;
+        mCatalogPath = catalogPath;
+        mFingerprintPath = fingerprintPath;
+        mArtDir = artDir;
+        mListener = listener;
+    }
+    
+    private final List<DeferredRom> mRoms;
+    private final String mDatabasePath;
+    private final String mCatalogPath;
+    private final String mFingerprintPath;
+    private final String mArtDir;
+    private final DeferredMd5Listener mListener;
+    
+    @Override
+    protected GalleryCatalog doInBackground( Void... params )
+    {
+        // Stay out of the way of the UI and of anything the user is waiting on
+        Process.setThreadPriority( Process.THREAD_PRIORITY_LOWEST );
+        
+        RomFingerprintIndex fingerprints = new RomFingerprintIndex( mFingerprintPath );
+        RomDatabase database = null;
+        GalleryCatalog catalog = null;
+        for( DeferredRom rom : mRoms )
+        {
+            if( isCancelled() )
+                break;
+            
+            String md5 = computeMd5( rom.file, rom.zipEntryName );
+            if( md5 == null )
+                continue;
+            fingerprints.put( rom.file, rom.zipEntryName, md5 );
+            if( md5.equals( rom.md5 ) )
+                continue;
+            
+            // The CRC pointed at a different rip; re-key the gallery entry under the actual MD5
+            Log.i( "DeferredMd5Task", "Actual MD5 of " + rom.file.getName() + " is " + md5 );
+            if( catalog == null )
+            {
+                database = new RomDatabase( mDatabasePath );
+                catalog = GalleryCatalog.open( mCatalogPath );
+            }
+            if( !isSameRom( catalog.get( rom.md5 ), rom ) )
+                continue;
+            String romPath = CacheRomInfoTask.getRomPath( rom.file, rom.zipEntryName );
+            RomDetail detail = database.lookupByMd5WithFallback( md5, romPath, rom.crc );
+            catalog.remove( rom.md5 );
+            CacheRomInfoTask.putRomInfo( catalog, md5, detail, rom.file, rom.zipEntryName, mArtDir
+                    + "/" + detail.artName );
+        }
+        
+        // Catalog changes are appended as they are made; only the fingerprints wait for the end.
+        // A canceled task is holding up the next one, so it leaves compaction to that one.
+        if( catalog != null )
+            catalog.close( !isCancelled() );
+        fingerprints.save();
+        return catalog;
+    }
+    
+    @Override
+    protected void onPostExecute( GalleryCatalog result )
+    {
+        mListener.onDeferredMd5Finished( result );
+    }
+    
+    @Override
+    protected void onCancelled( GalleryCatalog result )
+    {
+        // The catalog and fingerprints are saved even so, and the next task may now use them
+        mListener.onDeferredMd5Finished( result );
+    }
+    
+    /**
+     * Computes the MD5 of a ROM file or of a ROM inside a zip archive.
+     * 
+     * @param file The ROM file, or the zip file containing the ROM.
+     * @param zipEntryName The name of the ROM's zip entry, or null if the ROM is not zipped.
+     * 
+     * @return The MD5 of the ROM, or null if it could not be read.
+     */
+    static String computeMd5( File file, String zipEntryName )
+    {
+        if( zipEntryName == null )
+            return ComputeMd5Task.computeMd5( file );
+        
+        ZipFile zipFile = null;
+        try
+        {
+            zipFile = new ZipFile( file );
+            ZipEntry zipEntry = zipFile.getEntry( zipEntryName );
+            if( zipEntry == null )
+                return null;
+            
+            InputStream zipStream = new BufferedInputStream( zipFile.getInputStream( zipEntry ) );
+            try
+            {
+                return ComputeMd5Task.computeMd5( zipStream );
+            }
+            finally
+            {
+                zipStream.close();
+            }
+        }
+        catch( IOException e )
+        {
+            Log.w( "DeferredMd5Task", e );
+            return null;
+        }
+        finally
+        {
+            if( zipFile != null )
+            {
+                try
+                {
+                    zipFile.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private static boolean isSameRom( Entry entry, DeferredRom rom )
+    {
+        // The provisional entry may have been replaced by a later scan
+        if( entry == null )
+            return false;
+        String path = rom.file.getAbsolutePath();
+        if( rom.zipEntryName == null )
+            return path.equals( entry.getRomPath() );
+        else
+            return path.equals( entry.getZipPath() )
+                    && rom.zipEntryName.equals( entry.getZipEntryName() );
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.File;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex.Fingerprint;
+import paulscode.android.mupen64plusae.task.FindDuplicatesTask.DuplicateGroup;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Deletes the extra copies of duplicate ROMs found by {@link FindDuplicatesTask}. The files may have
+ * changed since the search, so each one is checked against the fingerprint index again first: an
+ * extra is only deleted while the copy being kept is still there and unchanged, and while the extra
+ * itself still has the length and time it had when it was found. Copies inside zip archives are
+ * left alone, since the archives may hold other files.
+ * <p>
+ * The deleted ROMs are dropped from the fingerprint index, which is saved over whatever it loaded,
+ * so it must not run alongside another task that writes the index.
+ */
+public class DeleteDuplicatesTask extends AsyncTask<Void, Void, Integer>
+{
+    public interface DeleteDuplicatesListener
+    {
+        /**
+         * Called when the extra copies have been deleted.
+         * 
+         * @param count The number of files deleted.
+         */
+        public void onDeleteDuplicatesFinished( int count );
+    }
+    
+    public DeleteDuplicatesTask( List<DuplicateGroup> duplicates, String fingerprintPath,
+            DeleteDuplicatesListener listener )
+    {
+        if( duplicates == null )
+            throw new IllegalArgumentException( "Duplicates cannot be null" );
+        if( TextUtils.isEmpty( fingerprintPath ) )
+            throw new IllegalArgumentException( "Fingerprint index path cannot be null or empty" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mDuplicates = duplicates;
+        mFingerprintPath = fingerprintPath;
+        mListener = listener;
+    }
+    
+    private final List<DuplicateGroup> mDuplicates;
+    private final String mFingerprintPath;
+    private final DeleteDuplicatesListener mListener;
+    
+    @Override
+    protected Integer doInBackground( Void... params )
+    {
+        RomFingerprintIndex fingerprints = new RomFingerprintIndex( mFingerprintPath );
+        int count = 0;
+        for( DuplicateGroup group : mDuplicates )
+        {
+            if( isCancelled() )
+                break;
+            
+            // Never delete the extras unless the copy being kept is certainly still there
+            if( !isUnchanged( fingerprints, group.keep, group.md5 ) )
+            {
+                Log.w( "DeleteDuplicatesTask", "Keeping every copy of " + group.md5 + ", "
+                        + group.keep.path + " changed" );
+                continue;
+            }
+            
+            for( Fingerprint extra : group.extras )
+            {
+                if( extra.zipEntryName != null )
+                    continue;
+                if( !isUnchanged( fingerprints, extra, group.md5 ) )
+                {
+                    Log.w( "DeleteDuplicatesTask", "Keeping " + extra.path + ", changed since the search" );
+                    continue;
+                }
+                
+                File file = new File( extra.path );
+                if( file.delete() )
+                {
+                    fingerprints.remove( file, null );
+                    count++;
+                }
+            }
+        }
+        if( count > 0 )
+            fingerprints.save();
+        return count;
+    }
+    
+    @Override
+    protected void onPostExecute( Integer result )
+    {
+        mListener.onDeleteDuplicatesFinished( result );
+    }
+    
+    @Override
+    protected void onCancelled( Integer result )
+    {
+        mListener.onDeleteDuplicatesFinished( result == null ? 0 : result );
+    }
+    
+    /**
+     * Checks that a ROM still has the length and time it had when it was found, and that the index
+     * still knows it by the same MD5.
+     */
+    private static boolean isUnchanged( RomFingerprintIndex fingerprints, Fingerprint found,
+            String md5 )
+    {
+        Fingerprint current = fingerprints.getFingerprint( new File( found.path ), found.zipEntryName );
+        return current != null && current.length == found.length
+                && current.lastModified == found.lastModified
+                && ( current.md5 == null || current.md5.equals( md5 ) );
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.File;
+
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+
+/**
+ * Extracts a single ROM from a zip archive. Zipped ROMs are identified during the scan without
+ * being extracted, so this only happens when the user actually launches one, and only if no copy of
+ * the ROM is cached yet.
+ */
+public class ExtractRomTask extends AsyncTask<Void, Void, File>
+{
+    public interface ExtractRomListener
+    {
+        public void onExtractRomFinished( File romFile );
+    }
+    
+    public ExtractRomTask( File zipFile, String zipEntryName, String md5, ExtractedRomCache cache,
+            ExtractRomListener listener )
+    {
+        if( zipFile == null )
+            throw new IllegalArgumentException( "Zip file cannot be null" );
+        if( !zipFile.exists() )
+            throw new IllegalArgumentException( "Zip file does not exist: " + zipFile.getAbsolutePath() );
+        if( TextUtils.isEmpty( zipEntryName ) )
+            throw new IllegalArgumentException( "Zip entry name cannot be null or empty" );
+        if( cache == null )
+            throw new IllegalArgumentException( "Cache cannot be null" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mZipFile = zipFile;
+        mZipEntryName = zipEntryName;
+        mMd5 = md5;
+        mCache = cache;
+        mListener = listener;
+    }
+    
+    private final File mZipFile;
+    private final String mZipEntryName;
+    private final String mMd5;
+    private final ExtractedRomCache mCache;
+    private final ExtractRomListener mListener;
+    
+    @Override
+    protected File doInBackground( Void... params )
+    {
+        return mCache.get( mZipFile, mZipEntryName, mMd5 );
+    }
+    
+    @Override
+    protected void onPostExecute( File result )
+    {
+        mListener.onExtractRomFinished( result );
+    }
+}
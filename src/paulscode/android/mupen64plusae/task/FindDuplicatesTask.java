@@ -0,0 +1,288 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.mupen64plusae.v3.alpha.R;
+
+import paulscode.android.mupen64plusae.dialog.ProgressDialog;
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog;
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog.Entry;
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex.Fingerprint;
+import android.app.Activity;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Finds ROMs that are stored more than once, using the tiered fingerprints recorded by the scan.
+ * ROMs are grouped by header CRC first, then by sampled hash; only the members of a group that
+ * still collides need an MD5 to confirm they are identical, and only those without a recorded MD5
+ * are hashed. Nothing outside the fingerprint index is read, so ROMs must have been scanned first.
+ * <p>
+ * The MD5s it computes are saved to the fingerprint index, over whatever it loaded, so it must not
+ * run alongside another task that writes the index.
+ */
+public class FindDuplicatesTask extends AsyncTask<Void, Void, List<FindDuplicatesTask.DuplicateGroup>>
+{
+    public interface FindDuplicatesListener
+    {
+        /**
+         * Called when the search is complete.
+         * 
+         * @param duplicates The sets of identical ROMs, or null if the search was canceled.
+         */
+        public void onFindDuplicatesFinished( List<DuplicateGroup> duplicates );
+    }
+    
+    /**
+     * The DuplicateGroup class describes every copy of one ROM.
+     */
+    public static class DuplicateGroup
+    {
+        public final String md5;
+        
+        /** The copy to keep: the one shown in the gallery if possible. */
+        public final Fingerprint keep;
+        
+        /** Every other copy. */
+        public final List<Fingerprint> extras;
+        
+        public DuplicateGroup( String md5, Fingerprint keep, List<Fingerprint> extras )
+        {
+            this.md5 = md5;
+            this.keep = keep;
+            this.extras = extras;
+        }
+        
+        /**
+         * Gets the disk space freed by deleting the extra copies that are plain files. Copies
+         * inside zip archives are never deleted, since the archives may hold other files.
+         */
+        public long getReclaimableBytes()
+        {
+            long bytes = 0;
+            for( Fingerprint extra : extras )
+            {
+                if( extra.zipEntryName == null )
+                    bytes += extra.length;
+            }
+            return bytes;
+        }
+    }
+    
+    public FindDuplicatesTask( Activity activity, String fingerprintPath, String catalogPath,
+            FindDuplicatesListener listener )
+    {
+        if( TextUtils.isEmpty( fingerprintPath ) )
+            throw new IllegalArgumentException( "Fingerprint index path cannot be null or empty" );
+        if( TextUtils.isEmpty( catalogPath ) )
+            throw new IllegalArgumentException( "Catalog path cannot be null or empty" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mFingerprintPath = fingerprintPath;
+        mCatalogPath = catalogPath;
+        mListener = listener;
+        
+        CharSequence title = activity.getString( R.string.findDuplicates_title );
+        CharSequence message = activity.getString( R.string.toast_pleaseWait );
+        mProgress = new ProgressDialog( activity, this, title, "", message, true );
+        mProgress.show();
+    }
+    
+    private final String mFingerprintPath;
+    private final String mCatalogPath;
+    private final FindDuplicatesListener mListener;
+    private final ProgressDialog mProgress;
+    
+    @Override
+    protected List<DuplicateGroup> doInBackground( Void... params )
+    {
+        RomFingerprintIndex fingerprints = new RomFingerprintIndex( mFingerprintPath );
+        fingerprints.prune();
+        
+        // Tier 1: group by header CRC; records from before CRCs were recorded go straight to tier 3
+        HashMap<String, List<Fingerprint>> byCrc = new HashMap<String, List<Fingerprint>>();
+        LinkedHashMap<String, LinkedHashMap<String, Fingerprint>> byMd5 = new LinkedHashMap<String, LinkedHashMap<String, Fingerprint>>();
+        for( Fingerprint fingerprint : fingerprints.getFingerprints() )
+        {
+            // Skip records of files that changed since they were scanned
+            if( fingerprints.getFingerprint( new File( fingerprint.path ), fingerprint.zipEntryName ) == null )
+                continue;
+            if( fingerprint.crc != null )
+                getList( byCrc, fingerprint.crc ).add( fingerprint );
+            else if( fingerprint.md5 != null )
+                addByMd5( byMd5, fingerprint.md5, fingerprint );
+        }
+        
+        // Tier 2: split each colliding CRC group by sampled hash
+        List<List<Fingerprint>> candidates = new ArrayList<List<Fingerprint>>();
+        int md5Count = 0;
+        for( List<Fingerprint> group : byCrc.values() )
+        {
+            if( group.size() < 2 )
+                continue;
+            
+            // Zipped ROMs have no sampled hash, so they stay candidates in every subgroup
+            HashMap<String, List<Fingerprint>> bySample = new HashMap<String, List<Fingerprint>>();
+            List<Fingerprint> unsampled = new ArrayList<Fingerprint>();
+            for( Fingerprint fingerprint : group )
+            {
+                if( fingerprint.sampledHash == null )
+                    unsampled.add( fingerprint );
+                else
+                    getList( bySample, fingerprint.sampledHash ).add( fingerprint );
+            }
+            if( bySample.isEmpty() )
+                bySample.put( "", new ArrayList<Fingerprint>() );
+            for( List<Fingerprint> subgroup : bySample.values() )
+            {
+                subgroup.addAll( unsampled );
+                if( subgroup.size() < 2 )
+                    continue;
+                candidates.add( subgroup );
+                for( Fingerprint fingerprint : subgroup )
+                {
+                    if( fingerprint.md5 == null )
+                        md5Count++;
+                }
+            }
+        }
+        
+        // Tier 3: confirm the remaining collisions by MD5, hashing only what was never hashed
+        mProgress.setMaxProgress( md5Count );
+        mProgress.setMessage( R.string.cacheRomInfo_computingMD5 );
+        HashMap<String, String> computed = new HashMap<String, String>();
+        for( List<Fingerprint> subgroup : candidates )
+        {
+            for( Fingerprint fingerprint : subgroup )
+            {
+                if( isCancelled() )
+                    return null;
+                
+                String md5 = fingerprint.md5;
+                if( md5 == null )
+                {
+                    String key = getKey( fingerprint );
+                    md5 = computed.get( key );
+                    if( md5 == null )
+                    {
+                        mProgress.setText( new File( fingerprint.path ).getName() );
+                        File file = new File( fingerprint.path );
+                        md5 = DeferredMd5Task.computeMd5( file, fingerprint.zipEntryName );
+                        mProgress.incrementProgress( 1 );
+                        if( md5 == null )
+                            continue;
+                        computed.put( key, md5 );
+                        fingerprints.put( file, fingerprint.zipEntryName, md5 );
+                    }
+                }
+                addByMd5( byMd5, md5, fingerprint );
+            }
+        }
+        if( !computed.isEmpty() )
+        {
+            Log.i( "FindDuplicatesTask", "Computed " + computed.size() + " MD5s" );
+            fingerprints.save();
+        }
+        
+        // Keep the copy the gallery points to, so that the gallery stays valid
+        GalleryCatalog catalog = GalleryCatalog.open( mCatalogPath );
+        List<DuplicateGroup> duplicates = new ArrayList<DuplicateGroup>();
+        for( String md5 : byMd5.keySet() )
+        {
+            List<Fingerprint> copies = new ArrayList<Fingerprint>( byMd5.get( md5 ).values() );
+            if( copies.size() < 2 )
+                continue;
+            
+            Fingerprint keep = copies.get( 0 );
+            Entry entry = catalog.get( md5 );
+            for( Fingerprint copy : copies )
+            {
+                if( entry != null && isSameRom( entry, copy ) )
+                    keep = copy;
+            }
+            copies.remove( keep );
+            duplicates.add( new DuplicateGroup( md5, keep, copies ) );
+        }
+        return duplicates;
+    }
+    
+    @Override
+    protected void onPostExecute( List<DuplicateGroup> result )
+    {
+        mListener.onFindDuplicatesFinished( result );
+        mProgress.dismiss();
+    }
+    
+    @Override
+    protected void onCancelled( List<DuplicateGroup> result )
+    {
+        mListener.onFindDuplicatesFinished( null );
+        mProgress.dismiss();
+    }
+    
+    private static boolean isSameRom( Entry entry, Fingerprint fingerprint )
+    {
+        if( fingerprint.zipEntryName == null )
+            return fingerprint.path.equals( entry.getRomPath() );
+        else
+            return fingerprint.path.equals( entry.getZipPath() )
+                    && fingerprint.zipEntryName.equals( entry.getZipEntryName() );
+    }
+    
+    private static void addByMd5( LinkedHashMap<String, LinkedHashMap<String, Fingerprint>> byMd5,
+            String md5, Fingerprint fingerprint )
+    {
+        // The same copy may be reached through several subgroups
+        LinkedHashMap<String, Fingerprint> copies = byMd5.get( md5 );
+        if( copies == null )
+        {
+            copies = new LinkedHashMap<String, Fingerprint>();
+            byMd5.put( md5, copies );
+        }
+        copies.put( getKey( fingerprint ), fingerprint );
+    }
+    
+    private static <T> List<T> getList( HashMap<String, List<T>> map, String key )
+    {
+        List<T> list = map.get( key );
+        if( list == null )
+        {
+            list = new ArrayList<T>();
+            map.put( key, list );
+        }
+        return list;
+    }
+    
+    private static String getKey( Fingerprint fingerprint )
+    {
+        return fingerprint.zipEntryName == null ? fingerprint.path : fingerprint.path + "\t"
+                + fingerprint.zipEntryName;
+    }
+}
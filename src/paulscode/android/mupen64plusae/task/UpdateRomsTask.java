@@ -0,0 +1,313 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog;
+import paulscode.android.mupen64plusae.persistent.GalleryCatalog.Entry;
+import paulscode.android.mupen64plusae.persistent.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.task.CacheRomInfoTask.HashedRom;
+import paulscode.android.mupen64plusae.util.RomDatabase;
+import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
+import paulscode.android.mupen64plusae.util.RomHeaderReader;
+import paulscode.android.mupen64plusae.util.ScanStats;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Brings the gallery up to date with a few files that changed since the last scan, without a
+ * progress dialog, for changes noticed while the gallery is open. Changed files are examined like
+ * the full scan examines them, except that MD5s are always computed and only for files whose
+ * fingerprints changed. Entries still pointing into removed files or directories afterwards are
+ * dropped, so that a ROM that was moved or renamed keeps its entry.
+ */
+public class UpdateRomsTask extends AsyncTask<Void, Entry, List<String>>
+{
+    public interface UpdateRomsListener
+    {
+        /**
+         * Called on the UI thread each time a changed ROM is cached.
+         */
+        public void onUpdateRomsProgress( Entry entry );
+        
+        /**
+         * Called on the UI thread when the update is complete.
+         * 
+         * @param removedMd5s The MD5s of the entries that were removed from the catalog.
+         */
+        public void onUpdateRomsFinished( List<String> removedMd5s );
+    }
+    
+    public UpdateRomsTask( List<File> changed, List<File> removed, String databasePath,
+            String catalogPath, String fingerprintPath, String artDir, String artFailuresPath,
+            boolean searchZips, boolean downloadArt, UpdateRomsListener listener )
+    {
+        if( changed == null || removed == null )
+            throw new IllegalArgumentException( "File lists cannot be null" );
+        if( TextUtils.isEmpty( databasePath ) )
+            throw new IllegalArgumentException( "ROM database path cannot be null or empty" );
+        if( TextUtils.isEmpty( catalogPath ) )
+            throw new IllegalArgumentException( "Catalog path cannot be null or empty" );
+        if( TextUtils.isEmpty( fingerprintPath ) )
+            throw new IllegalArgumentException( "Fingerprint index path cannot be null or empty" );
+        if( TextUtils.isEmpty( artDir ) )
+            throw new IllegalArgumentException( "Art directory cannot be null or empty" );
+        if( TextUtils.isEmpty( artFailuresPath ) )
+            throw new IllegalArgumentException( "Art failures path cannot be null or empty" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mChanged = changed;
+        mRemoved = removed;
+        mDatabasePath = databasePath;
+        mCatalogPath = catalogPath;
+        mFingerprintPath = fingerprintPath;
+        mArtDir = artDir;
+        mArtFailuresPath = artFailuresPath;
+        mSearchZips = searchZips;
+        mDownloadArt = downloadArt;
+        mListener = listener;
+    }
+    
+    private final List<File> mChanged;
+    private final List<File> mRemoved;
+    private final String mDatabasePath;
+    private final String mCatalogPath;
+    private final String mFingerprintPath;
+    private final String mArtDir;
+    private final String mArtFailuresPath;
+    private final boolean mSearchZips;
+    private final boolean mDownloadArt;
+    private final UpdateRomsListener mListener;
+    
+    /** Where the update spends its time, logged when the update ends. */
+    private final ScanStats mStats = new ScanStats();
+    
+    /** The MD5s of the ROMs cached by the update. */
+    private final Set<String> mUpdatedMd5s = new HashSet<String>();
+    
+    /** How long to wait for cover art before giving up on it. */
+    private static final long ART_TIMEOUT_MS = 30000;
+    
+    @Override
+    protected List<String> doInBackground( Void... params )
+    {
+        mStats.start();
+        GalleryCatalog catalog = GalleryCatalog.open( mCatalogPath );
+        RomFingerprintIndex fingerprints = new RomFingerprintIndex( mFingerprintPath );
+        
+        RomDatabase database = null;
+        CoverArtFetcher artFetcher = null;
+        RomHeaderReader header = new RomHeaderReader();
+        for( File file : mChanged )
+        {
+            if( isCancelled() )
+                break;
+            if( !file.isFile() )
+                continue;
+            
+            // The database is only opened once a changed file turns out to be a ROM
+            long time = System.nanoTime();
+            header.read( file );
+            mStats.recordSince( ScanStats.HEADER, time );
+            if( !header.isValid() && !( header.isZip() && mSearchZips ) )
+                continue;
+            if( database == null )
+            {
+                database = new RomDatabase( mDatabasePath );
+                if( mDownloadArt )
+                    artFetcher = new CoverArtFetcher( mArtFailuresPath );
+            }
+            
+            if( header.isValid() )
+                updateFile( file, header, catalog, fingerprints, database, artFetcher );
+            else
+                updateZipFile( file, header, catalog, fingerprints, database, artFetcher );
+        }
+        
+        if( artFetcher != null )
+        {
+            try
+            {
+                if( !artFetcher.finish( ART_TIMEOUT_MS ) )
+                    artFetcher.cancel();
+            }
+            catch( InterruptedException e )
+            {
+                artFetcher.cancel();
+            }
+        }
+        
+        // A moved or renamed ROM was cached again under its new path above, so it stays
+        List<String> removedMd5s = removeEntries( catalog );
+        catalog.close();
+        fingerprints.prune();
+        fingerprints.save();
+        mStats.finish();
+        Log.i( "UpdateRomsTask", "Update of " + mChanged.size() + " changed and " + mRemoved.size()
+                + " removed files:\n" + mStats );
+        return removedMd5s;
+    }
+    
+    @Override
+    protected void onProgressUpdate( Entry... values )
+    {
+        mListener.onUpdateRomsProgress( values[0] );
+    }
+    
+    @Override
+    protected void onPostExecute( List<String> result )
+    {
+        mListener.onUpdateRomsFinished( result );
+    }
+    
+    @Override
+    protected void onCancelled( List<String> result )
+    {
+        mListener.onUpdateRomsFinished( result == null ? new ArrayList<String>() : result );
+    }
+    
+    private List<String> removeEntries( GalleryCatalog catalog )
+    {
+        List<String> removedMd5s = new ArrayList<String>();
+        if( mRemoved.isEmpty() )
+            return removedMd5s;
+        
+        for( Entry entry : catalog.getEntries() )
+        {
+            if( mUpdatedMd5s.contains( entry.md5 ) )
+                continue;
+            
+            String path = entry.getRomPath() != null ? entry.getRomPath() : entry.getZipPath();
+            if( path == null )
+                continue;
+            for( File removed : mRemoved )
+            {
+                // A removed directory takes every ROM below it along
+                String removedPath = removed.getAbsolutePath();
+                if( path.equals( removedPath ) || path.startsWith( removedPath + "/" ) )
+                {
+                    if( !new File( path ).exists() )
+                    {
+                        catalog.remove( entry.md5 );
+                        removedMd5s.add( entry.md5 );
+                    }
+                    break;
+                }
+            }
+        }
+        return removedMd5s;
+    }
+    
+    private void updateFile( File file, RomHeaderReader header, GalleryCatalog catalog,
+            RomFingerprintIndex fingerprints, RomDatabase database, CoverArtFetcher artFetcher )
+    {
+        // Files that were only touched keep their fingerprints, and aren't hashed again
+        HashedRom rom = CacheRomInfoTask.hashRomFile( file, header, fingerprints, null, null, mStats );
+        cacheRom( rom, catalog, database, artFetcher );
+    }
+    
+    private void updateZipFile( File file, RomHeaderReader header, GalleryCatalog catalog,
+            RomFingerprintIndex fingerprints, RomDatabase database, CoverArtFetcher artFetcher )
+    {
+        ZipFile zipFile = null;
+        try
+        {
+            zipFile = new ZipFile( file );
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while( entries.hasMoreElements() && !isCancelled() )
+            {
+                ZipEntry zipEntry = entries.nextElement();
+                if( zipEntry.isDirectory() )
+                    continue;
+                
+                // One unreadable entry shouldn't keep the rest of the archive from updating
+                try
+                {
+                    InputStream zipStream = new BufferedInputStream( zipFile.getInputStream( zipEntry ) );
+                    try
+                    {
+                        HashedRom rom = CacheRomInfoTask.hashRomZipEntry( file, zipEntry, zipStream,
+                                header, fingerprints, null, null, mStats );
+                        if( rom != null )
+                            cacheRom( rom, catalog, database, artFetcher );
+                    }
+                    finally
+                    {
+                        zipStream.close();
+                    }
+                }
+                catch( IOException e )
+                {
+                    Log.w( "UpdateRomsTask", e );
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            Log.w( "UpdateRomsTask", e );
+        }
+        finally
+        {
+            if( zipFile != null )
+            {
+                try
+                {
+                    zipFile.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private void cacheRom( HashedRom rom, GalleryCatalog catalog, RomDatabase database,
+            CoverArtFetcher artFetcher )
+    {
+        if( rom.md5 == null )
+            return;
+        
+        String romPath = CacheRomInfoTask.getRomPath( rom.file, rom.zipEntryName );
+        RomDetail detail = database.lookupByMd5WithFallback( rom.md5, romPath, rom.crc );
+        String artPath = mArtDir + "/" + detail.artName;
+        Entry entry = CacheRomInfoTask.putRomInfo( catalog, rom.md5, detail, rom.file,
+                rom.zipEntryName, artPath );
+        mUpdatedMd5s.add( rom.md5 );
+        Log.i( "UpdateRomsTask", "Updated " + romPath );
+        
+        if( artFetcher != null )
+            artFetcher.fetch( detail.artUrl, artPath );
+        publishProgress( entry );
+    }
+}
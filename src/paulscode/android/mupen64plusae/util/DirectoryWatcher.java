@@ -0,0 +1,55 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+
+/**
+ * The DirectoryWatcher interface reports changes to the files under a directory tree. It separates
+ * the platform's notification mechanism from {@link LibraryWatcher}, so that the library can be
+ * watched with {@link FileObserverWatcher} on a device and with any other implementation elsewhere.
+ */
+public interface DirectoryWatcher
+{
+    public interface Listener
+    {
+        /**
+         * Called when a file was written, or moved into the tree. Called from any thread.
+         */
+        public void onFileChanged( File file );
+        
+        /**
+         * Called when a file or directory was deleted, or moved out of the tree. Called from any
+         * thread.
+         */
+        public void onFileRemoved( File file );
+    }
+    
+    /**
+     * Starts reporting changes under a directory, including its subdirectories.
+     */
+    public void start( File root, Listener listener );
+    
+    /**
+     * Stops reporting changes. Nothing is reported once this returns.
+     */
+    public void stop();
+}
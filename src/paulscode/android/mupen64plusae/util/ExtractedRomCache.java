@@ -0,0 +1,432 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import paulscode.android.mupen64plusae.task.ComputeMd5Task;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The ExtractedRomCache class holds the ROMs extracted from zip archives, so that a zipped ROM only
+ * has to be inflated the first time it is launched.
+ * <p>
+ * Extracted ROMs are stored by the MD5 of their contents rather than by their entry names, so
+ * entries with the same name in different archives can't overwrite each other, and identical ROMs
+ * in different archives are only stored once. Each cached ROM remembers the archives it was
+ * extracted from. When the cache grows past its disk budget, ROMs whose archives no longer exist are
+ * evicted first, then the least recently used ones.
+ * <p>
+ * The cache is recorded in an index file in the cache directory, which is replaced atomically on
+ * every change. Once the index has been read in full, ROMs and temp files that the cache named but
+ * the index no longer lists are deleted. ROMs extracted by earlier versions are named after their
+ * zip entries instead; the gallery may still launch them directly, so they are left alone.
+ * <p>
+ * All methods are synchronized, so one instance should be shared by everything that extracts ROMs.
+ */
+public class ExtractedRomCache
+{
+    private static final String INDEX_NAME = "index.txt";
+    private static final String TEMP_NAME = "extract.tmp";
+    private static final String SEPARATOR = "\t";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    /** The names this cache gives its own files: extracted ROMs, and the temp files it writes. */
+    private static final Pattern OWNED_NAME = Pattern.compile( "[0-9A-F]{32}\\.[^.]+|.*\\.tmp" );
+    
+    private final File mCacheDir;
+    private final File mIndexFile;
+    private final long mMaxBytes;
+    
+    /** Cached ROMs mapped by MD5. */
+    private final HashMap<String, CachedRom> mRoms = new HashMap<String, CachedRom>();
+    
+    private boolean mLoaded = false;
+    
+    /**
+     * The CachedRom class describes one extracted ROM.
+     */
+    private static class CachedRom
+    {
+        public final String md5;
+        public final File file;
+        
+        /** The paths of the archives this ROM was extracted from. */
+        public final HashSet<String> sources = new HashSet<String>();
+        
+        /** When the ROM was last handed out, in milliseconds since the epoch. */
+        public long lastUsed;
+        
+        public CachedRom( String md5, File file, long lastUsed )
+        {
+            this.md5 = md5;
+            this.file = file;
+            this.lastUsed = lastUsed;
+        }
+        
+        public boolean isOrphaned()
+        {
+            for( String source : sources )
+            {
+                if( new File( source ).exists() )
+                    return false;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Creates a cache. The index is read the first time the cache is used.
+     * 
+     * @param cacheDir The directory holding the extracted ROMs.
+     * @param maxBytes The most disk space the extracted ROMs may occupy.
+     */
+    public ExtractedRomCache( File cacheDir, long maxBytes )
+    {
+        if( cacheDir == null )
+            throw new IllegalArgumentException( "Cache directory cannot be null" );
+        
+        mCacheDir = cacheDir;
+        mIndexFile = new File( cacheDir, INDEX_NAME );
+        mMaxBytes = maxBytes;
+    }
+    
+    /**
+     * Gets a ROM from a zip archive, extracting it only if no copy of it is cached yet.
+     * 
+     * @param zipFile The zip archive containing the ROM.
+     * @param zipEntryName The name of the ROM's zip entry.
+     * @param md5 The MD5 the ROM is expected to have, or null if unknown.
+     * 
+     * @return The extracted ROM file, or null if it could not be extracted.
+     */
+    public synchronized File get( File zipFile, String zipEntryName, String md5 )
+    {
+        if( zipFile == null )
+            throw new IllegalArgumentException( "Zip file cannot be null" );
+        if( TextUtils.isEmpty( zipEntryName ) )
+            throw new IllegalArgumentException( "Zip entry name cannot be null or empty" );
+        
+        load();
+        
+        // Reuse the copy with the expected contents, wherever it was extracted from
+        CachedRom rom = md5 == null ? null : mRoms.get( md5 );
+        if( rom == null || !rom.file.exists() )
+        {
+            rom = extract( zipFile, zipEntryName );
+            if( rom == null )
+                return null;
+        }
+        else
+        {
+            Log.i( "ExtractedRomCache", "Reusing " + rom.file.getName() + " for " + zipEntryName );
+        }
+        
+        rom.sources.add( zipFile.getAbsolutePath() );
+        rom.lastUsed = System.currentTimeMillis();
+        evict( rom );
+        save();
+        return rom.file;
+    }
+    
+    /**
+     * Gets the disk space occupied by the extracted ROMs.
+     */
+    public synchronized long getSizeBytes()
+    {
+        load();
+        long bytes = 0;
+        for( CachedRom rom : mRoms.values() )
+            bytes += rom.file.length();
+        return bytes;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        load();
+        return "ExtractedRomCache[" + mRoms.size() + " ROMs, " + getSizeBytes() + "/" + mMaxBytes
+                + " bytes]";
+    }
+    
+    private CachedRom extract( File zipFile, String zipEntryName )
+    {
+        ZipFile zip = null;
+        File tempFile = new File( mCacheDir, TEMP_NAME );
+        try
+        {
+            zip = new ZipFile( zipFile );
+            ZipEntry zipEntry = zip.getEntry( zipEntryName );
+            if( zipEntry == null || zipEntry.isDirectory() )
+            {
+                Log.w( "ExtractedRomCache", "Zip entry " + zipEntryName + " not found in "
+                        + zipFile.getAbsolutePath() );
+                return null;
+            }
+            
+            mCacheDir.mkdirs();
+            Log.i( "ExtractedRomCache", "Extracting zip entry " + zipEntryName );
+            InputStream inStream = zip.getInputStream( zipEntry );
+            OutputStream outStream = null;
+            try
+            {
+                outStream = new BufferedOutputStream( new FileOutputStream( tempFile ) );
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while( ( n = inStream.read( buffer ) ) >= 0 )
+                    outStream.write( buffer, 0, n );
+            }
+            finally
+            {
+                // Flush output stream and guarantee no memory leaks
+                if( outStream != null )
+                    outStream.close();
+                inStream.close();
+            }
+            
+            // Name the copy after its contents, unless identical contents are already cached
+            String md5 = ComputeMd5Task.computeMd5( tempFile );
+            if( md5 == null )
+                return null;
+            CachedRom rom = mRoms.get( md5 );
+            if( rom != null && rom.file.exists() )
+                return rom;
+            
+            File romFile = new File( mCacheDir, md5 + getExtension( zipEntryName ) );
+            if( !tempFile.renameTo( romFile ) )
+            {
+                Log.w( "ExtractedRomCache", "Could not rename " + tempFile.getAbsolutePath() );
+                return null;
+            }
+            rom = new CachedRom( md5, romFile, 0 );
+            mRoms.put( md5, rom );
+            return rom;
+        }
+        catch( IOException e )
+        {
+            Log.w( "ExtractedRomCache", e );
+            return null;
+        }
+        finally
+        {
+            tempFile.delete();
+            if( zip != null )
+            {
+                try
+                {
+                    zip.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Deletes cached ROMs until the cache is back under budget. The ROM being handed out is never
+     * deleted, even if it is over budget on its own.
+     */
+    private void evict( CachedRom keep )
+    {
+        long bytes = 0;
+        ArrayList<CachedRom> candidates = new ArrayList<CachedRom>();
+        for( CachedRom rom : mRoms.values() )
+        {
+            bytes += rom.file.length();
+            if( rom != keep )
+                candidates.add( rom );
+        }
+        
+        while( bytes > mMaxBytes && !candidates.isEmpty() )
+        {
+            // Orphans go first, then the least recently used
+            CachedRom victim = null;
+            boolean victimOrphaned = false;
+            for( CachedRom rom : candidates )
+            {
+                boolean orphaned = rom.isOrphaned();
+                if( victim == null || ( orphaned && !victimOrphaned )
+                        || ( orphaned == victimOrphaned && rom.lastUsed < victim.lastUsed ) )
+                {
+                    victim = rom;
+                    victimOrphaned = orphaned;
+                }
+            }
+            
+            Log.i( "ExtractedRomCache", "Evicting " + victim.file.getName() );
+            candidates.remove( victim );
+            mRoms.remove( victim.md5 );
+            bytes -= victim.file.length();
+            victim.file.delete();
+        }
+    }
+    
+    private void load()
+    {
+        if( mLoaded )
+            return;
+        mLoaded = true;
+        
+        boolean complete = true;
+        BufferedReader reader = null;
+        try
+        {
+            // Each line is md5, file name, last used time, and the source archives
+            reader = new BufferedReader( new FileReader( mIndexFile ) );
+            String line;
+            while( ( line = reader.readLine() ) != null )
+            {
+                String[] fields = line.split( SEPARATOR );
+                if( fields.length < 3 )
+                {
+                    complete = false;
+                    continue;
+                }
+                File file = new File( mCacheDir, fields[1] );
+                if( !file.exists() )
+                    continue;
+                CachedRom rom = new CachedRom( fields[0], file, SafeMethods.toLong( fields[2], 0 ) );
+                for( int i = 3; i < fields.length; i++ )
+                    rom.sources.add( fields[i] );
+                mRoms.put( rom.md5, rom );
+            }
+        }
+        catch( FileNotFoundException e )
+        {
+            // Nothing has been extracted yet
+        }
+        catch( IOException e )
+        {
+            Log.w( "ExtractedRomCache", "Error reading " + mIndexFile.getAbsolutePath(), e );
+            complete = false;
+        }
+        finally
+        {
+            if( reader != null )
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+        
+        // Without the whole index, a file missing from it may still be in use
+        if( !complete )
+        {
+            Log.w( "ExtractedRomCache", "Index incomplete, keeping unlisted files" );
+            return;
+        }
+        
+        // Delete the files this cache named but no longer lists; leave everything else alone
+        HashSet<String> known = new HashSet<String>();
+        for( CachedRom rom : mRoms.values() )
+            known.add( rom.file.getName() );
+        File[] files = mCacheDir.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+            {
+                String name = file.getName();
+                if( file.isFile() && !known.contains( name ) && OWNED_NAME.matcher( name ).matches() )
+                    file.delete();
+            }
+        }
+    }
+    
+    private void save()
+    {
+        // Write the whole index to a temp file and swap it in, so it is never left half-written
+        File tempFile = null;
+        FileOutputStream stream = null;
+        try
+        {
+            mCacheDir.mkdirs();
+            tempFile = File.createTempFile( INDEX_NAME, ".tmp", mCacheDir );
+            stream = new FileOutputStream( tempFile );
+            BufferedWriter writer = new BufferedWriter( new OutputStreamWriter( stream ) );
+            for( CachedRom rom : mRoms.values() )
+            {
+                writer.write( rom.md5 + SEPARATOR + rom.file.getName() + SEPARATOR + rom.lastUsed );
+                for( String source : rom.sources )
+                    writer.write( SEPARATOR + source );
+                writer.newLine();
+            }
+            writer.flush();
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+            if( !tempFile.renameTo( mIndexFile ) )
+                Log.e( "ExtractedRomCache", "Could not replace " + mIndexFile.getAbsolutePath() );
+        }
+        catch( IOException e )
+        {
+            Log.e( "ExtractedRomCache", "IOException writing file " + mIndexFile.getAbsolutePath()
+                    + ", error message: " + e.getMessage() );
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( tempFile != null )
+                tempFile.delete();
+        }
+    }
+    
+    private static String getExtension( String zipEntryName )
+    {
+        // Keep the original extension, which some tools use to guess the byte order
+        int dot = zipEntryName.lastIndexOf( '.' );
+        if( dot < 0 || dot < zipEntryName.lastIndexOf( '/' ) )
+            return ".rom";
+        return zipEntryName.substring( dot ).toLowerCase( Locale.US );
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+/**
+ * The FileObserverWatcher class watches a directory tree with one {@link FileObserver} per
+ * directory, since a FileObserver only sees the directory it was created for. Directories that
+ * appear later are watched as soon as they are created or moved in, and the files already inside a
+ * directory that was moved in are reported as changed.
+ * <p>
+ * Files are reported when they are closed after writing rather than when they are created, so a
+ * ROM that is still being copied is not examined half-written.
+ */
+public class FileObserverWatcher implements DirectoryWatcher
+{
+    private static final int DIRECTORY_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.CREATE
+            | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE
+            | FileObserver.DELETE_SELF;
+    
+    /** Observers mapped by the path they watch; they must be referenced to keep watching. */
+    private final HashMap<String, DirectoryObserver> mObservers = new HashMap<String, DirectoryObserver>();
+    
+    /** Canonical paths of the watched directories, so that link cycles are only entered once. */
+    private final HashSet<String> mCanonicalPaths = new HashSet<String>();
+    
+    private Listener mListener = null;
+    
+    @Override
+    public synchronized void start( File root, Listener listener )
+    {
+        if( root == null )
+            throw new IllegalArgumentException( "Root cannot be null" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        stop();
+        mListener = listener;
+        watchTree( root, false );
+        Log.i( "FileObserverWatcher", "Watching " + mObservers.size() + " directories under "
+                + root.getAbsolutePath() );
+    }
+    
+    @Override
+    public synchronized void stop()
+    {
+        for( DirectoryObserver observer : mObservers.values() )
+            observer.stopWatching();
+        mObservers.clear();
+        mCanonicalPaths.clear();
+        mListener = null;
+    }
+    
+    /**
+     * Watches a directory and every directory below it.
+     * 
+     * @param reportFiles True to report the files found along the way as changed.
+     */
+    private void watchTree( File root, boolean reportFiles )
+    {
+        ArrayList<File> directories = new ArrayList<File>();
+        directories.add( root );
+        while( !directories.isEmpty() )
+        {
+            File directory = directories.remove( directories.size() - 1 );
+            String path = directory.getAbsolutePath();
+            String canonicalPath;
+            try
+            {
+                canonicalPath = directory.getCanonicalPath();
+            }
+            catch( IOException e )
+            {
+                continue;
+            }
+            if( mObservers.containsKey( path ) || !mCanonicalPaths.add( canonicalPath ) )
+                continue;
+            
+            DirectoryObserver observer = new DirectoryObserver( path, canonicalPath );
+            observer.startWatching();
+            mObservers.put( path, observer );
+            
+            File[] files = directory.listFiles();
+            if( files == null )
+                continue;
+            for( File file : files )
+            {
+                if( file.isDirectory() )
+                {
+                    if( !RomFileWalker.isSkipped( file ) )
+                        directories.add( file );
+                }
+                else if( reportFiles )
+                {
+                    mListener.onFileChanged( file );
+                }
+            }
+        }
+    }
+    
+    private void unwatchTree( String path )
+    {
+        String prefix = path + "/";
+        ArrayList<String> removed = new ArrayList<String>();
+        for( String observedPath : mObservers.keySet() )
+        {
+            if( observedPath.equals( path ) || observedPath.startsWith( prefix ) )
+                removed.add( observedPath );
+        }
+        for( String observedPath : removed )
+        {
+            DirectoryObserver observer = mObservers.remove( observedPath );
+            observer.stopWatching();
+            mCanonicalPaths.remove( observer.canonicalPath );
+        }
+    }
+    
+    private synchronized void onEvent( String directory, int event, String name )
+    {
+        // Events may still arrive from observers that were just stopped
+        if( mListener == null || !mObservers.containsKey( directory ) )
+            return;
+        
+        if( ( event & FileObserver.DELETE_SELF ) != 0 )
+        {
+            unwatchTree( directory );
+            return;
+        }
+        if( name == null )
+            return;
+        
+        File file = new File( directory, name );
+        if( ( event & ( FileObserver.DELETE | FileObserver.MOVED_FROM ) ) != 0 )
+        {
+            unwatchTree( file.getAbsolutePath() );
+            mListener.onFileRemoved( file );
+        }
+        else if( file.isDirectory() )
+        {
+            // A directory moved in may already hold ROMs; a new empty one just needs watching
+            if( ( event & ( FileObserver.CREATE | FileObserver.MOVED_TO ) ) != 0
+                    && !RomFileWalker.isSkipped( file ) )
+                watchTree( file, true );
+        }
+        else if( ( event & ( FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO ) ) != 0 )
+        {
+            mListener.onFileChanged( file );
+        }
+    }
+    
+    private class DirectoryObserver extends FileObserver
+    {
+        public final String canonicalPath;
+        private final String mPath;
+        
+        public DirectoryObserver( String path, String canonicalPath )
+        {
+            super( path, DIRECTORY_EVENTS );
+            this.canonicalPath = canonicalPath;
+            mPath = path;
+        }
+        
+        @Override
+        public void onEvent( int event, String name )
+        {
+            FileObserverWatcher.this.onEvent( mPath, event, name );
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The LibraryWatcher class turns the file events of a {@link DirectoryWatcher} into batches of ROM
+ * files to re-examine. Events are collected until the tree has been quiet for a moment, so copying a
+ * folder of ROMs produces one batch instead of one per file; a steady stream of events is still
+ * flushed after a longer delay. Each file appears at most once per batch, as changed or removed
+ * according to its last event, and files that can't be ROMs are dropped.
+ * <p>
+ * The watcher's own thread also starts and stops the {@link DirectoryWatcher}, which may have to
+ * walk the whole tree, and delivers the batches. The class uses no Android APIs, so it can be tested
+ * with a fake DirectoryWatcher on any JVM.
+ */
+public class LibraryWatcher implements DirectoryWatcher.Listener
+{
+    public interface Listener
+    {
+        /**
+         * Called with the files that changed since the last batch. Called on the watcher's thread.
+         * 
+         * @param changed Files that were written or moved in.
+         * @param removed Files and directories that were deleted or moved out.
+         */
+        public void onLibraryChanged( List<File> changed, List<File> removed );
+    }
+    
+    private final DirectoryWatcher mWatcher;
+    private final Set<String> mExcludedExtensions;
+    private final long mQuietMs;
+    private final long mMaxDelayMs;
+    private final Listener mListener;
+    private final ScheduledExecutorService mExecutor;
+    
+    /** Pending files mapped by path; true if the last event removed the file. */
+    private final LinkedHashMap<String, Boolean> mPending = new LinkedHashMap<String, Boolean>();
+    
+    /** When the oldest pending event arrived, or 0 if nothing is pending. */
+    private long mFirstEventTime = 0;
+    
+    private ScheduledFuture<?> mFlush = null;
+    private boolean mStarted = false;
+    
+    private final Runnable mFlushRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flush();
+        }
+    };
+    
+    /**
+     * Creates a library watcher.
+     * 
+     * @param watcher The source of file events.
+     * @param excludedExtensions Lowercase extensions of files to ignore, or null to ignore none.
+     * @param quietMs How long the tree must be quiet before a batch is delivered.
+     * @param maxDelayMs The longest a batch is held back while events keep arriving.
+     * @param listener The listener to receive the batches.
+     */
+    public LibraryWatcher( DirectoryWatcher watcher, Set<String> excludedExtensions, long quietMs,
+            long maxDelayMs, Listener listener )
+    {
+        if( watcher == null )
+            throw new IllegalArgumentException( "Watcher cannot be null" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mWatcher = watcher;
+        mExcludedExtensions = excludedExtensions;
+        mQuietMs = quietMs;
+        mMaxDelayMs = Math.max( quietMs, maxDelayMs );
+        mListener = listener;
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+    
+    /**
+     * Starts watching a directory tree, replacing any tree watched before. The tree is walked on the
+     * watcher's thread, so this returns right away.
+     */
+    public void start( final File root )
+    {
+        stop();
+        mExecutor.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized( LibraryWatcher.this )
+                {
+                    mStarted = true;
+                }
+                
+                // Not under the lock, since the watcher holds its own lock while reporting events
+                mWatcher.start( root, LibraryWatcher.this );
+            }
+        } );
+    }
+    
+    /**
+     * Stops watching and drops the events that have not been delivered yet. The watcher itself is
+     * stopped on the watcher's thread; a batch already being delivered when this is called may still
+     * arrive, but no other will.
+     */
+    public void stop()
+    {
+        reset();
+        mExecutor.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // A start queued before this call may have run since, so reset again
+                reset();
+                mWatcher.stop();
+            }
+        } );
+    }
+    
+    /**
+     * Stops watching for good and releases the watcher's thread once the watcher has stopped.
+     */
+    public void shutdown()
+    {
+        stop();
+        mExecutor.shutdown();
+    }
+    
+    private synchronized void reset()
+    {
+        mStarted = false;
+        mPending.clear();
+        mFirstEventTime = 0;
+        if( mFlush != null )
+        {
+            mFlush.cancel( false );
+            mFlush = null;
+        }
+    }
+    
+    @Override
+    public void onFileChanged( File file )
+    {
+        if( RomFileWalker.isCandidate( file, null, mExcludedExtensions ) )
+            post( file, false );
+    }
+    
+    @Override
+    public void onFileRemoved( File file )
+    {
+        // A removed path may have been a directory, so only its name can be checked
+        if( !file.getName().startsWith( "." ) )
+            post( file, true );
+    }
+    
+    private synchronized void post( File file, boolean removed )
+    {
+        if( !mStarted )
+            return;
+        
+        // Re-inserting moves the file to the end, so batches keep the order of the last events
+        String path = file.getAbsolutePath();
+        mPending.remove( path );
+        mPending.put( path, removed );
+        
+        // Wait for a quiet moment, but not past the deadline set by the oldest event
+        long now = System.currentTimeMillis();
+        if( mFirstEventTime == 0 )
+            mFirstEventTime = now;
+        long delay = Math.max( 0, Math.min( mQuietMs, mFirstEventTime + mMaxDelayMs - now ) );
+        if( mFlush != null )
+            mFlush.cancel( false );
+        mFlush = mExecutor.schedule( mFlushRunnable, delay, TimeUnit.MILLISECONDS );
+    }
+    
+    private void flush()
+    {
+        List<File> changed = new ArrayList<File>();
+        List<File> removed = new ArrayList<File>();
+        synchronized( this )
+        {
+            if( !mStarted || mPending.isEmpty() )
+                return;
+            for( Map.Entry<String, Boolean> entry : mPending.entrySet() )
+            {
+                if( entry.getValue() )
+                    removed.add( new File( entry.getKey() ) );
+                else
+                    changed.add( new File( entry.getKey() ) );
+            }
+            mPending.clear();
+            mFirstEventTime = 0;
+            mFlush = null;
+        }
+        mListener.onLibraryChanged( changed, removed );
+    }
+}
@@ -20,13 +20,9 @@
 package paulscode.android.mupen64plusae.util;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
 
 import org.apache.commons.lang.NullArgumentException;
 
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -96,51 +92,52 @@ public class RomDatabase
     private static final String ART_URL_TEMPLATE = "http://paulscode.com/downloads/Mupen64Plus-AE/CoverArt/%s";
     private static final String WIKI_URL_TEMPLATE = "https://github.com/mupen64plus-ae/mupen64plus-ae-meta/wiki/%s";
     
-    private ConfigFile mConfigFile = null;
-    private final HashMap<String, ArrayList<ConfigSection>> mCrcMap = new HashMap<String, ArrayList<ConfigSection>>();
+    /** Suffix of the compiled index stored beside the ini file. */
+    private static final String INDEX_SUFFIX = ".idx";
+    
+    private final RomDatabaseIndex mIndex;
     
     public RomDatabase( String mupen64plusIni )
     {
-        mConfigFile = new ConfigFile( mupen64plusIni );
-        for( String key : mConfigFile.keySet() )
-        {
-            ConfigSection section = mConfigFile.get( key );
-            if( section != null )
-            {
-                String crc = section.get( "CRC" );
-                if( crc != null )
-                {
-                    if( mCrcMap.get( crc ) == null )
-                        mCrcMap.put( crc, new ArrayList<ConfigSection>() );
-                    mCrcMap.get( crc ).add( section );
-                }
-            }
-        }
+        mIndex = RomDatabaseIndex.open( new File( mupen64plusIni ), new File( mupen64plusIni + INDEX_SUFFIX ) );
     }
     
     public RomDetail lookupByMd5WithFallback( String md5, File file )
+    {
+        return lookupByMd5WithFallback( md5, file.getAbsolutePath(), new RomHeader( file ).crc );
+    }
+    
+    /**
+     * Looks up a ROM by MD5, falling back to its header CRC and then to its file name.
+     * 
+     * @param md5 The MD5 of the ROM image.
+     * @param romPath The path of the ROM, or of the zip entry containing the ROM.
+     * @param crc The CRC from the ROM header.
+     * 
+     * @return The detailed info about the ROM, never null.
+     */
+    public RomDetail lookupByMd5WithFallback( String md5, String romPath, String crc )
     {
         RomDetail detail = lookupByMd5( md5 );
         if( detail == null )
         {
             // MD5 not in the database; lookup by CRC instead
-            String crc = new RomHeader( file ).crc;
             RomDetail[] romDetails = lookupByCrc( crc );
             if( romDetails.length == 0 )
             {
                 // CRC not in the database; create best guess
-                Log.w( "RomDetail", "No meta-info entry found for ROM " + file.getAbsolutePath() );
+                Log.w( "RomDetail", "No meta-info entry found for ROM " + romPath );
                 Log.w( "RomDetail", "MD5: " + md5 );
                 Log.w( "RomDetail", "CRC: " + crc );
                 Log.i( "RomDetail", "Constructing a best guess for the meta-info" );
-                String goodName = file.getName().split( "\\." )[0];
+                String goodName = new File( romPath ).getName().split( "\\." )[0];
                 detail = new RomDetail( crc, goodName );
             }
             else if( romDetails.length > 1 )
             {
                 // CRC in the database more than once; let user pick best match
                 // TODO Implement popup selector
-                Log.w( "RomDetail", "Multiple meta-info entries found for ROM " + file.getAbsolutePath() );
+                Log.w( "RomDetail", "Multiple meta-info entries found for ROM " + romPath );
                 Log.w( "RomDetail", "MD5: " + md5 );
                 Log.w( "RomDetail", "CRC: " + crc );
                 Log.i( "RomDetail", "Defaulting to first entry" );
@@ -157,24 +154,23 @@ public class RomDatabase
     
     public RomDetail lookupByMd5( String md5 )
     {
-        ConfigSection section = mConfigFile.get( md5 );
-        return section == null ? null : new RomDetail( section );
+        int record = mIndex.findMd5( md5 );
+        return record < 0 ? null : new RomDetail( record );
     }
     
     public RomDetail[] lookupByCrc( String crc )
     {
-        ArrayList<ConfigSection> sections = mCrcMap.get( crc );
-        if( sections == null )
-            return new RomDetail[0];
-        
-        RomDetail[] results = new RomDetail[sections.size()];
+        int[] records = mIndex.findCrc( crc );
+        RomDetail[] results = new RomDetail[records.length];
         for( int i = 0; i < results.length; i++ )
-            results[i] = new RomDetail( sections.get( i ) );
+            results[i] = new RomDetail( records[i] );
         return results;
     }
     
     public class RomDetail
     {
+        /** The MD5 of the database entry, or null if the detail is only a best guess. */
+        public final String md5;
         public final String crc;
         public final String goodName;
         public final String baseName;
@@ -186,19 +182,16 @@ public class RomDatabase
         public final int players;
         public final boolean rumble;
         
-        private RomDetail( ConfigSection section )
+        private RomDetail( int record )
         {
-            // Never pass a null section
-            if( section == null )
-                throw new NullArgumentException( "section" );
-            
-            crc = section.get( "CRC" );
+            md5 = mIndex.getMd5( record );
+            crc = mIndex.getField( record, RomDatabaseIndex.FIELD_CRC );
             
             // Use an empty goodname (not null) for certain homebrew ROMs
             if( "00000000 00000000".equals( crc ) )
                 goodName = "";
             else
-                goodName = section.get( "GoodName" );
+                goodName = mIndex.getField( record, RomDatabaseIndex.FIELD_GOOD_NAME );
             
             if( goodName != null )
             {
@@ -226,18 +219,13 @@ public class RomDatabase
                 wikiUrl = null;
             }
             
-            // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
-            // just references another entry.
-            String refMd5 = section.get( "RefMD5" );
-            if( !TextUtils.isEmpty( refMd5 ) )
-                section = mConfigFile.get( refMd5 );
-            
-            if( section != null )
+            // Some ROMs have multiple entries. The index already resolved the referenced entry.
+            if( ( mIndex.getFlags( record ) & RomDatabaseIndex.FLAG_BAD_REFERENCE ) == 0 )
             {
-                saveType = section.get( "SaveType" );
-                String statusString = section.get( "Status" );
-                String playersString = section.get( "Players" );
-                String rumbleString = section.get( "Rumble" );
+                saveType = mIndex.getField( record, RomDatabaseIndex.FIELD_SAVE_TYPE );
+                String statusString = mIndex.getField( record, RomDatabaseIndex.FIELD_STATUS );
+                String playersString = mIndex.getField( record, RomDatabaseIndex.FIELD_PLAYERS );
+                String rumbleString = mIndex.getField( record, RomDatabaseIndex.FIELD_RUMBLE );
                 status = TextUtils.isEmpty( statusString ) ? 0 : Integer.parseInt( statusString );
                 players = TextUtils.isEmpty( playersString ) ? 4 : Integer.parseInt( playersString );
                 rumble = TextUtils.isEmpty( rumbleString ) ? true : "Yes".equals( rumbleString );
@@ -261,6 +249,7 @@ public class RomDatabase
             if( assumedGoodName == null )
                 throw new NullArgumentException( "assumedGoodName" );
             
+            md5 = null;
             crc = assumedCrc;
             goodName = assumedGoodName;
             baseName = goodName.split( " \\(" )[0].trim();
@@ -0,0 +1,533 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If not, see
+ * <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * A compiled, read-only form of the ROM database that can be memory-mapped and searched in place,
+ * so that looking up a ROM neither parses mupen64plus.ini nor keeps it on the heap.
+ * <p>
+ * The index is compiled from the ini file the first time it is needed and stored beside it. It is
+ * recompiled whenever the ini file's length or modification time no longer match the values
+ * recorded in the index header, which happens whenever the assets are re-extracted. An index whose
+ * length doesn't match its header (e.g. one torn by a crash) is recompiled too.
+ * <p>
+ * Layout (all values big-endian):
+ * <ul>
+ * <li>Header: magic, format version, ini length, ini modification time, MD5 record count, CRC
+ * record count, index length</li>
+ * <li>MD5 table: one record per ini section, sorted by MD5. Each record holds the 16-byte MD5,
+ * string pool offsets for the CRC, GoodName, SaveType, Status, Players and Rumble fields (with
+ * RefMD5 already resolved), and a flags word</li>
+ * <li>CRC table: the two CRC words and the MD5 record number, sorted by CRC and then by position in
+ * the ini file</li>
+ * <li>String pool: each distinct string once, as a length-prefixed UTF-8 sequence</li>
+ * </ul>
+ */
+final class RomDatabaseIndex
+{
+    public static final int FIELD_CRC = 0;
+    public static final int FIELD_GOOD_NAME = 1;
+    public static final int FIELD_SAVE_TYPE = 2;
+    public static final int FIELD_STATUS = 3;
+    public static final int FIELD_PLAYERS = 4;
+    public static final int FIELD_RUMBLE = 5;
+    
+    /** Set when the record's RefMD5 does not refer to a known ROM. */
+    public static final int FLAG_BAD_REFERENCE = 1;
+    
+    private static final int MAGIC = 0x4d363449; // "M64I"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 36;
+    private static final int FIELD_COUNT = 6;
+    private static final int MD5_SIZE = 16;
+    private static final int MD5_RECORD_SIZE = MD5_SIZE + 4 * FIELD_COUNT + 4;
+    private static final int CRC_RECORD_SIZE = 12;
+    private static final int NO_STRING = -1;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    
+    private final ByteBuffer mBuffer;
+    private final int mMd5Count;
+    private final int mCrcCount;
+    private final int mCrcTableOffset;
+    private final int mPoolOffset;
+    
+    private RomDatabaseIndex( ByteBuffer buffer )
+    {
+        mBuffer = buffer;
+        mMd5Count = buffer.getInt( 24 );
+        mCrcCount = buffer.getInt( 28 );
+        mCrcTableOffset = HEADER_SIZE + mMd5Count * MD5_RECORD_SIZE;
+        mPoolOffset = mCrcTableOffset + mCrcCount * CRC_RECORD_SIZE;
+    }
+    
+    /**
+     * Opens the index of a ROM database, compiling it first if it is missing or out of date.
+     * 
+     * @param iniFile The ROM database (mupen64plus.ini).
+     * @param indexFile Where the compiled index is stored.
+     * 
+     * @return The index, never null. If the ini file cannot be read, the index is empty.
+     */
+    public static RomDatabaseIndex open( File iniFile, File indexFile )
+    {
+        ByteBuffer buffer = map( indexFile );
+        if( buffer == null || !isCurrent( buffer, iniFile ) )
+        {
+            Log.i( "RomDatabaseIndex", "Compiling " + indexFile.getAbsolutePath() );
+            byte[] compiled = compile( iniFile );
+            buffer = write( compiled, indexFile ) ? map( indexFile ) : null;
+            
+            // Fall back to an in-memory index if it can't be stored
+            if( buffer == null || !isCurrent( buffer, iniFile ) )
+                buffer = ByteBuffer.wrap( compiled );
+        }
+        return new RomDatabaseIndex( buffer );
+    }
+    
+    /**
+     * Finds the record of the ROM with the given MD5.
+     * 
+     * @param md5 The MD5 as a 32-digit hex string.
+     * 
+     * @return The record number, or -1 if not found.
+     */
+    public int findMd5( String md5 )
+    {
+        byte[] key = parseMd5( md5 );
+        if( key == null )
+            return -1;
+        long keyHigh = ByteBuffer.wrap( key ).getLong( 0 );
+        long keyLow = ByteBuffer.wrap( key ).getLong( 8 );
+        
+        int low = 0;
+        int high = mMd5Count - 1;
+        while( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int position = HEADER_SIZE + mid * MD5_RECORD_SIZE;
+            int result = compareUnsigned( mBuffer.getLong( position ), keyHigh );
+            if( result == 0 )
+                result = compareUnsigned( mBuffer.getLong( position + 8 ), keyLow );
+            
+            if( result < 0 )
+                low = mid + 1;
+            else if( result > 0 )
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+    
+    /**
+     * Finds the records of all ROMs with the given header CRC, in database order.
+     * 
+     * @param crc The CRC, formatted as in {@link RomHeader#crc}.
+     * 
+     * @return The record numbers, never null.
+     */
+    public int[] findCrc( String crc )
+    {
+        long key = parseCrc( crc );
+        if( key == -1 )
+            return new int[0];
+        
+        // Find the first matching CRC record
+        int low = 0;
+        int high = mCrcCount;
+        while( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if( compareUnsigned( getCrc( mid ), key ) < 0 )
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        
+        int end = low;
+        while( end < mCrcCount && getCrc( end ) == key )
+            end++;
+        
+        int[] records = new int[end - low];
+        for( int i = 0; i < records.length; i++ )
+            records[i] = mBuffer.getInt( mCrcTableOffset + ( low + i ) * CRC_RECORD_SIZE + 8 );
+        return records;
+    }
+    
+    /**
+     * Gets the MD5 of a record.
+     * 
+     * @param record The record number.
+     * 
+     * @return The MD5 as a 32-digit uppercase hex string.
+     */
+    public String getMd5( int record )
+    {
+        int position = HEADER_SIZE + record * MD5_RECORD_SIZE;
+        char[] hex = new char[2 * MD5_SIZE];
+        for( int i = 0; i < MD5_SIZE; i++ )
+        {
+            int b = mBuffer.get( position + i ) & 0xff;
+            hex[2 * i] = HEX_DIGITS[b >>> 4];
+            hex[2 * i + 1] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String( hex );
+    }
+    
+    /**
+     * Gets a field of a record.
+     * 
+     * @param record The record number.
+     * @param field One of the FIELD_ constants.
+     * 
+     * @return The field value, or null if the ini file does not define it.
+     */
+    public String getField( int record, int field )
+    {
+        int offset = mBuffer.getInt( HEADER_SIZE + record * MD5_RECORD_SIZE + MD5_SIZE + 4 * field );
+        if( offset == NO_STRING )
+            return null;
+        
+        int position = mPoolOffset + offset;
+        int length = mBuffer.getShort( position ) & 0xffff;
+        byte[] bytes = new byte[length];
+        for( int i = 0; i < length; i++ )
+            bytes[i] = mBuffer.get( position + 2 + i );
+        return decode( bytes );
+    }
+    
+    /**
+     * Gets the flags of a record.
+     * 
+     * @param record The record number.
+     * 
+     * @return A combination of the FLAG_ constants.
+     */
+    public int getFlags( int record )
+    {
+        return mBuffer.getInt( HEADER_SIZE + record * MD5_RECORD_SIZE + MD5_SIZE + 4 * FIELD_COUNT );
+    }
+    
+    private long getCrc( int crcRecord )
+    {
+        return mBuffer.getLong( mCrcTableOffset + crcRecord * CRC_RECORD_SIZE );
+    }
+    
+    private static boolean isCurrent( ByteBuffer buffer, File iniFile )
+    {
+        return buffer.capacity() >= HEADER_SIZE
+                && buffer.getInt( 0 ) == MAGIC
+                && buffer.getInt( 4 ) == FORMAT_VERSION
+                && buffer.getLong( 8 ) == iniFile.length()
+                && buffer.getLong( 16 ) == iniFile.lastModified()
+                && buffer.getInt( 32 ) == buffer.capacity();
+    }
+    
+    private static ByteBuffer map( File indexFile )
+    {
+        if( !indexFile.exists() )
+            return null;
+        
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream( indexFile );
+            FileChannel channel = stream.getChannel();
+            return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomDatabaseIndex", "Could not map " + indexFile.getAbsolutePath(), e );
+            return null;
+        }
+        finally
+        {
+            // The mapping remains valid after the stream is closed
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private static boolean write( byte[] compiled, File indexFile )
+    {
+        // Write to a temporary file first so that readers never see a partial index. Each writer
+        // gets a file of its own, since the index may be compiled by two threads at once.
+        File tempFile = null;
+        FileOutputStream stream = null;
+        try
+        {
+            tempFile = File.createTempFile( indexFile.getName(), ".tmp", indexFile.getParentFile() );
+            stream = new FileOutputStream( tempFile );
+            stream.write( compiled );
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+            if( tempFile.renameTo( indexFile ) )
+                return true;
+            Log.w( "RomDatabaseIndex", "Could not replace " + indexFile.getAbsolutePath() );
+            return false;
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomDatabaseIndex", "Could not write " + indexFile.getAbsolutePath(), e );
+            return false;
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( tempFile != null )
+                tempFile.delete();
+        }
+    }
+    
+    private static byte[] compile( File iniFile )
+    {
+        ConfigFile config = new ConfigFile( iniFile.getAbsolutePath() );
+        
+        // Collect the sections keyed by valid MD5s, sorted by MD5
+        List<String> md5s = new ArrayList<String>();
+        HashMap<String, ConfigSection> sections = new HashMap<String, ConfigSection>();
+        for( String key : config.keySet() )
+        {
+            if( parseMd5( key ) != null )
+            {
+                String md5 = key.toUpperCase( Locale.US );
+                md5s.add( md5 );
+                sections.put( md5, config.get( key ) );
+            }
+        }
+        String[] sorted = md5s.toArray( new String[md5s.size()] );
+        Arrays.sort( sorted );
+        HashMap<String, Integer> records = new HashMap<String, Integer>();
+        for( int i = 0; i < sorted.length; i++ )
+            records.put( sorted[i], i );
+        
+        // Build the CRC table, keeping entries with equal CRCs in database order
+        long[] crcs = new long[md5s.size()];
+        int[] crcRecords = new int[md5s.size()];
+        int crcCount = 0;
+        for( String md5 : md5s )
+        {
+            long crc = parseCrc( sections.get( md5 ).get( "CRC" ) );
+            if( crc != -1 )
+            {
+                crcs[crcCount] = crc;
+                crcRecords[crcCount] = records.get( md5 );
+                crcCount++;
+            }
+        }
+        Integer[] crcOrder = new Integer[crcCount];
+        for( int i = 0; i < crcCount; i++ )
+            crcOrder[i] = i;
+        final long[] crcKeys = crcs;
+        Arrays.sort( crcOrder, new Comparator<Integer>()
+        {
+            @Override
+            public int compare( Integer lhs, Integer rhs )
+            {
+                int result = compareUnsigned( crcKeys[lhs], crcKeys[rhs] );
+                return result != 0 ? result : lhs.compareTo( rhs );
+            }
+        } );
+        
+        try
+        {
+            ByteArrayOutputStream pool = new ByteArrayOutputStream();
+            HashMap<String, Integer> poolOffsets = new HashMap<String, Integer>();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            
+            out.writeInt( MAGIC );
+            out.writeInt( FORMAT_VERSION );
+            out.writeLong( iniFile.length() );
+            out.writeLong( iniFile.lastModified() );
+            out.writeInt( sorted.length );
+            out.writeInt( crcCount );
+            out.writeInt( 0 ); // Index length, filled in below
+            
+            for( String md5 : sorted )
+            {
+                ConfigSection section = sections.get( md5 );
+                
+                // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
+                // just references another entry.
+                ConfigSection reference = section;
+                String refMd5 = section.get( "RefMD5" );
+                if( !TextUtils.isEmpty( refMd5 ) )
+                    reference = config.get( refMd5 );
+                
+                out.write( parseMd5( md5 ) );
+                out.writeInt( intern( section.get( "CRC" ), pool, poolOffsets ) );
+                out.writeInt( intern( section.get( "GoodName" ), pool, poolOffsets ) );
+                if( reference != null )
+                {
+                    out.writeInt( intern( reference.get( "SaveType" ), pool, poolOffsets ) );
+                    out.writeInt( intern( reference.get( "Status" ), pool, poolOffsets ) );
+                    out.writeInt( intern( reference.get( "Players" ), pool, poolOffsets ) );
+                    out.writeInt( intern( reference.get( "Rumble" ), pool, poolOffsets ) );
+                    out.writeInt( 0 );
+                }
+                else
+                {
+                    for( int i = FIELD_SAVE_TYPE; i < FIELD_COUNT; i++ )
+                        out.writeInt( NO_STRING );
+                    out.writeInt( FLAG_BAD_REFERENCE );
+                }
+            }
+            
+            for( int i = 0; i < crcCount; i++ )
+            {
+                out.writeLong( crcs[crcOrder[i]] );
+                out.writeInt( crcRecords[crcOrder[i]] );
+            }
+            
+            pool.writeTo( out );
+            out.close();
+            byte[] compiled = bytes.toByteArray();
+            ByteBuffer.wrap( compiled ).putInt( 32, compiled.length );
+            return compiled;
+        }
+        catch( IOException e )
+        {
+            // Never happens with in-memory streams
+            throw new RuntimeException( e );
+        }
+    }
+    
+    private static int intern( String value, ByteArrayOutputStream pool, HashMap<String, Integer> poolOffsets )
+            throws IOException
+    {
+        if( value == null )
+            return NO_STRING;
+        
+        Integer offset = poolOffsets.get( value );
+        if( offset == null )
+        {
+            byte[] utf8 = value.getBytes( "UTF-8" );
+            int length = Math.min( utf8.length, 0xffff );
+            offset = pool.size();
+            pool.write( length >> 8 );
+            pool.write( length );
+            pool.write( utf8, 0, length );
+            poolOffsets.put( value, offset );
+        }
+        return offset;
+    }
+    
+    private static String decode( byte[] utf8 )
+    {
+        try
+        {
+            return new String( utf8, "UTF-8" );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            // UTF-8 is always supported
+            throw new RuntimeException( e );
+        }
+    }
+    
+    private static byte[] parseMd5( String md5 )
+    {
+        if( md5 == null || md5.length() != 2 * MD5_SIZE )
+            return null;
+        
+        byte[] result = new byte[MD5_SIZE];
+        for( int i = 0; i < MD5_SIZE; i++ )
+        {
+            int high = Character.digit( md5.charAt( 2 * i ), 16 );
+            int low = Character.digit( md5.charAt( 2 * i + 1 ), 16 );
+            if( high < 0 || low < 0 )
+                return null;
+            result[i] = (byte) ( ( high << 4 ) | low );
+        }
+        return result;
+    }
+    
+    /**
+     * Parses a CRC formatted as "XXXXXXXX XXXXXXXX".
+     * 
+     * @return Both CRC words packed in a long, or -1 if the CRC is malformed.
+     */
+    private static long parseCrc( String crc )
+    {
+        if( crc == null || crc.length() != 17 || crc.charAt( 8 ) != ' ' )
+            return -1;
+        
+        long result = 0;
+        for( int i = 0; i < crc.length(); i++ )
+        {
+            if( i == 8 )
+                continue;
+            int digit = Character.digit( crc.charAt( i ), 16 );
+            if( digit < 0 )
+                return -1;
+            result = ( result << 4 ) | digit;
+        }
+        
+        // FFFFFFFF FFFFFFFF would be mistaken for a malformed CRC; no real ROM uses it
+        return result;
+    }
+    
+    private static int compareUnsigned( long lhs, long rhs )
+    {
+        lhs ^= Long.MIN_VALUE;
+        rhs ^= Long.MIN_VALUE;
+        return lhs < rhs ? -1 : ( lhs == rhs ? 0 : 1 );
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The RomFileWalker class walks a directory tree iteratively and hands out candidate ROM files one
+ * at a time, so that they can be examined while the walk is still going.
+ * <p>
+ * The files of a directory are handed out before any of its subdirectories are entered, so shallow
+ * results arrive first. Hidden directories and well-known system directories are skipped. Symbolic
+ * links are followed, but each directory is entered at most once, so link cycles end the descent.
+ * Files can be filtered by extension before they are ever opened.
+ * <p>
+ * A walker is not thread-safe; a single thread should call {@link #next()}.
+ */
+public class RomFileWalker
+{
+    /** Extensions of files that are never ROMs, such as media and documents. */
+    public static final Set<String> MEDIA_EXTENSIONS = Collections.unmodifiableSet( new HashSet<String>(
+            Arrays.asList( "3gp", "aac", "apk", "avi", "bmp", "flac", "gif", "htm", "html", "jpeg",
+                    "jpg", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "mpg", "ogg", "pdf", "png",
+                    "txt", "wav", "webm", "webp", "wma", "wmv" ) ) );
+    
+    /** Canonical paths of the kernel's directories, which hold no user files. */
+    private static final Set<String> SYSTEM_PATHS = new HashSet<String>( Arrays.asList( "/dev",
+            "/proc", "/sys" ) );
+    
+    /** Name of the directory where a volume's check puts recovered fragments. */
+    private static final String LOST_DIR = "LOST.DIR";
+    
+    /** Canonical paths of the recovered fragments at the top of each storage volume. */
+    private static final Pattern LOST_DIR_PATH = Pattern.compile(
+            "/(storage|mnt)(/emulated|/media_rw)?/[^/]+/LOST\\.DIR" );
+    
+    private final File mRoot;
+    private final Set<String> mIncludedExtensions;
+    private final Set<String> mExcludedExtensions;
+    
+    /** Directories waiting to be listed. */
+    private final ArrayList<File> mDirectories = new ArrayList<File>();
+    
+    /** Canonical paths of every directory entered so far. */
+    private final HashSet<String> mVisited = new HashSet<String>();
+    
+    /** The listing of the directory currently being walked. */
+    private File[] mListing = null;
+    private int mListingIndex = 0;
+    private boolean mStarted = false;
+    
+    /**
+     * Creates a walker.
+     * 
+     * @param root The directory to walk, or a single file.
+     * @param includedExtensions Lowercase extensions of the files to hand out, or null for any
+     *            extension.
+     * @param excludedExtensions Lowercase extensions of the files to skip, or null to skip none.
+     */
+    public RomFileWalker( File root, Set<String> includedExtensions, Set<String> excludedExtensions )
+    {
+        if( root == null )
+            throw new IllegalArgumentException( "Root cannot be null" );
+        
+        mRoot = root;
+        mIncludedExtensions = includedExtensions;
+        mExcludedExtensions = excludedExtensions;
+    }
+    
+    /**
+     * Finds the next candidate file.
+     * 
+     * @return The next file, or null if the walk is complete.
+     */
+    public File next()
+    {
+        if( !mStarted )
+        {
+            mStarted = true;
+            
+            // A single file is always handed out, whatever its extension
+            if( !mRoot.isDirectory() )
+                return mRoot.exists() ? mRoot : null;
+            enter( mRoot );
+        }
+        
+        while( true )
+        {
+            if( mListing != null && mListingIndex < mListing.length )
+            {
+                File file = mListing[mListingIndex++];
+                if( file.isDirectory() )
+                {
+                    if( !isSkipped( file ) )
+                        mDirectories.add( file );
+                }
+                else if( isCandidate( file, mIncludedExtensions, mExcludedExtensions ) )
+                {
+                    return file;
+                }
+            }
+            else if( !mDirectories.isEmpty() )
+            {
+                enter( mDirectories.remove( mDirectories.size() - 1 ) );
+            }
+            else
+            {
+                mListing = null;
+                return null;
+            }
+        }
+    }
+    
+    private void enter( File directory )
+    {
+        mListing = null;
+        mListingIndex = 0;
+        
+        // Symbolic links may lead back to a directory that was already walked
+        String canonicalPath;
+        try
+        {
+            canonicalPath = directory.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return;
+        }
+        if( mVisited.add( canonicalPath ) )
+            mListing = directory.listFiles();
+    }
+    
+    /**
+     * Checks whether a directory is skipped by the walk. System directories are matched by their
+     * location, so that a user's own folder with the same name is still walked.
+     */
+    public static boolean isSkipped( File directory )
+    {
+        String name = directory.getName();
+        if( name.startsWith( "." ) )
+            return true;
+        
+        // Only a few names are worth the cost of resolving the path
+        boolean lostDir = LOST_DIR.equals( name );
+        if( !lostDir && !SYSTEM_PATHS.contains( "/" + name ) )
+            return false;
+        
+        String canonicalPath;
+        try
+        {
+            canonicalPath = directory.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return false;
+        }
+        if( lostDir )
+            return LOST_DIR_PATH.matcher( canonicalPath ).matches();
+        return SYSTEM_PATHS.contains( canonicalPath );
+    }
+    
+    /**
+     * Checks whether a file would be handed out by a walk with the given filters.
+     */
+    public static boolean isCandidate( File file, Set<String> includedExtensions,
+            Set<String> excludedExtensions )
+    {
+        String name = file.getName();
+        if( name.startsWith( "." ) )
+            return false;
+        
+        int dot = name.lastIndexOf( '.' );
+        String extension = dot < 0 ? "" : name.substring( dot + 1 ).toLowerCase( Locale.US );
+        if( includedExtensions != null && !includedExtensions.contains( extension ) )
+            return false;
+        if( excludedExtensions != null && excludedExtensions.contains( extension ) )
+            return false;
+        return true;
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The RomHeaderReader class reads ROM headers into a single reusable buffer, for code that examines
+ * many files in a row, such as the ROM scan. Unlike {@link RomHeader}, it never copies or
+ * byte-swaps the header: the format is classified from the first word, bytes are read through the
+ * swap for that format, and strings are only created when they are asked for. Files that turn out
+ * not to be ROMs cost nothing beyond the read itself.
+ * <p>
+ * The getters describe the most recent header read, and are only meaningful if it was a ROM. A
+ * reader is not thread-safe; give each thread its own.
+ */
+public final class RomHeaderReader
+{
+    /** The number of bytes in a ROM header. */
+    public static final int HEADER_SIZE = 0x40;
+    
+    public static final int FORMAT_INVALID = 0;
+    public static final int FORMAT_Z64 = 1; // Big-endian, native
+    public static final int FORMAT_V64 = 2; // Byte-swapped
+    public static final int FORMAT_N64 = 3; // Word-swapped (little-endian)
+    public static final int FORMAT_ZIP = 4;
+    
+    private static final int MAGIC_Z64 = 0x80371240;
+    private static final int MAGIC_V64 = 0x37804012;
+    private static final int MAGIC_N64 = 0x40123780;
+    private static final int MAGIC_ZIP = 0x504b0304;
+    
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    
+    private final ByteBuffer mBuffer;
+    private int mFormat = FORMAT_INVALID;
+    
+    /** XOR applied to a header offset to find the byte in the buffer. */
+    private int mSwizzle = 0;
+    
+    // Created on first access
+    private String mCrc = null;
+    private String mName = null;
+    
+    /**
+     * Creates a reader with its own buffer.
+     */
+    public RomHeaderReader()
+    {
+        this( ByteBuffer.allocate( HEADER_SIZE ) );
+    }
+    
+    /**
+     * Creates a reader over a caller-supplied buffer, which may be direct.
+     * 
+     * @param buffer A buffer of at least {@link #HEADER_SIZE} bytes.
+     */
+    public RomHeaderReader( ByteBuffer buffer )
+    {
+        if( buffer == null || buffer.capacity() < HEADER_SIZE )
+            throw new IllegalArgumentException( "Buffer must hold at least " + HEADER_SIZE + " bytes" );
+        
+        mBuffer = buffer;
+    }
+    
+    /**
+     * Classifies a file from the first word of its header.
+     * 
+     * @param firstWord The first four bytes of the file, big-endian.
+     * 
+     * @return One of the FORMAT_ constants.
+     */
+    public static int classify( int firstWord )
+    {
+        switch( firstWord )
+        {
+            case MAGIC_Z64:
+                return FORMAT_Z64;
+            case MAGIC_V64:
+                return FORMAT_V64;
+            case MAGIC_N64:
+                return FORMAT_N64;
+            case MAGIC_ZIP:
+                return FORMAT_ZIP;
+            default:
+                return FORMAT_INVALID;
+        }
+    }
+    
+    /**
+     * Reads the header of a file.
+     * 
+     * @return The format of the file, or FORMAT_INVALID if it could not be read.
+     */
+    public int read( File file )
+    {
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream( file );
+            FileChannel channel = in.getChannel();
+            mBuffer.clear();
+            mBuffer.limit( HEADER_SIZE );
+            while( mBuffer.hasRemaining() && channel.read( mBuffer ) >= 0 )
+            {
+            }
+            return parse();
+        }
+        catch( IOException e )
+        {
+            return reset();
+        }
+        finally
+        {
+            if( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads a header from a stream, such as an inflated zip entry. Exactly {@link #HEADER_SIZE}
+     * bytes are consumed unless the stream ends first; use mark and reset to keep them.
+     * 
+     * @return The format of the stream, or FORMAT_INVALID if it could not be read.
+     */
+    public int read( InputStream in )
+    {
+        try
+        {
+            mBuffer.clear();
+            mBuffer.limit( HEADER_SIZE );
+            if( mBuffer.hasArray() )
+            {
+                byte[] array = mBuffer.array();
+                int offset = mBuffer.arrayOffset();
+                int count = 0;
+                int n;
+                while( count < HEADER_SIZE && ( n = in.read( array, offset + count, HEADER_SIZE - count ) ) > 0 )
+                    count += n;
+                mBuffer.position( count );
+            }
+            else
+            {
+                int b;
+                while( mBuffer.hasRemaining() && ( b = in.read() ) >= 0 )
+                    mBuffer.put( (byte) b );
+            }
+            return parse();
+        }
+        catch( IOException e )
+        {
+            return reset();
+        }
+    }
+    
+    /**
+     * Parses a header that the caller wrote into the buffer, from index 0 up to its position.
+     * 
+     * @return The format of the header.
+     */
+    public int parse()
+    {
+        mCrc = null;
+        mName = null;
+        if( mBuffer.position() < HEADER_SIZE )
+        {
+            // Too short to be a ROM, but a short zip file is still recognizable
+            mFormat = mBuffer.position() >= 4 && getRawInt( 0 ) == MAGIC_ZIP ? FORMAT_ZIP
+                    : FORMAT_INVALID;
+            mSwizzle = 0;
+            return mFormat;
+        }
+        
+        mFormat = classify( getRawInt( 0 ) );
+        mSwizzle = mFormat == FORMAT_V64 ? 1 : mFormat == FORMAT_N64 ? 3 : 0;
+        return mFormat;
+    }
+    
+    public int getFormat()
+    {
+        return mFormat;
+    }
+    
+    /** Returns true if the last header read was a ROM, in any byte order. */
+    public boolean isValid()
+    {
+        return mFormat == FORMAT_Z64 || mFormat == FORMAT_V64 || mFormat == FORMAT_N64;
+    }
+    
+    public boolean isZip()
+    {
+        return mFormat == FORMAT_ZIP;
+    }
+    
+    public int getCrc1()
+    {
+        return getInt( 0x10 );
+    }
+    
+    public int getCrc2()
+    {
+        return getInt( 0x14 );
+    }
+    
+    public byte getCountryCode()
+    {
+        return getByte( 0x3E );
+    }
+    
+    /**
+     * Gets the CRCs, formatted as in {@link RomHeader#crc}.
+     */
+    public String getCrc()
+    {
+        if( mCrc == null )
+        {
+            char[] chars = new char[17];
+            appendHex( chars, 0, getCrc1() );
+            chars[8] = ' ';
+            appendHex( chars, 9, getCrc2() );
+            mCrc = new String( chars );
+        }
+        return mCrc;
+    }
+    
+    /**
+     * Gets the internal name of the ROM, as in {@link RomHeader#name}.
+     */
+    public String getName()
+    {
+        if( mName == null )
+        {
+            byte[] bytes = new byte[0x34 - 0x20];
+            for( int i = 0; i < bytes.length; i++ )
+                bytes[i] = getByte( 0x20 + i );
+            mName = new String( bytes ).trim();
+        }
+        return mName;
+    }
+    
+    private int reset()
+    {
+        mBuffer.clear();
+        mBuffer.limit( 0 );
+        mFormat = FORMAT_INVALID;
+        mSwizzle = 0;
+        mCrc = null;
+        mName = null;
+        return mFormat;
+    }
+    
+    private byte getByte( int offset )
+    {
+        return mBuffer.get( offset ^ mSwizzle );
+    }
+    
+    private int getInt( int offset )
+    {
+        // @formatter:off
+        return  (getByte( offset + 3 ) & 0xFF)       |
+                (getByte( offset + 2 ) & 0xFF) << 8  |
+                (getByte( offset + 1 ) & 0xFF) << 16 |
+                (getByte( offset + 0 ) & 0xFF) << 24;
+        // @formatter:on
+    }
+    
+    private int getRawInt( int offset )
+    {
+        // Independent of the buffer's byte order, which the caller may have changed
+        // @formatter:off
+        return  (mBuffer.get( offset + 3 ) & 0xFF)       |
+                (mBuffer.get( offset + 2 ) & 0xFF) << 8  |
+                (mBuffer.get( offset + 1 ) & 0xFF) << 16 |
+                (mBuffer.get( offset + 0 ) & 0xFF) << 24;
+        // @formatter:on
+    }
+    
+    private static void appendHex( char[] chars, int start, int value )
+    {
+        for( int i = 7; i >= 0; i-- )
+        {
+            chars[start + i] = HEX_DIGITS[value & 0xF];
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,549 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+import android.text.TextUtils;
+
+/**
+ * The RomSearchIndex class filters the gallery as the user types. ROM names are split into words,
+ * and every word is added to a prefix trie. A search term matches the ROMs with a word that starts
+ * with it. If none do, the term is treated as a typo: the distinct words sharing a trigram with it
+ * are looked up in a trigram table, and those within one or two edits of it (e.g. "ocarnia" for
+ * "ocarina") match instead. Every term of a query must match.
+ * <p>
+ * Queries may also contain filters: {@code country:U} keeps the ROMs whose region tag in the good
+ * name (e.g. "(U)" or "(JU)") contains the given letters, and {@code players:2} keeps the ROMs that
+ * support at least that many players.
+ * <p>
+ * ROMs can be added or replaced at any time, so the index can follow a running scan. A replaced
+ * ROM gets a new id and its old postings are skipped until enough of them pile up to rebuild.
+ * <p>
+ * The index is not thread-safe; use it from one thread, normally the UI thread.
+ */
+public class RomSearchIndex
+{
+    private static final String FILTER_COUNTRY = "country:";
+    private static final String FILTER_PLAYERS = "players:";
+    
+    /** Number of distinct trigram symbols: a padding symbol, a-z, and 0-9. */
+    private static final int SYMBOL_COUNT = 37;
+    
+    private final Node mRoot = new Node();
+    
+    /** Distinct words, their ROMs, and the words containing each trigram. */
+    private final ArrayList<String> mVocabulary = new ArrayList<String>();
+    private final HashMap<String, IntList> mPostings = new HashMap<String, IntList>();
+    private final IntList[] mTrigrams = new IntList[SYMBOL_COUNT * SYMBOL_COUNT * SYMBOL_COUNT];
+    
+    /** Per-id state; ids only ever increase, so every posting list stays sorted. */
+    private final ArrayList<String> mMd5s = new ArrayList<String>();
+    private final ArrayList<String[]> mWords = new ArrayList<String[]>();
+    private final ArrayList<String> mCountries = new ArrayList<String>();
+    private final IntList mPlayers = new IntList();
+    private final BitSet mDead = new BitSet();
+    
+    /** Live ids mapped by MD5. */
+    private final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+    
+    /**
+     * The Result class holds the ROMs matching a query.
+     */
+    public class Result
+    {
+        private final BitSet mMatches;
+        
+        private Result( BitSet matches )
+        {
+            mMatches = matches;
+        }
+        
+        public boolean contains( String md5 )
+        {
+            Integer id = mIds.get( md5 );
+            return id != null && mMatches.get( id );
+        }
+        
+        public int size()
+        {
+            return mMatches.cardinality();
+        }
+    }
+    
+    /**
+     * Adds a ROM, or replaces the ROM with the same MD5.
+     * 
+     * @param md5 The MD5 of the ROM.
+     * @param goodName The good name of the ROM, or null if unknown.
+     * @param baseName The base name of the ROM, or null if unknown.
+     * @param players The number of players the ROM supports, or 0 if unknown.
+     */
+    public void put( String md5, String goodName, String baseName, int players )
+    {
+        remove( md5 );
+        
+        // The base name is normally a prefix of the good name, so it rarely adds words
+        ArrayList<String> words = new ArrayList<String>();
+        addWords( words, goodName );
+        addWords( words, baseName );
+        add( md5, words.toArray( new String[words.size()] ), getCountry( goodName ), players );
+    }
+    
+    /**
+     * Removes a ROM, if it is in the index.
+     */
+    public void remove( String md5 )
+    {
+        Integer id = mIds.remove( md5 );
+        if( id == null )
+            return;
+        
+        mDead.set( id );
+        if( mDead.cardinality() > mIds.size() + 64 )
+            rebuild();
+    }
+    
+    public int size()
+    {
+        return mIds.size();
+    }
+    
+    /**
+     * Finds the ROMs matching a query.
+     * 
+     * @param query Search terms and filters, separated by spaces.
+     * 
+     * @return The matching ROMs. An empty query matches every ROM.
+     */
+    public Result search( String query )
+    {
+        String country = null;
+        int minPlayers = 0;
+        BitSet matches = null;
+        for( String term : query.toLowerCase( Locale.US ).split( "\\s+" ) )
+        {
+            if( term.startsWith( FILTER_COUNTRY ) )
+            {
+                country = term.substring( FILTER_COUNTRY.length() ).toUpperCase( Locale.US );
+                continue;
+            }
+            if( term.startsWith( FILTER_PLAYERS ) )
+            {
+                minPlayers = SafeMethods.toInt( term.substring( FILTER_PLAYERS.length() ), 0 );
+                continue;
+            }
+            
+            // Punctuation is not indexed, so "zelda:" or "f-zero" search like the words in them
+            ArrayList<String> words = new ArrayList<String>();
+            addWords( words, term );
+            for( String word : words )
+            {
+                BitSet wordMatches = findPrefix( word );
+                if( wordMatches.isEmpty() )
+                    wordMatches = findSimilar( word );
+                if( matches == null )
+                    matches = wordMatches;
+                else
+                    matches.and( wordMatches );
+            }
+        }
+        
+        if( matches == null )
+        {
+            matches = new BitSet();
+            matches.set( 0, mMd5s.size() );
+        }
+        matches.andNot( mDead );
+        
+        // Apply the filters to the few ROMs that are left
+        if( !TextUtils.isEmpty( country ) || minPlayers > 0 )
+        {
+            for( int id = matches.nextSetBit( 0 ); id >= 0; id = matches.nextSetBit( id + 1 ) )
+            {
+                String romCountry = mCountries.get( id );
+                if( ( !TextUtils.isEmpty( country ) && ( romCountry == null || !containsAll(
+                        romCountry, country ) ) ) || mPlayers.get( id ) < minPlayers )
+                    matches.clear( id );
+            }
+        }
+        return new Result( matches );
+    }
+    
+    private void add( String md5, String[] words, String country, int players )
+    {
+        int id = mMd5s.size();
+        mMd5s.add( md5 );
+        mWords.add( words );
+        mCountries.add( country );
+        mPlayers.add( players );
+        mIds.put( md5, id );
+        
+        for( String word : words )
+        {
+            // Every node along the word's path lists the ROM, so a prefix lookup is one walk
+            Node node = mRoot;
+            for( int i = 0; i < word.length(); i++ )
+            {
+                node = node.getOrAddChild( word.charAt( i ) );
+                node.ids.addUnique( id );
+            }
+            
+            IntList postings = mPostings.get( word );
+            if( postings == null )
+            {
+                int wordId = mVocabulary.size();
+                mVocabulary.add( word );
+                postings = new IntList();
+                mPostings.put( word, postings );
+                for( int trigram : getTrigrams( word ) )
+                {
+                    if( mTrigrams[trigram] == null )
+                        mTrigrams[trigram] = new IntList();
+                    mTrigrams[trigram].addUnique( wordId );
+                }
+            }
+            postings.addUnique( id );
+        }
+    }
+    
+    private void rebuild()
+    {
+        ArrayList<String> md5s = new ArrayList<String>( mMd5s );
+        ArrayList<String[]> words = new ArrayList<String[]>( mWords );
+        ArrayList<String> countries = new ArrayList<String>( mCountries );
+        IntList players = mPlayers.copy();
+        BitSet dead = (BitSet) mDead.clone();
+        
+        mRoot.clear();
+        mVocabulary.clear();
+        mPostings.clear();
+        for( int i = 0; i < mTrigrams.length; i++ )
+            mTrigrams[i] = null;
+        mMd5s.clear();
+        mWords.clear();
+        mCountries.clear();
+        mPlayers.clear();
+        mDead.clear();
+        mIds.clear();
+        
+        for( int id = 0; id < md5s.size(); id++ )
+        {
+            if( !dead.get( id ) )
+                add( md5s.get( id ), words.get( id ), countries.get( id ), players.get( id ) );
+        }
+    }
+    
+    private BitSet findPrefix( String prefix )
+    {
+        BitSet matches = new BitSet();
+        Node node = mRoot;
+        for( int i = 0; i < prefix.length() && node != null; i++ )
+            node = node.getChild( prefix.charAt( i ) );
+        if( node != null )
+            node.ids.addTo( matches );
+        return matches;
+    }
+    
+    private BitSet findSimilar( String term )
+    {
+        // Short terms are within an edit or two of nearly everything
+        BitSet matches = new BitSet();
+        if( term.length() < 3 )
+            return matches;
+        int maxEdits = term.length() < 6 ? 1 : 2;
+        
+        // Only words sharing a trigram with the term are worth comparing
+        boolean[] compared = new boolean[mVocabulary.size()];
+        for( int trigram : getTrigrams( term ) )
+        {
+            IntList wordIds = mTrigrams[trigram];
+            if( wordIds == null )
+                continue;
+            for( int i = 0; i < wordIds.size(); i++ )
+            {
+                int wordId = wordIds.get( i );
+                if( compared[wordId] )
+                    continue;
+                compared[wordId] = true;
+                
+                String word = mVocabulary.get( wordId );
+                if( word.length() >= term.length() - maxEdits
+                        && getPrefixDistance( term, word, maxEdits ) <= maxEdits )
+                    mPostings.get( word ).addTo( matches );
+            }
+        }
+        return matches;
+    }
+    
+    /**
+     * Gets the number of edits (insertions, deletions, substitutions, and swaps of neighbors) that
+     * turn a term into some prefix of a word, so that a term can match while it is being typed.
+     * 
+     * @return The distance, or a number larger than maxEdits if it is larger.
+     */
+    private static int getPrefixDistance( String term, String word, int maxEdits )
+    {
+        int columns = Math.min( word.length(), term.length() + maxEdits ) + 1;
+        int[] previous2 = new int[columns];
+        int[] previous = new int[columns];
+        int[] current = new int[columns];
+        for( int j = 0; j < columns; j++ )
+            previous[j] = j;
+        
+        for( int i = 1; i <= term.length(); i++ )
+        {
+            current[0] = i;
+            int rowMin = i;
+            for( int j = 1; j < columns; j++ )
+            {
+                char t = term.charAt( i - 1 );
+                char w = word.charAt( j - 1 );
+                int distance = Math.min( previous[j] + 1, current[j - 1] + 1 );
+                distance = Math.min( distance, previous[j - 1] + ( t == w ? 0 : 1 ) );
+                if( i > 1 && j > 1 && t == word.charAt( j - 2 ) && term.charAt( i - 2 ) == w )
+                    distance = Math.min( distance, previous2[j - 2] + 1 );
+                current[j] = distance;
+                rowMin = Math.min( rowMin, distance );
+            }
+            if( rowMin > maxEdits )
+                return rowMin;
+            
+            int[] recycled = previous2;
+            previous2 = previous;
+            previous = current;
+            current = recycled;
+        }
+        
+        int distance = Integer.MAX_VALUE;
+        for( int j = 0; j < columns; j++ )
+            distance = Math.min( distance, previous[j] );
+        return distance;
+    }
+    
+    private static void addWords( List<String> words, String text )
+    {
+        if( TextUtils.isEmpty( text ) )
+            return;
+        
+        // Words are runs of letters and digits, folded to lower case
+        String lower = text.toLowerCase( Locale.US );
+        int start = -1;
+        for( int i = 0; i <= lower.length(); i++ )
+        {
+            boolean inWord = i < lower.length() && Character.isLetterOrDigit( lower.charAt( i ) );
+            if( inWord && start < 0 )
+            {
+                start = i;
+            }
+            else if( !inWord && start >= 0 )
+            {
+                String word = lower.substring( start, i );
+                if( !words.contains( word ) )
+                    words.add( word );
+                start = -1;
+            }
+        }
+    }
+    
+    private static int[] getTrigrams( String word )
+    {
+        // Pad both ends so that the first and last letters weigh as much as the middle ones
+        int[] trigrams = new int[word.length()];
+        for( int i = 0; i < trigrams.length; i++ )
+        {
+            int a = i == 0 ? 0 : getSymbol( word.charAt( i - 1 ) );
+            int b = getSymbol( word.charAt( i ) );
+            int c = i + 1 < word.length() ? getSymbol( word.charAt( i + 1 ) ) : 0;
+            trigrams[i] = ( a * SYMBOL_COUNT + b ) * SYMBOL_COUNT + c;
+        }
+        return trigrams;
+    }
+    
+    private static int getSymbol( char c )
+    {
+        if( c >= 'a' && c <= 'z' )
+            return 1 + c - 'a';
+        else if( c >= '0' && c <= '9' )
+            return 27 + c - '0';
+        else
+            return 0;
+    }
+    
+    private static String getCountry( String goodName )
+    {
+        // Good names tag the region in parentheses, e.g. "Super Mario 64 (U) [!]"
+        if( TextUtils.isEmpty( goodName ) )
+            return null;
+        int start = goodName.indexOf( '(' );
+        while( start >= 0 )
+        {
+            int end = goodName.indexOf( ')', start );
+            if( end < 0 )
+                break;
+            String tag = goodName.substring( start + 1, end );
+            if( tag.length() > 0 && tag.length() <= 3 && isUpperCase( tag ) )
+                return tag;
+            start = goodName.indexOf( '(', end );
+        }
+        return null;
+    }
+    
+    private static boolean isUpperCase( String text )
+    {
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( c < 'A' || c > 'Z' )
+                return false;
+        }
+        return true;
+    }
+    
+    private static boolean containsAll( String text, String letters )
+    {
+        for( int i = 0; i < letters.length(); i++ )
+        {
+            if( text.indexOf( letters.charAt( i ) ) < 0 )
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * A node of the prefix trie. Children are kept in small parallel arrays, since most nodes have
+     * one or two of them.
+     */
+    private static class Node
+    {
+        public final IntList ids = new IntList();
+        private char[] mKeys = null;
+        private Node[] mChildren = null;
+        private int mChildCount = 0;
+        
+        public Node getChild( char key )
+        {
+            for( int i = 0; i < mChildCount; i++ )
+            {
+                if( mKeys[i] == key )
+                    return mChildren[i];
+            }
+            return null;
+        }
+        
+        public Node getOrAddChild( char key )
+        {
+            Node child = getChild( key );
+            if( child == null )
+            {
+                if( mKeys == null )
+                {
+                    mKeys = new char[2];
+                    mChildren = new Node[2];
+                }
+                else if( mChildCount == mKeys.length )
+                {
+                    char[] keys = new char[mChildCount * 2];
+                    Node[] children = new Node[mChildCount * 2];
+                    System.arraycopy( mKeys, 0, keys, 0, mChildCount );
+                    System.arraycopy( mChildren, 0, children, 0, mChildCount );
+                    mKeys = keys;
+                    mChildren = children;
+                }
+                child = new Node();
+                mKeys[mChildCount] = key;
+                mChildren[mChildCount] = child;
+                mChildCount++;
+            }
+            return child;
+        }
+        
+        public void clear()
+        {
+            ids.clear();
+            mKeys = null;
+            mChildren = null;
+            mChildCount = 0;
+        }
+    }
+    
+    /**
+     * A growable list of ints, without the boxing of a List&lt;Integer&gt;.
+     */
+    private static class IntList
+    {
+        private int[] mValues = new int[4];
+        private int mSize = 0;
+        
+        public int size()
+        {
+            return mSize;
+        }
+        
+        public int get( int index )
+        {
+            return mValues[index];
+        }
+        
+        public void add( int value )
+        {
+            if( mSize == mValues.length )
+            {
+                int[] values = new int[mSize * 2];
+                System.arraycopy( mValues, 0, values, 0, mSize );
+                mValues = values;
+            }
+            mValues[mSize++] = value;
+        }
+        
+        /** Adds a value unless it is already last, which is enough to keep sorted lists unique. */
+        public void addUnique( int value )
+        {
+            if( mSize == 0 || mValues[mSize - 1] != value )
+                add( value );
+        }
+        
+        public void addTo( BitSet bits )
+        {
+            for( int i = 0; i < mSize; i++ )
+                bits.set( mValues[i] );
+        }
+        
+        public IntList copy()
+        {
+            IntList copy = new IntList();
+            copy.mValues = new int[Math.max( 4, mSize )];
+            System.arraycopy( mValues, 0, copy.mValues, 0, mSize );
+            copy.mSize = mSize;
+            return copy;
+        }
+        
+        public void clear()
+        {
+            mValues = new int[4];
+            mSize = 0;
+        }
+    }
+}
@@ -82,6 +82,31 @@ public final class SafeMethods
         return fail;
     }
 
+    /**
+     * Safely converts a string into a long.
+     * 
+     * @param val String containing the number to convert.
+     * @param fail Value to use if unable to convert val to a long.
+     * 
+     * @return The converted long, or the specified value if unsuccessful.
+     */
+    public static long toLong( String val, long fail )
+    {
+        if( TextUtils.isEmpty( val ) )
+            return fail; // Not a number
+        
+        try
+        {
+            // Convert to long
+            return Long.parseLong( val );
+        }
+        catch( NumberFormatException nfe )
+        {
+        }
+        // Conversion failed
+        return fail;
+    }
+    
     /**
      * Safely converts a string into a float.
      * 
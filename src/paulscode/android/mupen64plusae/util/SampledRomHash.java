@@ -0,0 +1,197 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.util.Log;
+
+/**
+ * The SampledRomHash class computes a cheap fingerprint of a ROM image from a fixed number of
+ * blocks spread evenly across the file, hashed with xxHash32. It reads a few kilobytes no matter
+ * how large the ROM is, so it can be computed for every ROM in a library.
+ * <p>
+ * Blocks are converted to native (z64) byte order before they are hashed, so the same dump in
+ * different byte orders gets the same hash. Equal hashes only make a match likely; a full MD5 is
+ * needed to confirm it.
+ */
+public final class SampledRomHash
+{
+    /** Number of blocks sampled from each ROM. */
+    private static final int BLOCK_COUNT = 16;
+    
+    /** Size of each sampled block, in bytes; a multiple of four so that word swaps line up. */
+    private static final int BLOCK_SIZE = 4096;
+    
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+    
+    /**
+     * Computes the sampled hash of a ROM file.
+     * 
+     * @param file The ROM file.
+     * @param format The byte order of the ROM, as classified by {@link RomHeaderReader}.
+     * 
+     * @return The hash as eight hex digits, or null if the file could not be read.
+     */
+    public static String compute( File file, int format )
+    {
+        RandomAccessFile in = null;
+        try
+        {
+            in = new RandomAccessFile( file, "r" );
+            long length = in.length();
+            byte[] block = new byte[BLOCK_SIZE];
+            
+            // Spread the blocks from the start of the file to the end, on word boundaries
+            int hash = (int) ( length ^ ( length >>> 32 ) );
+            long span = Math.max( 0, length - BLOCK_SIZE );
+            for( int i = 0; i < BLOCK_COUNT; i++ )
+            {
+                long offset = ( span * i / ( BLOCK_COUNT - 1 ) ) & ~3L;
+                int count = (int) Math.min( BLOCK_SIZE, length - offset ) & ~3;
+                in.seek( offset );
+                in.readFully( block, 0, count );
+                normalize( block, count, format );
+                hash = xxHash32( block, 0, count, hash );
+            }
+            return String.format( "%08X", hash );
+        }
+        catch( IOException e )
+        {
+            Log.w( "SampledRomHash", "Could not sample " + file.getAbsolutePath() );
+            return null;
+        }
+        finally
+        {
+            if( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private static void normalize( byte[] block, int count, int format )
+    {
+        if( format == RomHeaderReader.FORMAT_V64 )
+        {
+            for( int i = 0; i < count; i += 2 )
+            {
+                byte temp = block[i];
+                block[i] = block[i + 1];
+                block[i + 1] = temp;
+            }
+        }
+        else if( format == RomHeaderReader.FORMAT_N64 )
+        {
+            for( int i = 0; i < count; i += 4 )
+            {
+                byte temp = block[i];
+                block[i] = block[i + 3];
+                block[i + 3] = temp;
+                temp = block[i + 1];
+                block[i + 1] = block[i + 2];
+                block[i + 2] = temp;
+            }
+        }
+    }
+    
+    /**
+     * Computes the 32-bit xxHash of a range of bytes.
+     */
+    static int xxHash32( byte[] data, int offset, int length, int seed )
+    {
+        int end = offset + length;
+        int position = offset;
+        int hash;
+        if( length >= 16 )
+        {
+            int v1 = seed + PRIME1 + PRIME2;
+            int v2 = seed + PRIME2;
+            int v3 = seed;
+            int v4 = seed - PRIME1;
+            int limit = end - 16;
+            while( position <= limit )
+            {
+                v1 = round( v1, readIntLE( data, position ) );
+                v2 = round( v2, readIntLE( data, position + 4 ) );
+                v3 = round( v3, readIntLE( data, position + 8 ) );
+                v4 = round( v4, readIntLE( data, position + 12 ) );
+                position += 16;
+            }
+            hash = Integer.rotateLeft( v1, 1 ) + Integer.rotateLeft( v2, 7 )
+                    + Integer.rotateLeft( v3, 12 ) + Integer.rotateLeft( v4, 18 );
+        }
+        else
+        {
+            hash = seed + PRIME5;
+        }
+        
+        hash += length;
+        while( position + 4 <= end )
+        {
+            hash += readIntLE( data, position ) * PRIME3;
+            hash = Integer.rotateLeft( hash, 17 ) * PRIME4;
+            position += 4;
+        }
+        while( position < end )
+        {
+            hash += ( data[position] & 0xFF ) * PRIME5;
+            hash = Integer.rotateLeft( hash, 11 ) * PRIME1;
+            position++;
+        }
+        
+        hash ^= hash >>> 15;
+        hash *= PRIME2;
+        hash ^= hash >>> 13;
+        hash *= PRIME3;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+    
+    private static int round( int accumulator, int input )
+    {
+        accumulator += input * PRIME2;
+        accumulator = Integer.rotateLeft( accumulator, 13 );
+        return accumulator * PRIME1;
+    }
+    
+    private static int readIntLE( byte[] data, int position )
+    {
+        // @formatter:off
+        return  (data[position]     & 0xFF)       |
+                (data[position + 1] & 0xFF) << 8  |
+                (data[position + 2] & 0xFF) << 16 |
+                (data[position + 3] & 0xFF) << 24;
+        // @formatter:on
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.util.Locale;
+
+/**
+ * The ScanStats class measures where a ROM scan spends its time. Each stage of the scan counts its
+ * operations, their total and longest durations, and the bytes they handled, and keeps a histogram
+ * of their durations for percentiles. The summary is meant for the log at the end of a scan.
+ * <p>
+ * The histogram buckets are a quarter of a power of two wide, starting at one microsecond, so
+ * percentiles are accurate to within about 20% while each stage only needs a few hundred longs.
+ * <p>
+ * All methods are synchronized so that every thread of a scan can share one instance.
+ */
+public class ScanStats
+{
+    /** Finding the next candidate file in the folder tree. */
+    public static final int WALK = 0;
+    
+    /** Reading and checking the header of a file or zip entry. */
+    public static final int HEADER = 1;
+    
+    /** Reading a ROM file from storage while hashing it. */
+    public static final int READ = 2;
+    
+    /** Opening zip files and inflating their entries while hashing them. */
+    public static final int INFLATE = 3;
+    
+    /** Digesting a ROM for its MD5, excluding reads, or reading samples for its sampled hash. */
+    public static final int HASH = 4;
+    
+    /** Looking up a ROM in the database. */
+    public static final int LOOKUP = 5;
+    
+    /** Downloading cover art, including retries. */
+    public static final int ART = 6;
+    
+    /** Writing the catalog, fingerprints, and checkpoints. */
+    public static final int PERSIST = 7;
+    
+    public static final int STAGE_COUNT = 8;
+    
+    private static final String[] STAGE_NAMES = { "walk", "header", "read", "inflate", "hash",
+            "lookup", "art", "persist" };
+    
+    /** Four buckets per power of two, for durations up to 2^40 microseconds. */
+    private static final int BUCKET_COUNT = 4 * 40;
+    
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+    
+    private final long[] mCounts = new long[STAGE_COUNT];
+    private final long[] mNanos = new long[STAGE_COUNT];
+    private final long[] mMaxNanos = new long[STAGE_COUNT];
+    private final long[] mBytes = new long[STAGE_COUNT];
+    private final long[][] mBuckets = new long[STAGE_COUNT][BUCKET_COUNT];
+    
+    private long mStartNanos = 0;
+    private long mElapsedNanos = 0;
+    
+    /**
+     * Starts the wall clock of the scan.
+     */
+    public synchronized void start()
+    {
+        mStartNanos = System.nanoTime();
+        mElapsedNanos = 0;
+    }
+    
+    /**
+     * Stops the wall clock of the scan.
+     */
+    public synchronized void finish()
+    {
+        if( mStartNanos != 0 )
+            mElapsedNanos = System.nanoTime() - mStartNanos;
+    }
+    
+    /**
+     * Records one operation of a stage.
+     * 
+     * @param stage The stage, e.g. {@link #HASH}.
+     * @param nanos How long the operation took, in nanoseconds.
+     */
+    public void record( int stage, long nanos )
+    {
+        record( stage, nanos, 0 );
+    }
+    
+    /**
+     * Records one operation of a stage.
+     * 
+     * @param stage The stage, e.g. {@link #HASH}.
+     * @param nanos How long the operation took, in nanoseconds.
+     * @param bytes How many bytes the operation handled, or 0 if not applicable.
+     */
+    public synchronized void record( int stage, long nanos, long bytes )
+    {
+        nanos = Math.max( 0, nanos );
+        mCounts[stage]++;
+        mNanos[stage] += nanos;
+        mMaxNanos[stage] = Math.max( mMaxNanos[stage], nanos );
+        mBytes[stage] += bytes;
+        mBuckets[stage][getBucket( nanos / 1000 )]++;
+    }
+    
+    /**
+     * Records one operation of a stage that started at the given time and ended now.
+     * 
+     * @param stage The stage, e.g. {@link #HASH}.
+     * @param startNanos The value of {@link System#nanoTime()} when the operation started.
+     * @return The current value of {@link System#nanoTime()}, to start timing the next operation.
+     */
+    public long recordSince( int stage, long startNanos )
+    {
+        long now = System.nanoTime();
+        record( stage, now - startNanos, 0 );
+        return now;
+    }
+    
+    public synchronized long getCount( int stage )
+    {
+        return mCounts[stage];
+    }
+    
+    public synchronized long getTotalNanos( int stage )
+    {
+        return mNanos[stage];
+    }
+    
+    public synchronized long getBytes( int stage )
+    {
+        return mBytes[stage];
+    }
+    
+    /**
+     * Gets the wall-clock duration of the scan, once it has finished.
+     */
+    public synchronized long getElapsedNanos()
+    {
+        return mElapsedNanos;
+    }
+    
+    /**
+     * Estimates a percentile of the durations of a stage.
+     * 
+     * @param stage The stage, e.g. {@link #HASH}.
+     * @param percentile The percentile, between 0 and 1.
+     * @return The upper bound of the histogram bucket holding the percentile, in nanoseconds,
+     *         never more than the longest duration recorded.
+     */
+    public synchronized long getPercentileNanos( int stage, double percentile )
+    {
+        long count = mCounts[stage];
+        if( count == 0 )
+            return 0;
+        
+        long rank = Math.max( 1, (long) Math.ceil( percentile * count ) );
+        long seen = 0;
+        for( int i = 0; i < BUCKET_COUNT; i++ )
+        {
+            seen += mBuckets[stage][i];
+            if( seen >= rank )
+                return Math.min( mMaxNanos[stage], getBucketLimit( i + 1 ) * 1000 );
+        }
+        return mMaxNanos[stage];
+    }
+    
+    /**
+     * Formats a table with one row per stage that had any operations.
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append( String.format( Locale.US, "Scan took %.1f ms%n", mElapsedNanos / 1e6 ) );
+        builder.append( String.format( Locale.US, "%-8s %7s %10s %8s %8s %8s %8s %8s %8s%n",
+                "stage", "count", "total ms", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "MB/s" ) );
+        for( int stage = 0; stage < STAGE_COUNT; stage++ )
+        {
+            long count = mCounts[stage];
+            if( count == 0 )
+                continue;
+            
+            builder.append( String.format( Locale.US, "%-8s %7d %10.1f %8.2f", STAGE_NAMES[stage],
+                    count, mNanos[stage] / 1e6, mNanos[stage] / 1e6 / count ) );
+            for( double percentile : PERCENTILES )
+                builder.append( String.format( Locale.US, " %8.2f",
+                        getPercentileNanos( stage, percentile ) / 1e6 ) );
+            builder.append( String.format( Locale.US, " %8.2f", mMaxNanos[stage] / 1e6 ) );
+            if( mBytes[stage] > 0 && mNanos[stage] > 0 )
+                builder.append( String.format( Locale.US, " %8.1f", mBytes[stage] * 1e3
+                        / mNanos[stage] ) );
+            else
+                builder.append( String.format( Locale.US, " %8s", "-" ) );
+            builder.append( String.format( "%n" ) );
+        }
+        return builder.toString();
+    }
+    
+    private static int getBucket( long micros )
+    {
+        if( micros < 4 )
+            return (int) micros;
+        
+        // The top bit picks the power of two, and the next two bits the quarter within it
+        int exponent = 63 - Long.numberOfLeadingZeros( micros );
+        int quarter = (int) ( micros >>> ( exponent - 2 ) ) & 3;
+        return Math.min( BUCKET_COUNT - 1, 4 * ( exponent - 1 ) + quarter );
+    }
+    
+    private static long getBucketLimit( int bucket )
+    {
+        // The smallest duration, in microseconds, that falls in the given bucket
+        if( bucket < 4 )
+            return bucket;
+        int exponent = bucket / 4 + 1;
+        return (long) ( 4 + bucket % 4 ) << ( exponent - 2 );
+    }
+}
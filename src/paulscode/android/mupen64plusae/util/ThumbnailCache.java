@@ -0,0 +1,321 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The ThumbnailCache class provides cover art scaled down to the size of a gallery cell. It keeps
+ * two levels of cache:
+ * <ul>
+ * <li>An in-memory LRU cache, bounded by the number of bytes held by its bitmaps</li>
+ * <li>An on-disk cache of pre-scaled thumbnails, so that full-resolution art only has to be decoded
+ * once per thumbnail size</li>
+ * </ul>
+ * Full-resolution art is decoded with the largest power-of-two sample size that still covers the
+ * cell, and then scaled to fit it exactly. A disk thumbnail is rebuilt whenever its source art is
+ * newer than it.
+ * <p>
+ * All methods are thread-safe. Decoding happens outside the lock, so several threads can load
+ * different thumbnails at once.
+ */
+public class ThumbnailCache
+{
+    private final File mThumbnailDir;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mMaxBytes;
+    
+    /** Thumbnails in access order, least recently used first. */
+    private final LinkedHashMap<String, Bitmap> mBitmaps = new LinkedHashMap<String, Bitmap>( 16,
+            0.75f, true );
+    private long mBytes = 0;
+    
+    // Statistics
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mDiskHitCount = 0;
+    private int mDecodeCount = 0;
+    private int mEvictionCount = 0;
+    private long mDecodeTimeMs = 0;
+    
+    /**
+     * Creates a thumbnail cache for a single cell size.
+     * 
+     * @param thumbnailDir The directory to store the scaled thumbnails in.
+     * @param width The width of a gallery cell, in pixels.
+     * @param height The height of a gallery cell, in pixels.
+     * @param maxBytes The most memory the cached bitmaps may occupy.
+     */
+    public ThumbnailCache( File thumbnailDir, int width, int height, long maxBytes )
+    {
+        if( thumbnailDir == null )
+            throw new IllegalArgumentException( "Thumbnail directory cannot be null" );
+        if( width <= 0 || height <= 0 )
+            throw new IllegalArgumentException( "Thumbnail size must be positive" );
+        
+        mThumbnailDir = thumbnailDir;
+        mWidth = width;
+        mHeight = height;
+        mMaxBytes = maxBytes;
+    }
+    
+    /**
+     * Gets a thumbnail if it is already in memory. Never touches the disk.
+     * 
+     * @param artPath The path of the full-resolution art.
+     * 
+     * @return The thumbnail, or null if it is not in memory.
+     */
+    public synchronized Bitmap getCached( String artPath )
+    {
+        return artPath == null ? null : mBitmaps.get( artPath );
+    }
+    
+    /**
+     * Gets a thumbnail, loading it from the disk cache or decoding the full-resolution art if
+     * needed. May take a while, so avoid calling it from the UI thread.
+     * 
+     * @param artPath The path of the full-resolution art.
+     * 
+     * @return The thumbnail, or null if the art does not exist or cannot be decoded.
+     */
+    public Bitmap get( String artPath )
+    {
+        if( TextUtils.isEmpty( artPath ) )
+            return null;
+        
+        synchronized( this )
+        {
+            Bitmap bitmap = mBitmaps.get( artPath );
+            if( bitmap != null )
+            {
+                mHitCount++;
+                return bitmap;
+            }
+            mMissCount++;
+        }
+        
+        File artFile = new File( artPath );
+        if( !artFile.exists() )
+            return null;
+        
+        // Prefer the disk thumbnail unless the art changed since it was made
+        File thumbnailFile = getThumbnailFile( artFile );
+        Bitmap bitmap = null;
+        if( thumbnailFile.lastModified() >= artFile.lastModified() )
+            bitmap = BitmapFactory.decodeFile( thumbnailFile.getAbsolutePath() );
+        
+        if( bitmap != null )
+        {
+            synchronized( this )
+            {
+                mDiskHitCount++;
+            }
+        }
+        else
+        {
+            long startTime = SystemClock.uptimeMillis();
+            bitmap = decodeScaled( artPath );
+            long decodeTime = SystemClock.uptimeMillis() - startTime;
+            synchronized( this )
+            {
+                mDecodeCount++;
+                mDecodeTimeMs += decodeTime;
+            }
+            if( bitmap == null )
+                return null;
+            writeThumbnail( bitmap, thumbnailFile );
+        }
+        
+        put( artPath, bitmap );
+        return bitmap;
+    }
+    
+    /**
+     * Drops all thumbnails from memory. The disk cache is kept.
+     */
+    public synchronized void clear()
+    {
+        mEvictionCount += mBitmaps.size();
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+    
+    public synchronized int getHitCount()
+    {
+        return mHitCount;
+    }
+    
+    public synchronized int getMissCount()
+    {
+        return mMissCount;
+    }
+    
+    public synchronized int getDiskHitCount()
+    {
+        return mDiskHitCount;
+    }
+    
+    public synchronized int getDecodeCount()
+    {
+        return mDecodeCount;
+    }
+    
+    public synchronized int getEvictionCount()
+    {
+        return mEvictionCount;
+    }
+    
+    public synchronized long getDecodeTimeMs()
+    {
+        return mDecodeTimeMs;
+    }
+    
+    public synchronized long getSizeBytes()
+    {
+        return mBytes;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return "ThumbnailCache[" + mBitmaps.size() + " thumbnails, " + mBytes + "/" + mMaxBytes
+                + " bytes, hits=" + mHitCount + ", misses=" + mMissCount + ", diskHits="
+                + mDiskHitCount + ", decodes=" + mDecodeCount + ", decodeTimeMs=" + mDecodeTimeMs
+                + ", evictions=" + mEvictionCount + "]";
+    }
+    
+    private synchronized void put( String artPath, Bitmap bitmap )
+    {
+        Bitmap previous = mBitmaps.put( artPath, bitmap );
+        if( previous != null )
+            mBytes -= getByteCount( previous );
+        mBytes += getByteCount( bitmap );
+        
+        // Evict the least recently used thumbnails until back under budget
+        Iterator<Map.Entry<String, Bitmap>> iterator = mBitmaps.entrySet().iterator();
+        while( mBytes > mMaxBytes && iterator.hasNext() )
+        {
+            Bitmap eldest = iterator.next().getValue();
+            if( eldest == bitmap )
+                break;
+            iterator.remove();
+            mBytes -= getByteCount( eldest );
+            mEvictionCount++;
+        }
+    }
+    
+    private File getThumbnailFile( File artFile )
+    {
+        // Include the size in the name so that a new cell size doesn't reuse stale thumbnails
+        return new File( mThumbnailDir, artFile.getName() + "." + mWidth + "x" + mHeight );
+    }
+    
+    private Bitmap decodeScaled( String artPath )
+    {
+        // Read the dimensions of the art without decoding its pixels
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile( artPath, options );
+        if( options.outWidth <= 0 || options.outHeight <= 0 )
+            return null;
+        
+        // Decode at the smallest power-of-two reduction that still covers the cell
+        int sampleSize = 1;
+        while( options.outWidth / ( 2 * sampleSize ) >= mWidth
+                && options.outHeight / ( 2 * sampleSize ) >= mHeight )
+            sampleSize *= 2;
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap sampled = BitmapFactory.decodeFile( artPath, options );
+        if( sampled == null )
+            return null;
+        
+        // Scale the rest of the way, preserving the aspect ratio
+        float scale = Math.min( (float) mWidth / sampled.getWidth(), (float) mHeight
+                / sampled.getHeight() );
+        if( scale >= 1 )
+            return sampled;
+        int width = Math.max( 1, Math.round( sampled.getWidth() * scale ) );
+        int height = Math.max( 1, Math.round( sampled.getHeight() * scale ) );
+        Bitmap scaled = Bitmap.createScaledBitmap( sampled, width, height, true );
+        if( scaled != sampled )
+            sampled.recycle();
+        return scaled;
+    }
+    
+    private static void writeThumbnail( Bitmap bitmap, File thumbnailFile )
+    {
+        // Write to a temporary file first so that readers never see a partial thumbnail; each write
+        // has its own, since decoders on other threads may be writing the same thumbnail
+        thumbnailFile.getParentFile().mkdirs();
+        File tempFile = null;
+        OutputStream outStream = null;
+        try
+        {
+            tempFile = File.createTempFile( thumbnailFile.getName(), ".tmp",
+                    thumbnailFile.getParentFile() );
+            outStream = new FileOutputStream( tempFile );
+            bitmap.compress( Bitmap.CompressFormat.PNG, 100, outStream );
+            outStream.close();
+            outStream = null;
+            if( tempFile.renameTo( thumbnailFile ) )
+                tempFile = null;
+        }
+        catch( IOException e )
+        {
+            Log.w( "ThumbnailCache", e );
+        }
+        finally
+        {
+            if( outStream != null )
+            {
+                try
+                {
+                    outStream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( tempFile != null )
+                tempFile.delete();
+        }
+    }
+    
+    private static int getByteCount( Bitmap bitmap )
+    {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.File;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the config file cache only hands out a parse while it still matches the file.
+ */
+public class ConfigFileCacheTest extends AndroidTestCase
+{
+    private static final String SECTION = "Keyboard";
+    
+    private File mDir;
+    private File mFile;
+    private ConfigFileCache mCache;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mDir = new File( getContext().getCacheDir(), "ConfigFileCacheTest" );
+        deleteFiles();
+        assertTrue( mDir.mkdirs() );
+        mFile = new File( mDir, "test.cfg" );
+        mCache = new ConfigFileCache( 64 * 1024 );
+        
+        ConfigFile config = new ConfigFile( mFile.getAbsolutePath() );
+        config.put( SECTION, "value", "old" );
+        assertTrue( config.save() );
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        deleteFiles();
+        super.tearDown();
+    }
+    
+    public void testUnchangedFileIsParsedOnce()
+    {
+        assertEquals( "old", mCache.get( mFile.getAbsolutePath() ).get( SECTION, "value" ) );
+        assertEquals( "old", mCache.get( mFile.getAbsolutePath() ).get( SECTION, "value" ) );
+        assertEquals( 1, mCache.getMissCount() );
+        assertEquals( 1, mCache.getHitCount() );
+    }
+    
+    public void testCopiesAreIndependent()
+    {
+        ConfigFile first = mCache.get( mFile.getAbsolutePath() );
+        first.put( SECTION, "value", "changed" );
+        assertEquals( "old", mCache.get( mFile.getAbsolutePath() ).get( SECTION, "value" ) );
+    }
+    
+    public void testInvalidatedFileIsParsedAgain()
+    {
+        mCache.get( mFile.getAbsolutePath() );
+        mCache.invalidate( mFile.getAbsolutePath() );
+        mCache.get( mFile.getAbsolutePath() );
+        assertEquals( 2, mCache.getMissCount() );
+        assertEquals( 0, mCache.getHitCount() );
+    }
+    
+    public void testChangedFileIsParsedAgain()
+    {
+        mCache.get( mFile.getAbsolutePath() );
+        
+        // Change the size, since the modification time may not have ticked
+        ConfigFile config = new ConfigFile( mFile.getAbsolutePath() );
+        config.put( SECTION, "value", "new and longer" );
+        assertTrue( config.save() );
+        
+        assertEquals( "new and longer", mCache.get( mFile.getAbsolutePath() ).get( SECTION, "value" ) );
+        assertEquals( 1, mCache.getStaleCount() );
+    }
+    
+    private void deleteFiles()
+    {
+        File[] files = mDir.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+                file.delete();
+        }
+        mDir.delete();
+    }
+}
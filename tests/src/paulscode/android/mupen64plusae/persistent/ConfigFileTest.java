@@ -0,0 +1,208 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that saving a config file never leaves it half-written. A save that is killed stops while
+ * writing its temp file, so every such kill is simulated by leaving the first bytes of the new file,
+ * up to each offset in turn, in a temp file beside the original.
+ */
+public class ConfigFileTest extends AndroidTestCase
+{
+    private static final String SECTION = "Keyboard";
+    private static final int PARAMETER_COUNT = 40;
+    private static final int SAVES_PER_THREAD = 50;
+    
+    private File mDir;
+    private File mFile;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mDir = new File( getContext().getCacheDir(), "ConfigFileTest" );
+        deleteFiles();
+        assertTrue( mDir.mkdirs() );
+        mFile = new File( mDir, "test.cfg" );
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        deleteFiles();
+        super.tearDown();
+    }
+    
+    public void testKilledSaveLeavesOriginal() throws IOException
+    {
+        ConfigFile original = new ConfigFile( mFile.getAbsolutePath() );
+        putValues( original, "old" );
+        assertTrue( original.save() );
+        byte[] originalBytes = readBytes( mFile );
+        
+        // What a complete save of the new values writes
+        File expectedFile = new File( mDir, "expected.cfg" );
+        ConfigFile expected = new ConfigFile( expectedFile.getAbsolutePath() );
+        putValues( expected, "new" );
+        assertTrue( expected.save() );
+        byte[] newBytes = readBytes( expectedFile );
+        assertTrue( expectedFile.delete() );
+        
+        for( int offset = 0; offset <= newBytes.length; offset++ )
+        {
+            File tempFile = File.createTempFile( mFile.getName(), ".tmp", mDir );
+            writeBytes( tempFile, Arrays.copyOf( newBytes, offset ) );
+            
+            assertTrue( "Offset " + offset, Arrays.equals( originalBytes, readBytes( mFile ) ) );
+            ConfigFile reloaded = new ConfigFile( mFile.getAbsolutePath() );
+            assertEquals( "old" + ( PARAMETER_COUNT - 1 ),
+                    reloaded.get( SECTION, "param" + ( PARAMETER_COUNT - 1 ) ) );
+            assertTrue( tempFile.delete() );
+        }
+        
+        // A save that completes replaces the whole file, whatever earlier saves left behind
+        File strayFile = File.createTempFile( mFile.getName(), ".tmp", mDir );
+        writeBytes( strayFile, Arrays.copyOf( newBytes, newBytes.length / 2 ) );
+        ConfigFile changed = new ConfigFile( mFile.getAbsolutePath() );
+        putValues( changed, "new" );
+        assertTrue( changed.save() );
+        assertTrue( Arrays.equals( newBytes, readBytes( mFile ) ) );
+    }
+    
+    public void testConcurrentSavesDoNotInterleave() throws Exception
+    {
+        // Two copies of one file, like those handed out by the shared cache, saved at once
+        final ConfigFile first = new ConfigFile( mFile.getAbsolutePath() );
+        final ConfigFile second = new ConfigFile( mFile.getAbsolutePath() );
+        putValues( first, "first" );
+        putValues( second, "second-and-longer" );
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[2];
+        for( int i = 0; i < threads.length; i++ )
+        {
+            final ConfigFile config = i == 0 ? first : second;
+            final String prefix = i == 0 ? "first" : "second-and-longer";
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for( int j = 0; j < SAVES_PER_THREAD; j++ )
+                        {
+                            // Change a value each time, so that every save writes the file
+                            config.put( SECTION, "count", String.valueOf( j ) );
+                            putValues( config, prefix );
+                            assertTrue( config.save() );
+                        }
+                    }
+                    catch( Throwable e )
+                    {
+                        synchronized( failure )
+                        {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+        }
+        for( Thread thread : threads )
+            thread.start();
+        for( Thread thread : threads )
+            thread.join();
+        synchronized( failure )
+        {
+            if( failure[0] != null )
+                throw new AssertionError( failure[0] );
+        }
+        
+        // Whichever save landed last, the file holds all of it and nothing of the other
+        ConfigFile result = new ConfigFile( mFile.getAbsolutePath() );
+        String value = result.get( SECTION, "param0" );
+        String prefix = "first0".equals( value ) ? "first" : "second-and-longer";
+        for( int i = 0; i < PARAMETER_COUNT; i++ )
+            assertEquals( prefix + i, result.get( SECTION, "param" + i ) );
+        assertEquals( String.valueOf( SAVES_PER_THREAD - 1 ), result.get( SECTION, "count" ) );
+        
+        // No save left its temp file behind
+        assertEquals( 1, mDir.list().length );
+    }
+    
+    private static void putValues( ConfigFile config, String prefix )
+    {
+        for( int i = 0; i < PARAMETER_COUNT; i++ )
+            config.put( SECTION, "param" + i, prefix + i );
+    }
+    
+    private void deleteFiles()
+    {
+        File[] files = mDir.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+                file.delete();
+        }
+        mDir.delete();
+    }
+    
+    private static byte[] readBytes( File file ) throws IOException
+    {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            int count = 0;
+            int n;
+            while( count < bytes.length && ( n = in.read( bytes, count, bytes.length - count ) ) > 0 )
+                count += n;
+            assertEquals( bytes.length, count );
+        }
+        finally
+        {
+            in.close();
+        }
+        return bytes;
+    }
+    
+    private static void writeBytes( File file, byte[] bytes ) throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( bytes );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
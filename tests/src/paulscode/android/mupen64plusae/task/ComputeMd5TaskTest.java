@@ -0,0 +1,136 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the three byte orders of a ROM image hash to the MD5 of its big-endian (.z64) form.
+ */
+public class ComputeMd5TaskTest extends AndroidTestCase
+{
+    /** Just over one read buffer, so that the swaps also cover a short read and its odd tail. */
+    private static final int IMAGE_SIZE = 1024 * 1024 + 12;
+    
+    private static final int MAGIC_Z64 = 0x80371240;
+    
+    private byte[] mImage;
+    private String mExpectedMd5;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        
+        // Random contents, so that a swap in the wrong place can't go unnoticed
+        mImage = new byte[IMAGE_SIZE];
+        new Random( 64 ).nextBytes( mImage );
+        mImage[0] = (byte) ( MAGIC_Z64 >>> 24 );
+        mImage[1] = (byte) ( MAGIC_Z64 >>> 16 );
+        mImage[2] = (byte) ( MAGIC_Z64 >>> 8 );
+        mImage[3] = (byte) MAGIC_Z64;
+        
+        StringBuilder md5 = new StringBuilder();
+        for( byte b : MessageDigest.getInstance( "MD5" ).digest( mImage ) )
+            md5.append( String.format( "%02X", b & 0xff ) );
+        mExpectedMd5 = md5.toString();
+    }
+    
+    public void testBigEndian() throws IOException
+    {
+        File file = writeImage( "z64", mImage );
+        assertEquals( mExpectedMd5, ComputeMd5Task.computeMd5( file ) );
+    }
+    
+    public void testByteSwapped() throws IOException
+    {
+        byte[] image = mImage.clone();
+        for( int i = 0; i < image.length; i += 2 )
+            swap( image, i, i + 1 );
+        assertEquals( 0x37, image[0] );
+        
+        File file = writeImage( "v64", image );
+        assertEquals( mExpectedMd5, ComputeMd5Task.computeMd5( file ) );
+        assertEquals( mExpectedMd5, computeStreamMd5( file ) );
+    }
+    
+    public void testWordSwapped() throws IOException
+    {
+        byte[] image = mImage.clone();
+        for( int i = 0; i < image.length; i += 4 )
+        {
+            swap( image, i, i + 3 );
+            swap( image, i + 1, i + 2 );
+        }
+        assertEquals( 0x40, image[0] );
+        
+        File file = writeImage( "n64", image );
+        assertEquals( mExpectedMd5, ComputeMd5Task.computeMd5( file ) );
+        assertEquals( mExpectedMd5, computeStreamMd5( file ) );
+    }
+    
+    private File writeImage( String extension, byte[] image ) throws IOException
+    {
+        File file = new File( getContext().getCacheDir(), "ComputeMd5TaskTest." + extension );
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( image );
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+    
+    private static String computeStreamMd5( File file ) throws IOException
+    {
+        // Streams are read in whatever sizes they return, like inflated zip entries
+        InputStream in = new BufferedInputStream( new FileInputStream( file ), 1000 );
+        try
+        {
+            return ComputeMd5Task.computeMd5( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    private static void swap( byte[] bytes, int i, int j )
+    {
+        byte temp = bytes[i];
+        bytes[i] = bytes[j];
+        bytes[j] = temp;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks how the cover art fetcher copes with missing, flaky, slow, and broken responses, against
+ * a local stand-in for the art server.
+ */
+public class CoverArtFetcherTest extends AndroidTestCase
+{
+    private static final long TIMEOUT_MS = 10000;
+    
+    /** Longer than the fast downloads take, but well within the timeout. */
+    private static final long SLOW_MS = 2000;
+    
+    private LocalHttpServer mServer;
+    private File mDir;
+    private File mFailuresFile;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mServer = new LocalHttpServer();
+        mDir = new File( getContext().getCacheDir(), "CoverArtFetcherTest" );
+        deleteFiles();
+        assertTrue( mDir.mkdirs() );
+        mFailuresFile = new File( mDir, "coverArtFailures.txt" );
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mServer.close();
+        deleteFiles();
+        super.tearDown();
+    }
+    
+    public void testDownload() throws Exception
+    {
+        mServer.respond( "/ok.png", 200 );
+        File art = fetchAll( new CoverArtFetcher( mFailuresFile.getAbsolutePath() ), "/ok.png" )[0];
+        assertArt( "/ok.png", art );
+        assertEquals( 1, mServer.getRequestCount( "/ok.png" ) );
+        assertNoTempFiles();
+    }
+    
+    public void testNotFoundIsRememberedNotRetried() throws Exception
+    {
+        mServer.respond( "/missing.png", 404 );
+        File art = fetchAll( new CoverArtFetcher( mFailuresFile.getAbsolutePath() ), "/missing.png" )[0];
+        assertFalse( art.exists() );
+        assertEquals( 1, mServer.getRequestCount( "/missing.png" ) );
+        assertTrue( mFailuresFile.exists() );
+        
+        // The negative cache keeps a new fetcher from asking again
+        fetchAll( new CoverArtFetcher( mFailuresFile.getAbsolutePath() ), "/missing.png" );
+        assertEquals( 1, mServer.getRequestCount( "/missing.png" ) );
+        assertNoTempFiles();
+    }
+    
+    public void testServerErrorIsRetried() throws Exception
+    {
+        mServer.respond( "/flaky.png", 500, 200 );
+        File art = fetchAll( new CoverArtFetcher( mFailuresFile.getAbsolutePath() ), "/flaky.png" )[0];
+        assertArt( "/flaky.png", art );
+        assertEquals( 2, mServer.getRequestCount( "/flaky.png" ) );
+        assertNoTempFiles();
+    }
+    
+    public void testSlowResponseDoesNotHoldUpOthers() throws Exception
+    {
+        mServer.respond( "/slow.png", 200 );
+        mServer.delay( "/slow.png", SLOW_MS );
+        mServer.respond( "/fast.png", 200 );
+        CoverArtFetcher fetcher = new CoverArtFetcher( mFailuresFile.getAbsolutePath() );
+        File slow = new File( mDir, "slow.png" );
+        File fast = new File( mDir, "fast.png" );
+        
+        long start = System.currentTimeMillis();
+        fetcher.fetch( mServer.getUrl( "/slow.png" ), slow.getAbsolutePath() );
+        fetcher.fetch( mServer.getUrl( "/fast.png" ), fast.getAbsolutePath() );
+        while( !fast.exists() && System.currentTimeMillis() - start < SLOW_MS )
+            Thread.sleep( 10 );
+        assertTrue( fast.exists() );
+        assertFalse( slow.exists() );
+        assertEquals( 1, fetcher.getPendingCount() );
+        
+        assertTrue( fetcher.finish( TIMEOUT_MS ) );
+        assertArt( "/slow.png", slow );
+        assertArt( "/fast.png", fast );
+    }
+    
+    public void testBrokenTransferLeavesNoTempFile() throws Exception
+    {
+        mServer.respond( "/broken.png", LocalHttpServer.TRUNCATED );
+        File art = fetchAll( new CoverArtFetcher( mFailuresFile.getAbsolutePath() ), "/broken.png" )[0];
+        assertFalse( art.exists() );
+        assertTrue( mServer.getRequestCount( "/broken.png" ) > 1 );
+        assertNoTempFiles();
+    }
+    
+    /** Fetches art from the server into the test folder and waits for every download. */
+    private File[] fetchAll( CoverArtFetcher fetcher, String... paths ) throws InterruptedException
+    {
+        File[] files = new File[paths.length];
+        for( int i = 0; i < paths.length; i++ )
+        {
+            files[i] = new File( mDir, paths[i].substring( 1 ) );
+            fetcher.fetch( mServer.getUrl( paths[i] ), files[i].getAbsolutePath() );
+        }
+        assertTrue( fetcher.finish( TIMEOUT_MS ) );
+        return files;
+    }
+    
+    private static void assertArt( String path, File file ) throws IOException
+    {
+        assertTrue( file.exists() );
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            assertEquals( data.length, in.read( data ) );
+        }
+        finally
+        {
+            in.close();
+        }
+        assertTrue( Arrays.equals( LocalHttpServer.getBody( path ), data ) );
+    }
+    
+    private void assertNoTempFiles()
+    {
+        for( File file : mDir.listFiles() )
+            assertFalse( file.getName(), file.getName().endsWith( ".tmp" ) );
+    }
+    
+    private void deleteFiles()
+    {
+        File[] files = mDir.listFiles();
+        if( files != null )
+        {
+            for( File file : files )
+                file.delete();
+        }
+        mDir.delete();
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * Stands in for the cover art server. Each path answers with a scripted series of status codes,
+ * optionally after a delay, and every request is counted. Connections are served on threads of
+ * their own, so a slow response doesn't hold up the others.
+ */
+public class LocalHttpServer
+{
+    /** A status code that sends a 200 header and then drops the connection part way through. */
+    public static final int TRUNCATED = -1;
+    
+    private final ServerSocket mSocket;
+    private final HashMap<String, int[]> mResponses = new HashMap<String, int[]>();
+    private final HashMap<String, Long> mDelays = new HashMap<String, Long>();
+    private final HashMap<String, Integer> mRequestCounts = new HashMap<String, Integer>();
+    
+    public LocalHttpServer() throws IOException
+    {
+        mSocket = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+        Thread thread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                accept();
+            }
+        }, "LocalHttpServer" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+    
+    /**
+     * Scripts the responses for a path. The last code is repeated for every request after it.
+     */
+    public synchronized void respond( String path, int... codes )
+    {
+        mResponses.put( path, codes );
+    }
+    
+    /**
+     * Delays every response for a path.
+     */
+    public synchronized void delay( String path, long delayMs )
+    {
+        mDelays.put( path, delayMs );
+    }
+    
+    public synchronized int getRequestCount( String path )
+    {
+        Integer count = mRequestCounts.get( path );
+        return count == null ? 0 : count;
+    }
+    
+    public String getUrl( String path )
+    {
+        return "http://127.0.0.1:" + mSocket.getLocalPort() + path;
+    }
+    
+    /** The body sent for a path. */
+    public static byte[] getBody( String path )
+    {
+        return ( "art for " + path ).getBytes();
+    }
+    
+    public void close() throws IOException
+    {
+        mSocket.close();
+    }
+    
+    private void accept()
+    {
+        try
+        {
+            while( true )
+            {
+                final Socket socket = mSocket.accept();
+                new Thread( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        serve( socket );
+                    }
+                } ).start();
+            }
+        }
+        catch( IOException e )
+        {
+            // Closed
+        }
+    }
+    
+    private void serve( Socket socket )
+    {
+        try
+        {
+            BufferedReader reader = new BufferedReader( new InputStreamReader( socket.getInputStream(),
+                    "ISO-8859-1" ) );
+            String requestLine = reader.readLine();
+            if( requestLine == null )
+                return;
+            String line;
+            while( ( line = reader.readLine() ) != null && line.length() > 0 )
+            {
+            }
+            
+            String path = requestLine.split( " " )[1];
+            int code;
+            long delayMs;
+            synchronized( this )
+            {
+                int count = getRequestCount( path );
+                mRequestCounts.put( path, count + 1 );
+                int[] codes = mResponses.get( path );
+                code = codes == null ? 404 : codes[Math.min( count, codes.length - 1 )];
+                Long delay = mDelays.get( path );
+                delayMs = delay == null ? 0 : delay;
+            }
+            if( delayMs > 0 )
+                Thread.sleep( delayMs );
+            
+            byte[] body = code == 200 || code == TRUNCATED ? getBody( path ) : new byte[0];
+            OutputStream out = socket.getOutputStream();
+            if( code == TRUNCATED )
+            {
+                // Promise more than is sent, so the client sees the transfer fail part way
+                out.write( ( "HTTP/1.1 200 OK\r\nContent-Length: " + body.length * 100
+                        + "\r\nConnection: close\r\n\r\n" ).getBytes( "ISO-8859-1" ) );
+                out.write( body );
+            }
+            else
+            {
+                out.write( ( "HTTP/1.1 " + code + " Scripted\r\nContent-Length: " + body.length
+                        + "\r\nConnection: close\r\n\r\n" ).getBytes( "ISO-8859-1" ) );
+                out.write( body );
+            }
+            out.flush();
+        }
+        catch( IOException e )
+        {
+            // The client gave up
+        }
+        catch( InterruptedException e )
+        {
+            // Shutting down
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch( IOException ignored )
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A DirectoryWatcher whose events are fired by hand, so that {@link LibraryWatcher} can be tested
+ * without a file system.
+ */
+public class FakeDirectoryWatcher implements DirectoryWatcher
+{
+    private final CountDownLatch mStarted = new CountDownLatch( 1 );
+    private final CountDownLatch mStopped = new CountDownLatch( 1 );
+    private volatile Listener mListener = null;
+    
+    @Override
+    public void start( File root, Listener listener )
+    {
+        mListener = listener;
+        mStarted.countDown();
+    }
+    
+    @Override
+    public void stop()
+    {
+        if( mListener != null )
+            mStopped.countDown();
+        mListener = null;
+    }
+    
+    /**
+     * Waits for the watcher to be started on the library watcher's thread.
+     */
+    public boolean awaitStart( long timeoutMs ) throws InterruptedException
+    {
+        return mStarted.await( timeoutMs, TimeUnit.MILLISECONDS );
+    }
+    
+    /**
+     * Waits for a started watcher to be stopped on the library watcher's thread.
+     */
+    public boolean awaitStop( long timeoutMs ) throws InterruptedException
+    {
+        return mStopped.await( timeoutMs, TimeUnit.MILLISECONDS );
+    }
+    
+    public void fireChanged( String path )
+    {
+        Listener listener = mListener;
+        if( listener != null )
+            listener.onFileChanged( new File( path ) );
+    }
+    
+    public void fireRemoved( String path )
+    {
+        Listener listener = mListener;
+        if( listener != null )
+            listener.onFileRemoved( new File( path ) );
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the library watcher coalesces file events into batches, using a fake watcher. Runs on
+ * any JVM, since neither class uses Android APIs.
+ */
+public class LibraryWatcherTest extends TestCase
+{
+    private static final long QUIET_MS = 200;
+    private static final long MAX_DELAY_MS = 800;
+    private static final long TIMEOUT_MS = 5000;
+    
+    private FakeDirectoryWatcher mFake;
+    private LibraryWatcher mWatcher;
+    private final LinkedBlockingQueue<Batch> mBatches = new LinkedBlockingQueue<Batch>();
+    
+    private static class Batch
+    {
+        public final List<File> changed;
+        public final List<File> removed;
+        
+        public Batch( List<File> changed, List<File> removed )
+        {
+            this.changed = changed;
+            this.removed = removed;
+        }
+    }
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mFake = new FakeDirectoryWatcher();
+        mWatcher = new LibraryWatcher( mFake, new HashSet<String>( Arrays.asList( "jpg" ) ),
+                QUIET_MS, MAX_DELAY_MS, new LibraryWatcher.Listener()
+                {
+                    @Override
+                    public void onLibraryChanged( List<File> changed, List<File> removed )
+                    {
+                        mBatches.add( new Batch( changed, removed ) );
+                    }
+                } );
+        mWatcher.start( new File( "/roms" ) );
+        assertTrue( mFake.awaitStart( TIMEOUT_MS ) );
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mWatcher.shutdown();
+        super.tearDown();
+    }
+    
+    public void testBurstIsOneBatch() throws InterruptedException
+    {
+        mFake.fireChanged( "/roms/a.z64" );
+        mFake.fireChanged( "/roms/b.v64" );
+        mFake.fireChanged( "/roms/a.z64" );
+        
+        Batch batch = mBatches.poll( TIMEOUT_MS, TimeUnit.MILLISECONDS );
+        assertNotNull( batch );
+        assertEquals( Arrays.asList( new File( "/roms/b.v64" ), new File( "/roms/a.z64" ) ),
+                batch.changed );
+        assertTrue( batch.removed.isEmpty() );
+        assertNull( mBatches.poll( QUIET_MS * 2, TimeUnit.MILLISECONDS ) );
+    }
+    
+    public void testLastEventWins() throws InterruptedException
+    {
+        mFake.fireChanged( "/roms/a.z64" );
+        mFake.fireRemoved( "/roms/a.z64" );
+        mFake.fireRemoved( "/roms/b.z64" );
+        mFake.fireChanged( "/roms/b.z64" );
+        
+        Batch batch = mBatches.poll( TIMEOUT_MS, TimeUnit.MILLISECONDS );
+        assertNotNull( batch );
+        assertEquals( Arrays.asList( new File( "/roms/b.z64" ) ), batch.changed );
+        assertEquals( Arrays.asList( new File( "/roms/a.z64" ) ), batch.removed );
+    }
+    
+    public void testIgnoredFilesAreDropped() throws InterruptedException
+    {
+        mFake.fireChanged( "/roms/cover.jpg" );
+        mFake.fireChanged( "/roms/.hidden.z64" );
+        mFake.fireRemoved( "/roms/.hidden" );
+        mFake.fireChanged( "/roms/a.z64" );
+        
+        Batch batch = mBatches.poll( TIMEOUT_MS, TimeUnit.MILLISECONDS );
+        assertNotNull( batch );
+        assertEquals( Arrays.asList( new File( "/roms/a.z64" ) ), batch.changed );
+        assertTrue( batch.removed.isEmpty() );
+    }
+    
+    public void testSteadyStreamIsFlushedByDeadline() throws InterruptedException
+    {
+        // Events closer together than the quiet period would otherwise hold the batch forever
+        long start = System.currentTimeMillis();
+        Batch batch = null;
+        for( int i = 0; batch == null && System.currentTimeMillis() - start < TIMEOUT_MS; i++ )
+        {
+            mFake.fireChanged( "/roms/" + i + ".z64" );
+            batch = mBatches.poll( QUIET_MS / 4, TimeUnit.MILLISECONDS );
+        }
+        assertNotNull( batch );
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue( "Flushed after " + elapsed + " ms", elapsed >= MAX_DELAY_MS );
+        assertTrue( batch.changed.size() > 1 );
+    }
+    
+    public void testStopDropsPendingEvents() throws InterruptedException
+    {
+        mFake.fireChanged( "/roms/a.z64" );
+        mWatcher.stop();
+        assertTrue( mFake.awaitStop( TIMEOUT_MS ) );
+        
+        mFake.fireChanged( "/roms/b.z64" );
+        assertNull( mBatches.poll( QUIET_MS * 2, TimeUnit.MILLISECONDS ) );
+    }
+}
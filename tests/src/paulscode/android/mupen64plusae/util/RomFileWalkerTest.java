@@ -0,0 +1,98 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks which directories the ROM file walker enters.
+ */
+public class RomFileWalkerTest extends AndroidTestCase
+{
+    private File mDir;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        mDir = new File( getContext().getCacheDir(), "RomFileWalkerTest" );
+        delete( mDir );
+        assertTrue( mDir.mkdirs() );
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        delete( mDir );
+        super.tearDown();
+    }
+    
+    public void testSystemDirectoriesAreSkipped()
+    {
+        assertTrue( RomFileWalker.isSkipped( new File( "/dev" ) ) );
+        assertTrue( RomFileWalker.isSkipped( new File( "/proc" ) ) );
+        assertTrue( RomFileWalker.isSkipped( new File( "/sys" ) ) );
+    }
+    
+    public void testUserFoldersWithSystemNamesAreWalked() throws IOException
+    {
+        Set<String> expected = new HashSet<String>();
+        for( String name : new String[] { "dev", "proc", "sys", "LOST.DIR" } )
+            expected.add( createFile( name + "/game.z64" ).getCanonicalPath() );
+        createFile( ".hidden/game.z64" );
+        
+        assertEquals( expected, walk() );
+    }
+    
+    private Set<String> walk() throws IOException
+    {
+        Set<String> paths = new HashSet<String>();
+        RomFileWalker walker = new RomFileWalker( mDir, null, null );
+        File file;
+        while( ( file = walker.next() ) != null )
+            paths.add( file.getCanonicalPath() );
+        return paths;
+    }
+    
+    private File createFile( String path ) throws IOException
+    {
+        File file = new File( mDir, path );
+        assertTrue( file.getParentFile().mkdirs() );
+        assertTrue( file.createNewFile() );
+        return file;
+    }
+    
+    private static void delete( File file )
+    {
+        File[] files = file.listFiles();
+        if( files != null )
+        {
+            for( File child : files )
+                delete( child );
+        }
+        file.delete();
+    }
+}